@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016-2017 Artem Melnykov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Lag schedule of the multi-tau correlator.
+// A plan is built once from (t0, nc, np) and never modified afterwards,
+// so one instance can be shared by any number of Gmn objects and threads.
+// The arrays below are read directly by the correlation loops in Gmn and
+// must not be written to; public getters hand out copies.
+public final class CorrelatorPlan {
+
+    // parameters the plan was built from
+    private final int t0;       // lowest time base value
+    private final int nc;       // number of cascades
+    private final int np;       // number of points in a cascade
+    private final double dt;    // time resolution of the data (in seconds)
+
+    // lag schedule
+    final int[] timebase;       // timebase values for each cascade
+    final int[] ntlag;          // number of points in each cascade
+    final int[] cascadeOffset;  // position of each cascade in cc and sXX arrays
+    final int[] cc;             // lagtime values in units of timebase
+    final int nLags;            // length of cc and sXX arrays
+    final double[] lagTimes;    // lagtime values in seconds
+
+    // ring buffers holding the recent history of each cascade
+    final int ringSize;         // number of ring slots per cascade (a power of two)
+    final int ringMask;         // ringSize-1; wraps ring slot indices
+    final int ringLength;       // total number of ring slots (all cascades)
+
+    public CorrelatorPlan(int baseTime, int nCascades, int nPointsPerCascade) {
+        this(baseTime, nCascades, nPointsPerCascade, 1);
+    }
+
+    public CorrelatorPlan(int baseTime, int nCascades, int nPointsPerCascade, double timeResolution) {
+        this(baseTime, nCascades, nPointsPerCascade, timeResolution, Math.max(256, 4*nPointsPerCascade));
+    }
+
+    public CorrelatorPlan(int baseTime, int nCascades, int nPointsPerCascade, double timeResolution, int ringSlots) {
+
+        // ringSlots is the number of past bins kept for each cascade; it is rounded up
+        // to a power of two and to at least the number of bins within the longest lag.
+        // Bins beyond the ring cannot be found by the lag search, so bursts with many
+        // photons in the same time bin of the first cascade (t0=1) need a deeper ring;
+        // a search that reaches the end of the ring stops there and is counted by
+        // Gmn.getRingOverruns()
+
+        int ii, jj, jjoffset;
+        long tt;                // temporary variable for storing lag time (exceeds the int range
+                                // at picosecond resolution)
+
+        t0 = baseTime;
+        nc = nCascades;
+        np = nPointsPerCascade;
+        dt = timeResolution;
+
+        timebase = new int[nc];
+        ntlag = new int[nc];
+        cascadeOffset = new int[nc];
+        nLags = (nc+1)*np;
+        cc = new int[nLags];
+        lagTimes = new double[nLags];
+
+        ntlag[0] = np*2; // twice as many points in the first cascade
+        for (jj=1; jj<nc; jj++) { ntlag[jj]=np; }
+        timebase[0]= t0;
+        for (jj=1; jj<nc; jj++) { timebase[jj] = timebase[jj-1] * 2; }
+        tt = 0;
+        for (jj=0; jj<nc; jj++) {
+            if (jj==0) {jjoffset=0;} else {jjoffset=(jj+1)*np;}
+            cascadeOffset[jj] = jjoffset;
+            for (ii=0; ii<ntlag[jj]; ii++) {
+                tt += timebase[jj];
+                cc[jjoffset+ii] = (int)(tt / timebase[jj]);
+                lagTimes[jjoffset+ii] = tt*dt;
+            }
+        }
+
+        ringSize = powerOfTwoAtLeast(Math.max(ringSlots, 2*np+2));
+        ringMask = ringSize-1;
+        ringLength = ringSize*nc;
+    }
+
+    public int getBaseTime() {
+        return t0;
+    }
+
+    public int getNofCascades() {
+        return nc;
+    }
+
+    public int getNofPointsPerCascade() {
+        return np;
+    }
+
+    public double getTimeResolution() {
+        return dt;
+    }
+
+    public int getNofLags() {
+        return nLags;
+    }
+
+    public int getRingSize() {
+        return ringSize;
+    }
+
+    private static int powerOfTwoAtLeast(int n) {
+        int p = 1;
+        while (p<n) { p *= 2; }
+        return p;
+    }
+
+    public int[] getTimebase() {
+        return timebase.clone();
+    }
+
+    public int[] getLags() {
+        return cc.clone();
+    }
+
+    public double[] getLagTimes() {
+        return lagTimes.clone();
+    }
+
+}
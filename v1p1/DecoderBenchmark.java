@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2016-2017 Artem Melnykov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+// Decoding throughput (bytes per second) of the Gmn file decoders.
+// Usage: java DecoderBenchmark [nRecords] [directory]
+// Synthetic files of each format with nRecords records are written to directory
+// (default: the temporary directory) and decoded without correlation. The last line
+// is the merge of four Flex files of nRecords/4 records each (PhotonMerge).
+public class DecoderBenchmark {
+
+    public static void main(String[] args) throws IOException {
+
+        int nRecords = args.length>0 ? Integer.parseInt(args[0]) : 10000000;
+        File dir = new File(args.length>1 ? args[1] : System.getProperty("java.io.tmpdir"));
+        int repeats = 3;
+        String[] formats = {"Flex (8-bit)", "Confocor2", "Confocor3", "PicoHarp pt3", "PicoHarp pt2", "PicoQuant ptu"};
+
+        System.out.println("records: "+nRecords);
+        for (String format:formats) {
+            File file = new File(dir, "gmn_decoder_benchmark.dat");
+            writeFile(file, format, nRecords);
+            double best = 0;
+            long bytes = 0;
+            for (int rr=0; rr<repeats; rr++) {
+                Gmn cr = new Gmn();
+                cr.initializeGmn("auto");
+                FileInputStream in = new FileInputStream(file);
+                decode(cr, in, format);
+                in.close();
+                bytes = cr.getDecodedBytes();
+                best = Math.max(best, cr.getDecodeRate());
+            }
+            file.delete();
+            System.out.printf("%-14s %10d bytes %8.1f MB/s%n", format, bytes, best*1e-6);
+        }
+
+        File[] files = new File[4];
+        double best = 0;
+        long bytes = 0;
+        int ii;
+        for (ii=0; ii<files.length; ii++) {
+            files[ii] = new File(dir, "gmn_decoder_benchmark"+ii+".dat");
+            writeFile(files[ii], "Flex (8-bit)", nRecords/files.length, ii+1);
+        }
+        for (int rr=0; rr<repeats; rr++) {
+            // decoding and merging (wall time)
+            long start = System.nanoTime();
+            PhotonSource merged = PhotonSources.openMerged("Flex (8-bit)", files, 3, 12);
+            EventBlock block = new EventBlock(32768, true, true);
+            while (merged.readBlock(block)!=0) { }
+            merged.close();
+            bytes = merged.getDecodedBytes();
+            best = Math.max(best, bytes/((System.nanoTime()-start)*1e-9));
+        }
+        for (ii=0; ii<files.length; ii++) { files[ii].delete(); }
+        System.out.printf("%-14s %10d bytes %8.1f MB/s%n", "Flex merge (4)", bytes, best*1e-6);
+    }
+
+    private static void decode(Gmn cr, FileInputStream in, String format) {
+        if (format=="Flex (8-bit)") {
+            cr.updateDataFlexOneCh(in);
+            while (cr.getNofEvents()!=0) { cr.updateDataFlexOneCh(in); }
+        } else if (format=="Confocor2") {
+            cr.readHeaderConfocor2(in);
+            cr.updateDataConfocor2chA(in);
+            while (cr.getNofEvents()!=0) { cr.updateDataConfocor2chA(in); }
+        } else if (format=="Confocor3") {
+            cr.readHeaderConfocor3(in);
+            cr.updateDataConfocor3OneCh(in);
+            while (cr.getNofEvents()!=0) { cr.updateDataConfocor3OneCh(in); }
+        } else if (format=="PicoHarp pt3") {
+            cr.readHeaderPicoHarpPT3(in);
+            cr.updateDataPicoHarpPT3chA(in);
+            while (cr.getNofEvents()!=0) { cr.updateDataPicoHarpPT3chA(in); }
+        } else if (format=="PicoHarp pt2") {
+            cr.readHeaderPicoHarpPT2(in);
+            cr.updateDataPicoHarpPT2chA(in);
+            while (cr.getNofEvents()!=0) { cr.updateDataPicoHarpPT2chA(in); }
+        } else if (format=="PicoQuant ptu") {
+            cr.readHeaderPTU(in);
+            cr.updateDataPTU(in);
+            while (cr.getNofEvents()!=0) { cr.updateDataPTU(in); }
+        }
+    }
+
+    private static void writeFile(File file, String format, int nRecords) throws IOException {
+        writeFile(file, format, nRecords, 1);
+    }
+
+    private static void writeFile(File file, String format, int nRecords, long seed) throws IOException {
+        // random records with a realistic share of overflow markers
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        Random rnd = new Random(seed);
+        int ii, time = 0, channel;
+        if (format=="Flex (8-bit)") {
+            for (ii=0; ii<nRecords; ii++) { out.write(rnd.nextInt(10)==0 ? 255 : rnd.nextInt(255)); }
+        } else if (format=="Confocor2") {
+            for (ii=0; ii<30; ii++) { out.write(0); } // header
+            for (ii=0; ii<nRecords; ii++) {
+                out.write(rnd.nextInt(8)==0 ? 255 : 1+rnd.nextInt(254)); // time since the last record
+                out.write(1 << rnd.nextInt(8)); // photon flags
+            }
+        } else if (format=="Confocor3") {
+            for (ii=0; ii<128; ii++) { out.write(0); } // header
+            for (ii=0; ii<nRecords; ii++) { writeInt(out, rnd.nextInt(100000)); }
+        } else if (format=="PicoHarp pt3") {
+            writePicoHarpHeader(out);
+            for (ii=0; ii<nRecords; ii++) {
+                channel = rnd.nextInt(20)==0 ? 15 : 1+rnd.nextInt(2);
+                time = (time+rnd.nextInt(3000)) & 0xFFFF;
+                writeInt(out, (channel << 28) | (rnd.nextInt(4096) << 16) | time);
+            }
+        } else if (format=="PicoHarp pt2") {
+            writePicoHarpHeader(out);
+            for (ii=0; ii<nRecords; ii++) {
+                channel = rnd.nextInt(20)==0 ? 15 : 1;
+                time = (time+rnd.nextInt(3000000)) & 0x0FFFFFFF;
+                writeInt(out, (channel << 28) | time);
+            }
+        } else if (format=="PicoQuant ptu") {
+            // MultiHarp T3 records of 8 detector channels (channel 1 is decoded)
+            writePtuHeader(out, 0x00010307);
+            for (ii=0; ii<nRecords; ii++) {
+                channel = rnd.nextInt(20)==0 ? 127 : rnd.nextInt(8); // 127 - overflow (special, 63)
+                writeInt(out, (channel << 25) | (rnd.nextInt(32768) << 10) | rnd.nextInt(1024));
+            }
+        }
+        out.close();
+    }
+
+    private static void writePicoHarpHeader(OutputStream out) throws IOException {
+        // the fields read by Gmn.readHeaderPicoHarpPT3: one board, no image header
+        int ii;
+        for (ii=0; ii<85; ii++) { writeInt(out, 0); }
+        writeInt(out, 1); // NumberOfBoards
+        for (ii=0; ii<48+15+4*6+8; ii++) { writeInt(out, 0); }
+        writeInt(out, 0); // ImgHdrSize
+    }
+
+    private static void writePtuHeader(OutputStream out, int recordType) throws IOException {
+        // the tags read by Gmn.readHeaderPTU
+        writeAscii(out, "PQTTTR", 8);
+        writeAscii(out, "1.0.00", 8);
+        writePtuTag(out, "TTResultFormat_TTTRRecType", 0x10000008, recordType);
+        writePtuTag(out, "MeasDesc_GlobalResolution", 0x20000008, Double.doubleToLongBits(25e-9));
+        writePtuTag(out, "Header_End", 0xFFFF0008, 0);
+    }
+
+    private static void writePtuTag(OutputStream out, String ident, int type, long value) throws IOException {
+        writeAscii(out, ident, 32);
+        writeInt(out, -1); // index
+        writeInt(out, type);
+        writeInt(out, (int)value);
+        writeInt(out, (int)(value >>> 32));
+    }
+
+    private static void writeAscii(OutputStream out, String text, int length) throws IOException {
+        // text padded with zeros to length bytes
+        int ii;
+        for (ii=0; ii<length; ii++) { out.write(ii<text.length() ? text.charAt(ii) : 0); }
+    }
+
+    private static void writeInt(OutputStream out, int v) throws IOException {
+        // little-endian, as in the PicoHarp and Confocor3 files
+        out.write(v & 255);
+        out.write((v >> 8) & 255);
+        out.write((v >> 16) & 255);
+        out.write((v >>> 24) & 255);
+    }
+
+}
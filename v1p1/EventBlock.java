@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2016-2017 Artem Melnykov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// A block of decoded events: inter-arrival times and the weights of channels A and B,
+// and for merged detector streams the detectors of each event (PhotonMerge).
+// Blocks are reused; Gmn.exchangeEvents swaps their arrays with those of a Gmn,
+// so events pass from a decoder to a correlator without being copied.
+public class EventBlock {
+
+    long[] iat;     // inter-arrival times
+    int[] wA;       // weights (channel A)
+    int[] wB;       // weights (channel B); null for a single channel
+    long[] tags;    // detectors (channels) of each event (bit i - detector i), or the detector
+                    // and dtime of its photon (PicoHarp T3 microtimes); null if the source
+                    // does not tag its events
+    int nEvents;    // number of events in the block
+
+    public EventBlock(int capacity, boolean twoChannels) {
+        this(capacity, twoChannels, false);
+    }
+
+    public EventBlock(int capacity, boolean twoChannels, boolean tagged) {
+        iat = new long[capacity];
+        wA = new int[capacity];
+        wB = twoChannels ? new int[capacity] : null;
+        tags = tagged ? new long[capacity] : null;
+        nEvents = 0;
+    }
+
+    public int getNofEvents() {
+        return nEvents;
+    }
+
+    public long[] getPhotonsIat() {
+        return iat;
+    }
+
+    public int[] getWeightsA() {
+        return wA;
+    }
+
+    public int[] getWeightsB() {
+        return wB;
+    }
+
+    public long[] getTags() {
+        return tags;
+    }
+
+}
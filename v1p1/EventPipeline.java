@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016-2017 Artem Melnykov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Decoding and correlation of a photon stream on two threads.
+// A decoder thread reads the blocks of a PhotonSource into EventBlocks taken from
+// a small pool. The calling thread correlates the blocks in order (updateCorr and
+// the intensity trace) while the next ones are being decoded. Blocks travel through
+// two bounded queues (filled and free), and their arrays are exchanged with those
+// of the Gmns, so no events are copied. The results are identical to the sequential loop
+//     updateData*(); while (getNofEvents()!=0) { updateCorr*(); updateIntensityTrace*(); updateData*(); }
+public class EventPipeline {
+
+    private final Gmn correlator;       // correlates the blocks (calling thread)
+    private final int nChannels;        // channels of the correlator and its blocks
+    private final EventBlock end;       // marks the end of the stream in the filled queue
+    private final ArrayBlockingQueue<EventBlock> free;   // blocks ready to be filled
+    private final ArrayBlockingQueue<EventBlock> filled; // decoded blocks in the order of the stream
+    private volatile Throwable failure; // exception thrown on the decoder thread
+
+    public EventPipeline(Gmn correlator, int nBlocks) {
+        // correlator must be initialized (initializeGmn); nBlocks blocks can be
+        // decoded ahead of the correlation (2 - double buffering)
+        int ii;
+        int capacity = correlator.getPhotonsIat().length;
+
+        this.correlator = correlator;
+        nChannels = (correlator.getWeightsB()!=null) ? 2 : 1;
+        end = new EventBlock(0, false);
+        free = new ArrayBlockingQueue<EventBlock>(nBlocks);
+        filled = new ArrayBlockingQueue<EventBlock>(nBlocks+1); // room for the end marker
+        for (ii=0; ii<nBlocks; ii++) { free.add(new EventBlock(capacity, nChannels==2, correlator.getEventTags()!=null)); }
+    }
+
+    public void run(final PhotonSource source) {
+        // decode and correlate all remaining events of source
+        EventBlock block;
+        if (source.getNofChannels()!=nChannels) {
+            throw new IllegalArgumentException(source.getFormat()+": "+source.getNofChannels()+" channel(s), the correlator needs "+nChannels);
+        }
+        failure = null;
+
+        Thread decoding = new Thread(new Runnable() {
+            public void run() {
+                EventBlock block;
+                int n;
+                try {
+                    do {
+                        block = free.take();
+                        n = source.readBlock(block); // block belongs to the correlator once it is queued
+                        if (n!=0) { filled.put(block); } else { free.put(block); }
+                    } while (n!=0);
+                } catch (InterruptedException e) {
+                    // the correlation has stopped
+                } catch (Throwable e) {
+                    failure = e;
+                } finally {
+                    filled.add(end);
+                }
+            }
+        }, "Gmn decoder");
+        decoding.setDaemon(true);
+        decoding.start();
+
+        try {
+            while ((block = filled.take())!=end) {
+                correlator.exchangeEvents(block);
+                correlator.updateCorr();
+                if (nChannels==2) {
+                    correlator.updateIntensityTraceTwoChInt();
+                } else {
+                    correlator.updateIntensityTraceOneChInt();
+                }
+                free.put(block);
+            }
+            decoding.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Event pipeline interrupted", e);
+        } finally {
+            decoding.interrupt();
+        }
+        if (failure!=null) { throw new IllegalStateException("Decoding failed", failure); }
+    }
+
+}
@@ -12,6 +12,7 @@ import javax.swing.JFileChooser;
 
 import ij.io.*;
 import java.io.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class FCS_calc extends PlugInFrame {
 
@@ -35,26 +36,46 @@ public class FCS_calc extends PlugInFrame {
 		gd.addNumericField("Time base",1,0);
 		gd.addNumericField("N of cascades",20,0);
 		gd.addNumericField("N of points per cascade",16,0);
+		gd.addNumericField("Ring depth (bins)",256,0);
+
+		// time window of the data (0, 0 - all of it); a PhotonIndex of each file finds its start
+		gd.addNumericField("Start time (s)",0,3);
+		gd.addNumericField("End time (s), 0 - end of data",0,3);
+
+		// microtime gates of PicoHarp pt3 data (dtime bins 0-4095) for time-gated FCS;
+		// photons of channel A (B) outside its gate are dropped while decoding
+		gd.addNumericField("Gate A first bin",0,0);
+		gd.addNumericField("Gate A last bin, 0 - no gate",0,0);
+		gd.addNumericField("Gate B first bin",0,0);
+		gd.addNumericField("Gate B last bin, 0 - no gate",0,0);
+
+		// photons closer than the dead time are dropped from all correlation functions (g11 included,
+		// not the intensity trace) and the high order functions are corrected
+		gd.addNumericField("Dead time (ns), autoHOmlt only",0,1);
 
 		// data types supported
 		String[] dataTypes;
-		dataTypes = new String[4];
-		dataTypes[0] = "Flex (8-bit)";
-		dataTypes[1] = "Confocor2";
-		dataTypes[2] = "Confocor3";
-		dataTypes[3] = "PicoHarp pt3";
+		dataTypes = PhotonSources.getFormats();
 		gd.addChoice ("Data type", dataTypes, dataTypes[0]);
 		
 		// calculation types supported
 		String[] calculationTypes;
-		calculationTypes = new String[3];
+		calculationTypes = new String[4];
 		calculationTypes[0] = "auto";
 		calculationTypes[1] = "cross";
 		calculationTypes[2] = "autoHOmlt";
+		calculationTypes[3] = "fused"; // cross and high order in a single pass
 		gd.addChoice ("Calculation type", calculationTypes, calculationTypes[0]);
 
 		// option for autoscaling the plots
 		gd.addCheckbox("Autoscale", true);
+
+		// decoded events are kept next to the data files for later runs (PhotonCache)
+		gd.addCheckbox("Cache decoded events", false);
+
+		// pulsed interleaved excitation (PicoHarp pt3, cross-correlation): the microtime windows
+		// of the two pulses are found in the microtime histogram of each file (PieRouting)
+		gd.addCheckbox("PIE: A - detector 1 after pulse 1, B - detector 2 after pulse 2", false);
 		
 		gd.showDialog();
 		if (gd.wasCanceled()) { return; }
@@ -63,14 +84,25 @@ public class FCS_calc extends PlugInFrame {
 		double dblt0 = gd.getNextNumber();
 		double  dblnc = gd.getNextNumber();
 		double dblnp = gd.getNextNumber();
+		double dblring = gd.getNextNumber();
+		double startTime = gd.getNextNumber();
+		double endTime = gd.getNextNumber();
+		int gateFirstA = (int)gd.getNextNumber();
+		int gateLastA = (int)gd.getNextNumber();
+		int gateFirstB = (int)gd.getNextNumber();
+		int gateLastB = (int)gd.getNextNumber();
+		double deadTimeNs = gd.getNextNumber();
 		int t0 = (int)dblt0;
 		int nc = (int)dblnc;
 		int np = (int)dblnp;
+		int ringSlots = (int)dblring; // raise for bursts with many photons per time bin
 		String dataTypeSelected;
 		dataTypeSelected = gd.getNextChoice();
 		String calculationTypeSelected;
 		calculationTypeSelected = gd.getNextChoice();
 		boolean autoscale = gd.getNextBoolean(); 
+		boolean useCache = gd.getNextBoolean();
+		boolean pie = gd.getNextBoolean();
 		double minX=1e-6, maxX=0.1, minY=-0.01, maxY=1.2;
 		double[] traceX, traceYA, traceYB;
 
@@ -80,33 +112,30 @@ public class FCS_calc extends PlugInFrame {
 		int[] cB = {0, 255, 0, 0};
 		int[] cG = {0, 0, 255, 0};
 		int[] cR = {0, 0, 0, 255};
-		FileInputStream inA = null;
-		FileInputStream inB = null;
 		File[] filesA = null;
 		File[] filesB = null;
 		//aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa
 		
 		//bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb
 		// prepare a plot
-		int ii, jj, jjoffset, tt, timebase, ntlag;
+		int ii;
 		double[] timeArray;
-		double dt=1;
-		//if ( dataTypeSelected=="Flex (8-bit)") { dt=16.6667e-9; }
-		if ( dataTypeSelected=="Flex (8-bit)" ) { dt=12.5e-9; }
-		if ( dataTypeSelected=="Confocor2" ) { dt=50e-9; }
-		if ( dataTypeSelected=="Confocor3" ) { dt=50e-9; }
-		if ( dataTypeSelected=="PicoHarp pt3" ) { dt=50e-9; }
-		timeArray = new double[(nc+1)*np];
-		tt = 0;
-		timebase = t0;
-		for (jj=0; jj<nc; jj++) {
-			if (jj==0) { jjoffset=0; ntlag=2*np; } else { jjoffset=(jj+1)*np; ntlag=np; }
-			for (ii=0; ii<ntlag; ii++) {
-				tt += timebase;
-				timeArray[jjoffset+ii] = tt*dt;
-			}
-			timebase = timebase * 2;
- 		}
+		PhotonSources.Format format = PhotonSources.getFormat(dataTypeSelected);
+		int[][] gates = null;
+		if (gateLastA>0 && gateLastB>0) { gates = new int[][] {{1, gateFirstA, gateLastA}, {2, gateFirstB, gateLastB}}; }
+		else if (gateLastA>0) { gates = new int[][] {{1, gateFirstA, gateLastA}}; }
+		else if (gateLastB>0) { gates = new int[][] {{2, gateFirstB, gateLastB}}; }
+		if (gates!=null && !dataTypeSelected.equals("PicoHarp pt3")) { IJ.error("Microtime gates are supported for PicoHarp pt3 data"); return; }
+		if (gates!=null && (startTime>0 || endTime>0)) { IJ.error("Microtime gates cannot be combined with a time window"); return; }
+		if (pie && (!dataTypeSelected.equals("PicoHarp pt3") || gates!=null || startTime>0 || endTime>0
+				|| !(calculationTypeSelected=="cross" || calculationTypeSelected=="fused"))) {
+			IJ.error("PIE routing needs PicoHarp pt3 data and a cross-correlation, without gates or a time window"); return;
+		}
+		if (deadTimeNs>0 && calculationTypeSelected!="autoHOmlt") { IJ.error("The dead time is corrected in the autoHOmlt calculation only"); return; }
+		double dt = format.getTimeResolution();
+		// the lag schedule is computed once and shared by all correlators
+		CorrelatorPlan plan = new CorrelatorPlan(t0, nc, np, dt, Math.max(ringSlots, 4*np));
+		timeArray = plan.getLagTimes();
 		Plot plotG11 = new Plot("Auto","Time","Correlation");
 		plotG11.setLogScaleX();
 		plotG11.setLimits(minX, maxX,  minY, maxY);
@@ -200,318 +229,213 @@ public class FCS_calc extends PlugInFrame {
 
 			PlotWindow winInt = plotInt.show();
 			winInt.setLocationAndSize(1010,200,320,200);
+		} else if (calculationTypeSelected=="fused") {
+			PlotWindow winGaa = plotGaa.show();
+			winGaa.setLocationAndSize(20,20,320,320);
+			PlotWindow winGbb = plotGbb.show();
+			winGbb.setLocationAndSize(20,350,320,320);
+			PlotWindow winGab = plotGab.show();
+			winGab.setLocationAndSize(350,20,320,320);
+			PlotWindow winGba = plotGba.show();
+			winGba.setLocationAndSize(350,350,320,320);
+
+			PlotWindow winG12 = plotG12.show();
+			winG12.setLocationAndSize(680,20,320,320);
+			PlotWindow winG21 = plotG21.show();
+			winG21.setLocationAndSize(680,350,320,320);
+			PlotWindow winG13 = plotG13.show();
+			winG13.setLocationAndSize(1010,20,320,320);
+			PlotWindow winG31 = plotG31.show();
+			winG31.setLocationAndSize(1010,350,320,320);
+			PlotWindow winG22 = plotG22.show();
+			winG22.setLocationAndSize(1340,20,320,320);
+
+			PlotWindow winIntA = plotIntA.show();
+			winIntA.setLocationAndSize(1340,350,320,160);
+			PlotWindow winIntB = plotIntB.show();
+			winIntB.setLocationAndSize(1340,510,320,160);
 		}
 		//bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb
 
 		//ccccccccccccccccccccccccccccccccccccccccccccccccccccccccccccccccccc
 		// set up the data stream
-		if ( dataTypeSelected=="Flex (8-bit)" || dataTypeSelected == "Confocor2" || dataTypeSelected == "Confocor3" || dataTypeSelected == "PicoHarp pt3") { // open files
-			Java2.setSystemLookAndFeel();
-			JFileChooser fcA = new JFileChooser( OpenDialog.getLastDirectory() );
-			fcA.setMultiSelectionEnabled(true);
-			int returnVal = fcA.showOpenDialog(null);
-			filesA = fcA.getSelectedFiles();
-			File file0 = filesA[0];
-			OpenDialog.setLastDirectory( file0.getAbsolutePath() );
-
-			// select second channel data for cross-correlations
-			if  ((dataTypeSelected=="Flex (8-bit)" || dataTypeSelected == "Confocor3") && calculationTypeSelected=="cross") {
-				JFileChooser fcB = new JFileChooser( OpenDialog.getLastDirectory() );
-				fcB.setMultiSelectionEnabled(true);
-				fcB.showOpenDialog(null);
-				filesB = fcB.getSelectedFiles();
-				// check that the same number of files was selected
-				if ( filesA.length != filesB.length ) { IJ.error("Same number of files must be selected for channels A and B!"); return; }
+		boolean twoChannels = (calculationTypeSelected=="cross" || calculationTypeSelected=="fused");
+
+		// open files
+		Java2.setSystemLookAndFeel();
+		JFileChooser fcA = new JFileChooser( OpenDialog.getLastDirectory() );
+		fcA.setMultiSelectionEnabled(true);
+		int returnVal = fcA.showOpenDialog(null);
+		filesA = fcA.getSelectedFiles();
+		File file0 = filesA[0];
+		OpenDialog.setLastDirectory( file0.getAbsolutePath() );
+
+		// select second channel data for cross-correlations
+		if  (format.getChannelsPerFile()==1 && twoChannels) {
+			JFileChooser fcB = new JFileChooser( OpenDialog.getLastDirectory() );
+			fcB.setMultiSelectionEnabled(true);
+			fcB.showOpenDialog(null);
+			filesB = fcB.getSelectedFiles();
+			// check that the same number of files was selected
+			if ( filesA.length != filesB.length ) { IJ.error("Same number of files must be selected for channels A and B!"); return; }
+		}
+
+		// select channel (A or B) in files with both channels for auto-correlations
+		if ( format.getChannelsPerFile()==2 && !twoChannels ) {
+			GenericDialog chSelector = new GenericDialog("Data channel");
+			String[] chTypes;
+			chTypes = new String[2];
+			chTypes[0] = "A";
+			chTypes[1] = "B";
+			chSelector.addChoice ("Channel", chTypes, chTypes[1]);
+			chSelector.showDialog();
+			if (chSelector.wasCanceled()) { return; }
+			chSelected = chSelector.getNextChoice();
+		}
+
+		double filesProgress=0, filesTotal;
+		filesTotal = filesA.length;
+		IJ.showProgress( filesProgress / filesTotal );	
+
+		// worker threads shared by all correlators; cascades are correlated in parallel
+		ForkJoinPool workerPool = new ForkJoinPool();
+
+		for (int ff=0; ff<filesA.length; ff++) { 
+			// open the data source: channel A, or channels A and B in one file or in two files
+			String channel = twoChannels ? "AB" : (chSelected=="B" ? "B" : "A");
+			File fileB = (twoChannels && format.getChannelsPerFile()==1) ? filesB[ff] : null;
+			PhotonSource source;
+			try {
+				String detected = PhotonSources.detect(filesA[ff]);
+				if (detected!=null && !detected.equals(dataTypeSelected)) { IJ.error(filesA[ff].getName()+" appears to be a "+detected+" file"); return; }
+				if (pie) { // detector 1 after the first pulse (channel 0) in A, detector 2 after the second (3) in B
+					int[][] routes = PieRouting.routes(PieRouting.histogram(filesA[ff], 1 << 22), new int[] {1, 2}, 2);
+					source = PhotonSources.openPIE(filesA[ff], routes, new int[] {0}, new int[] {3});
+				} else if (gates!=null) { // only the photons of the gates, decoded again each time
+					source = PhotonSources.openPT3(filesA[ff], channel, gates);
+				} else if (startTime>0 || endTime>0) { // events of the time window only
+					PhotonIndex index = PhotonIndex.open(dataTypeSelected, filesA[ff], fileB, channel, 1 << 20);
+					source = index.openWindow(startTime, (endTime>0) ? endTime : Double.POSITIVE_INFINITY);
+				} else {
+					source = useCache ? PhotonCache.open(dataTypeSelected, filesA[ff], fileB, channel) : format.open(filesA[ff], fileB, channel);
+				}
+			}
+			catch (IllegalArgumentException e) {IJ.error(e.getMessage()); return;}
+			catch (Throwable e) {IJ.error("Unable to open"+filesA[ff].getAbsolutePath()); return;}
+			if (source.getTimeResolution()!=dt) { // time resolution stated in the file header
+				dt = source.getTimeResolution();
+				plan = new CorrelatorPlan(t0, nc, np, dt, Math.max(ringSlots, 4*np));
+				timeArray = plan.getLagTimes();
 			}
 
-			// select channel (A or B) in the Confocor2 data for auto-correlations
-			if ( (dataTypeSelected=="Confocor2" && (calculationTypeSelected=="auto" || calculationTypeSelected=="autoHOmlt")) || 
-			     (dataTypeSelected=="PicoHarp pt3" && (calculationTypeSelected=="auto" || calculationTypeSelected=="autoHOmlt")) ) {
-				GenericDialog chSelector = new GenericDialog("Data channel");
-				String[] chTypes;
-				chTypes = new String[2];
-				chTypes[0] = "A";
-				chTypes[1] = "B";
-				chSelector.addChoice ("Channel", chTypes, chTypes[1]);
-				chSelector.showDialog();
-				if (chSelector.wasCanceled()) { return; }
-				chSelected = chSelector.getNextChoice();
+			// create the correlator and set the calculation parameters
+			Gmn cr;
+        			cr = new Gmn();
+			cr.setPlan(plan);
+			cr.setWorkerPool(workerPool);
+			cr.setSegmentation(workerPool, 1048576); // time segments of 2^20 events on separate threads
+			cr.setExpectedEvents(source.getHeader().getNofRecords()); // intensity trace for the whole file
+			cr.setDeadTime(Math.max(0, (long)Math.ceil(deadTimeNs*1e-9/dt-1e-6))); // whole time units that cover the dead time
+			cr.initializeGmn(calculationTypeSelected);
+
+			// blocks are decoded on a separate thread (EventPipeline) while the previous ones are correlated
+			new EventPipeline(cr, 4).run(source);
+			try { source.close(); }
+			catch (Throwable e) {IJ.error("Stream does not exist"); return;}
+			IJ.log(filesA[ff].getName()+" ("+dataTypeSelected+"): "+IJ.d2s(source.getDecodedBytes()*1e-6, 1)+" MB decoded at "+IJ.d2s(source.getDecodeRate()*1e-6, 1)+" MB/s");
+			if (cr.getRingOverruns()>0) { // pairs beyond the ring are missing
+				IJ.log(filesA[ff].getName()+": "+cr.getRingOverruns()+" lag searches reached the end of the ring; increase the ring depth");
 			}
 
-			double filesProgress=0, filesTotal;
-			filesTotal = filesA.length;
-			IJ.showProgress( filesProgress / filesTotal );	
-
-			for (int ff=0; ff<filesA.length; ff++) { 
-				// open data files: Channel A (or channel A and B)
-				try {inA = new FileInputStream( filesA[ff].getAbsolutePath());}
-				catch (Throwable e) {IJ.error("Unable to open"+filesA[ff].getAbsolutePath()); return;}
-				// open data files: Channel B (if stored as a separate file)
-				if  (dataTypeSelected=="Flex (8-bit)" && calculationTypeSelected=="cross") {
-					try {inB = new FileInputStream( filesB[ff].getAbsolutePath());}
-					catch (Throwable e) {IJ.error("Unable to open"+filesB[ff].getAbsolutePath()); return;}
+			if (!twoChannels && format.getChannelsPerFile()==1) {
+				legendAA = legendAA + filesA[ff].getName() + "\n"; 
+			} else if (!twoChannels) {
+				legendAA = legendAA + filesA[ff].getName() + " - Ch." + channel + "\n"; 
+			} else if (fileB!=null) {
+				legendAA = legendAA + filesA[ff].getName() + "\n"; 
+				legendBB = legendBB + filesB[ff].getName() + "\n"; 
+				legendAB = legendAB + filesA[ff].getName() + " x " + filesB[ff].getName() + "\n"; 
+				legendBA = legendBA + filesB[ff].getName() + " x " + filesA[ff].getName() + "\n"; 
+			} else {
+				legendAA = legendAA + filesA[ff].getName() + " - Ch.A\n"; 
+				legendBB = legendBB + filesA[ff].getName() + " - Ch.B\n"; 
+				legendAB = legendAB + filesA[ff].getName() + " - Ch.A x Ch.B\n"; 
+				legendBA = legendBA + filesA[ff].getName() + " - Ch.B x Ch.A\n"; 
+			}
+	
+			// plot correlation functions
+			if (calculationTypeSelected=="auto") {
+				Color clr = new Color( cB[kk], cG[kk], cR[kk]);
+				if (kk>2) {kk=0;} else {kk++;}
+				plotG11.setColor(clr);
+				plotG11.addPoints(timeArray, cr.getG11(), Plot.LINE);
+				if (autoscale  == true) {
+					plotG11.setLimits(timeArray[0], timeArray[(nc+1)*np-1], cr.getMin(cr.getG11()), cr.getMax(cr.getG11()));
 				}
-
-				// create the correlator and set the calculation parameters
-				Gmn cr;
-	        			cr = new Gmn();
-				cr.setParams(t0, nc,np);
-				
-				if (dataTypeSelected=="Flex (8-bit)" && calculationTypeSelected=="auto") {
-					cr.initializeGmn("auto");
-					cr.updateDataFlexOneCh(inA);
-					while (cr.getNofEvents()!=0) {  
-						cr.updateCorrAutoInt();
-						cr.updateIntensityTraceOneChInt();
-						cr.updateDataFlexOneCh(inA);
-            				}
-					 legendAA = legendAA + filesA[ff].getName() + "\n"; 
-				} else if (dataTypeSelected=="Confocor3" && calculationTypeSelected=="auto") {
-					cr.initializeGmn("auto");
-					cr.readHeaderConfocor3(inA);
-					cr.updateDataConfocor3OneCh(inA);
-					while (cr.getNofEvents()!=0) {  
-						cr.updateCorrAutoInt();
-						cr.updateIntensityTraceOneChInt();
-						cr.updateDataConfocor3OneCh(inA);
-            				}
-					 legendAA = legendAA + filesA[ff].getName() + "\n"; 
-				} else if (dataTypeSelected=="Confocor2" && calculationTypeSelected=="auto") {
-					cr.initializeGmn("auto");
-					if (chSelected=="A") {
-						cr.readHeaderConfocor2(inA);
-						cr.updateDataConfocor2chA(inA);
-						while (cr.getNofEvents()!=0) {  
-							cr.updateCorrAutoInt();
-							cr.updateIntensityTraceOneChInt();
-							cr.updateDataConfocor2chA(inA);
-            					}
-						legendAA = legendAA + filesA[ff].getName() + " - Ch.A\n"; 
-					}					
-					if (chSelected=="B") {
-						cr.readHeaderConfocor2(inA);
-						cr.updateDataConfocor2chB(inA);
-						while (cr.getNofEvents()!=0) {  
-							cr.updateCorrAutoInt();
-							cr.updateIntensityTraceOneChInt();
-							cr.updateDataConfocor2chB(inA);
-            					}
-						legendAA = legendAA + filesA[ff].getName() + " - Ch.B\n"; 
-					}					
-				} else if (dataTypeSelected=="PicoHarp pt3" && calculationTypeSelected=="auto") {
-					cr.initializeGmn("auto");
-					if (chSelected=="A") {
-						cr.readHeaderPicoHarpPT3(inA);
-						cr.updateDataPicoHarpPT3chA(inA);
-						while (cr.getNofEvents()!=0) {  
-							cr.updateCorrAutoInt();
-							cr.updateIntensityTraceOneChInt();
-							cr.updateDataPicoHarpPT3chA(inA);
-            					}
-						legendAA = legendAA + filesA[ff].getName() + " - Ch.A\n"; 
-					}					
-					if (chSelected=="B") {
-						cr.readHeaderPicoHarpPT3(inA);
-						cr.updateDataPicoHarpPT3chB(inA);
-						while (cr.getNofEvents()!=0) {  
-							cr.updateCorrAutoInt();
-							cr.updateIntensityTraceOneChInt();
-							cr.updateDataPicoHarpPT3chB(inA);
-            					}
-						legendAA = legendAA + filesA[ff].getName() + " - Ch.B\n"; 
-					}					
-				} else if (dataTypeSelected=="Flex (8-bit)" && calculationTypeSelected=="cross") {
-					cr.initializeGmn("cross");
-					cr.updateDataFlexTwoCh(inA, inB);
-					while (cr.getNofEvents()!=0) {  
-						cr.updateCorrCrossInt();
-						cr.updateIntensityTraceTwoChInt();
-						cr.updateDataFlexTwoCh(inA, inB);
-            				}
-					legendAA = legendAA + filesA[ff].getName() + "\n"; 
-					legendBB = legendBB + filesB[ff].getName() + "\n"; 
-					legendAB = legendAB + filesA[ff].getName() + " x " + filesB[ff].getName() + "\n"; 
-					legendBA = legendBA + filesB[ff].getName() + " x " + filesA[ff].getName() + "\n"; 
-				} else if (dataTypeSelected=="Confocor2" && calculationTypeSelected=="cross") {
-					cr.initializeGmn("cross");
-					cr.readHeaderConfocor2(inA);
-					cr.updateDataConfocor2chAB(inA);
-					while (cr.getNofEvents()!=0) {  
-						cr.updateCorrCrossInt();
-						cr.updateIntensityTraceTwoChInt();
-						cr.updateDataConfocor2chAB(inA);
-            				}
-					legendAA = legendAA + filesA[ff].getName() + " - Ch.A\n"; 
-					legendBB = legendBB + filesA[ff].getName() + " - Ch.B\n"; 
-					legendAB = legendAB + filesA[ff].getName() + " - Ch.A x Ch.B\n"; 
-					legendBA = legendBA + filesA[ff].getName() + " - Ch.B x Ch.A\n"; 
-				} else if (dataTypeSelected=="PicoHarp pt3" && calculationTypeSelected=="cross") {
-					cr.initializeGmn("cross");
-					cr.readHeaderPicoHarpPT3(inA);
-					cr.updateDataPicoHarpPT3chAB(inA);
-					while (cr.getNofEvents()!=0) {  
-						cr.updateCorrCrossInt();
-						cr.updateIntensityTraceTwoChInt();
-						cr.updateDataPicoHarpPT3chAB(inA);
-            				}
-					legendAA = legendAA + filesA[ff].getName() + " - Ch.A\n"; 
-					legendBB = legendBB + filesA[ff].getName() + " - Ch.B\n"; 
-					legendAB = legendAB + filesA[ff].getName() + " - Ch.A x Ch.B\n"; 
-					legendBA = legendBA + filesA[ff].getName() + " - Ch.B x Ch.A\n"; 
-				} else if (dataTypeSelected=="Flex (8-bit)" && calculationTypeSelected=="autoHOmlt") {
-					cr.initializeGmn("autoHOmlt");
-					cr.updateDataFlexOneCh(inA);
-					while (cr.getNofEvents()!=0) {  
-						cr.updateCorrAutoHOmltInt();
-						cr.updateIntensityTraceOneChInt();
-						cr.updateDataFlexOneCh(inA);
-            				}
-					 legendAA = legendAA + filesA[ff].getName() + "\n"; 
-				} else if (dataTypeSelected=="Confocor3" && calculationTypeSelected=="autoHOmlt") {
-					cr.initializeGmn("autoHOmlt");
-					cr.readHeaderConfocor3(inA);
-					cr.updateDataConfocor3OneCh(inA);
-					while (cr.getNofEvents()!=0) {  
-						cr.updateCorrAutoHOmltInt();
-						cr.updateIntensityTraceOneChInt();
-						cr.updateDataConfocor3OneCh(inA);
-            				}
-					 legendAA = legendAA + filesA[ff].getName() + "\n"; 
-				} else if (dataTypeSelected=="Confocor2" && calculationTypeSelected=="autoHOmlt") {
-					cr.initializeGmn("autoHOmlt");
-					if (chSelected=="A") {
-						cr.readHeaderConfocor2(inA);
-						cr.updateDataConfocor2chA(inA);
-						while (cr.getNofEvents()!=0) {  
-							cr.updateCorrAutoHOmltInt();
-							cr.updateIntensityTraceOneChInt();
-							cr.updateDataConfocor2chA(inA);
-            					}
-						legendAA = legendAA + filesA[ff].getName() + " - Ch.A\n"; 
-					}					
-					if (chSelected=="B") {
-						cr.readHeaderConfocor2(inA);
-						cr.updateDataConfocor2chB(inA);
-						while (cr.getNofEvents()!=0) {  
-							cr.updateCorrAutoHOmltInt();
-							cr.updateIntensityTraceOneChInt();
-							cr.updateDataConfocor2chB(inA);
-            					}
-						legendAA = legendAA + filesA[ff].getName() + " - Ch.B\n"; 
-					}					
-				} else if (dataTypeSelected=="PicoHarp pt3" && calculationTypeSelected=="autoHOmlt") {
-					cr.initializeGmn("autoHOmlt");
-					if (chSelected=="A") {
-						cr.readHeaderPicoHarpPT3(inA);
-						cr.updateDataPicoHarpPT3chA(inA);
-						while (cr.getNofEvents()!=0) {  
-							cr.updateCorrAutoHOmltInt();
-							cr.updateIntensityTraceOneChInt();
-							cr.updateDataPicoHarpPT3chA(inA);
-            					}
-						legendAA = legendAA + filesA[ff].getName() + " - Ch.A\n"; 
-					}					
-					if (chSelected=="B") {
-						cr.readHeaderPicoHarpPT3(inA);
-						cr.updateDataPicoHarpPT3chB(inA);
-						while (cr.getNofEvents()!=0) {  
-							cr.updateCorrAutoHOmltInt();
-							cr.updateIntensityTraceOneChInt();
-							cr.updateDataPicoHarpPT3chB(inA);
-            					}
-						legendAA = legendAA + filesA[ff].getName() + " - Ch.B\n"; 
-					}					
-				} else {
-					// not implemented
-					return;
+				plotG11.setColor("black");
+				plotG11.addLegend(legendAA);
+				plotG11.updateImage();
+				plotInt.setColor(clr);
+				traceX = cr.getIntensityTraceX();
+				for (ii=0; ii<cr.getIntensityTracePosition(); ii++) { traceX[ii] = traceX[ii]*dt;}
+				traceYA = cr.getIntensityTraceYA();
+				for (ii=0; ii<cr.getIntensityTracePosition(); ii++) { traceYA[ii] = traceYA[ii]/dt;}
+				plotInt.addPoints(traceX, traceYA, Plot.LINE);
+				plotInt.setLimits(cr.getMin(traceX), cr.getMax(traceX), cr.getMin(traceYA), cr.getMax(traceYA));
+				filesProgress = filesProgress+1;
+				IJ.showProgress( filesProgress / filesTotal );
+			} else if (calculationTypeSelected=="cross" || calculationTypeSelected=="fused") {
+				Color clr = new Color( cB[kk], cG[kk], cR[kk]);
+				if (kk>2) {kk=0;} else {kk++;}
+				plotGaa.setColor(clr);
+				plotGaa.addPoints(timeArray, cr.getGaa(), Plot.LINE);
+				if (autoscale  == true) {
+					plotGaa.setLimits( timeArray[0], timeArray[(nc+1)*np-1], cr.getMin(cr.getGaa()), cr.getMax(cr.getGaa()));
 				}
-		
-				// plot correlation functions
-				if (calculationTypeSelected=="auto") {
-					Color clr = new Color( cB[kk], cG[kk], cR[kk]);
-					if (kk>2) {kk=0;} else {kk++;}
-					plotG11.setColor(clr);
-					plotG11.addPoints(timeArray, cr.getG11(), Plot.LINE);
-					if (autoscale  == true) {
-						plotG11.setLimits(timeArray[0], timeArray[(nc+1)*np-1], cr.getMin(cr.getG11()), cr.getMax(cr.getG11()));
-					}
-					plotG11.setColor("black");
-					plotG11.addLegend(legendAA);
-					plotG11.updateImage();
-					plotInt.setColor(clr);
-					traceX = cr.getIntensityTraceX();
-					for (ii=0; ii<cr.getIntensityTracePosition(); ii++) { traceX[ii] = traceX[ii]*dt;}
-					traceYA = cr.getIntensityTraceYA();
-					for (ii=0; ii<cr.getIntensityTracePosition(); ii++) { traceYA[ii] = traceYA[ii]/dt;}
-					plotInt.addPoints(traceX, traceYA, Plot.LINE);
-					plotInt.setLimits(cr.getMin(traceX), cr.getMax(traceX), cr.getMin(traceYA), cr.getMax(traceYA));
-					filesProgress = filesProgress+1;
-					IJ.showProgress( filesProgress / filesTotal );
-				} else if (calculationTypeSelected=="cross") {
-					Color clr = new Color( cB[kk], cG[kk], cR[kk]);
-					if (kk>2) {kk=0;} else {kk++;}
-					plotGaa.setColor(clr);
-					plotGaa.addPoints(timeArray, cr.getGaa(), Plot.LINE);
-					if (autoscale  == true) {
-						plotGaa.setLimits( timeArray[0], timeArray[(nc+1)*np-1], cr.getMin(cr.getGaa()), cr.getMax(cr.getGaa()));
-					}
-					plotGaa.setColor("black");
-					plotGaa.addLegend(legendAA);
-					plotGaa.updateImage();
-					plotGbb.setColor(clr);
-					plotGbb.addPoints(timeArray, cr.getGbb(), Plot.LINE);
-					if (autoscale  == true) {
-						plotGbb.setLimits( timeArray[0], timeArray[(nc+1)*np-1], cr.getMin(cr.getGbb()), cr.getMax(cr.getGbb()));
-					}
-					plotGbb.setColor("black");
-					plotGbb.addLegend(legendBB);
-					plotGbb.updateImage();
-					plotGab.setColor(clr);
-					plotGab.addPoints(timeArray, cr.getGab(), Plot.LINE);
-					if (autoscale  == true) {
-						plotGab.setLimits( timeArray[0], timeArray[(nc+1)*np-1], cr.getMin(cr.getGab()), cr.getMax(cr.getGab()));
-					}
-					plotGab.setColor("black");
-					plotGab.addLegend(legendAB);
-					plotGab.updateImage();
-					plotGba.setColor(clr);
-					plotGba.addPoints(timeArray, cr.getGba(), Plot.LINE);
-					if (autoscale  == true) {
-						plotGba.setLimits( timeArray[0], timeArray[(nc+1)*np-1], cr.getMin(cr.getGba()), cr.getMax(cr.getGba()));
-					}
-					plotGba.setColor("black");
-					plotGba.addLegend(legendBA);
-					plotGba.updateImage();
-
-					plotIntA.setColor(clr);
-					traceX = cr.getIntensityTraceX();
-					for (ii=0; ii<cr.getIntensityTracePosition(); ii++) { traceX[ii] = traceX[ii]*dt;}
-					traceYA = cr.getIntensityTraceYA();
-					for (ii=0; ii<cr.getIntensityTracePosition(); ii++) { traceYA[ii] = traceYA[ii]/dt;}
-					plotIntA.addPoints(traceX, traceYA, Plot.LINE);
-					plotIntA.setLimits(cr.getMin(traceX), cr.getMax(traceX), cr.getMin(traceYA), cr.getMax(traceYA));
-					
-					plotIntB.setColor(clr);
-					traceYB = cr.getIntensityTraceYB();
-					for (ii=0; ii<cr.getIntensityTracePosition(); ii++) { traceYB[ii] = traceYB[ii]/dt;}
-					plotIntB.addPoints(traceX, traceYB, Plot.LINE);
-					plotIntB.setLimits(cr.getMin(traceX), cr.getMax(traceX), cr.getMin(traceYB), cr.getMax(traceYB));
-					filesProgress = filesProgress+1;
-					IJ.showProgress( filesProgress / filesTotal );
-				} else if (calculationTypeSelected=="autoHOmlt") {
-					Color clr = new Color( cB[kk], cG[kk], cR[kk]);
-					if (kk>2) {kk=0;} else {kk++;}
-
-					plotG11.setColor(clr);
-					plotG11.addPoints(timeArray, cr.getG11(), Plot.LINE);
-					if (autoscale  == true) {
-						plotG11.setLimits(timeArray[0], timeArray[(nc+1)*np-1], cr.getMin(cr.getG11()), cr.getMax(cr.getG11()));
-					}
-					plotG11.setColor("black");
-					plotG11.addLegend(legendAA);
-					plotG11.updateImage();
-					plotInt.setColor(clr);
-
+				plotGaa.setColor("black");
+				plotGaa.addLegend(legendAA);
+				plotGaa.updateImage();
+				plotGbb.setColor(clr);
+				plotGbb.addPoints(timeArray, cr.getGbb(), Plot.LINE);
+				if (autoscale  == true) {
+					plotGbb.setLimits( timeArray[0], timeArray[(nc+1)*np-1], cr.getMin(cr.getGbb()), cr.getMax(cr.getGbb()));
+				}
+				plotGbb.setColor("black");
+				plotGbb.addLegend(legendBB);
+				plotGbb.updateImage();
+				plotGab.setColor(clr);
+				plotGab.addPoints(timeArray, cr.getGab(), Plot.LINE);
+				if (autoscale  == true) {
+					plotGab.setLimits( timeArray[0], timeArray[(nc+1)*np-1], cr.getMin(cr.getGab()), cr.getMax(cr.getGab()));
+				}
+				plotGab.setColor("black");
+				plotGab.addLegend(legendAB);
+				plotGab.updateImage();
+				plotGba.setColor(clr);
+				plotGba.addPoints(timeArray, cr.getGba(), Plot.LINE);
+				if (autoscale  == true) {
+					plotGba.setLimits( timeArray[0], timeArray[(nc+1)*np-1], cr.getMin(cr.getGba()), cr.getMax(cr.getGba()));
+				}
+				plotGba.setColor("black");
+				plotGba.addLegend(legendBA);
+				plotGba.updateImage();
+
+				plotIntA.setColor(clr);
+				traceX = cr.getIntensityTraceX();
+				for (ii=0; ii<cr.getIntensityTracePosition(); ii++) { traceX[ii] = traceX[ii]*dt;}
+				traceYA = cr.getIntensityTraceYA();
+				for (ii=0; ii<cr.getIntensityTracePosition(); ii++) { traceYA[ii] = traceYA[ii]/dt;}
+				plotIntA.addPoints(traceX, traceYA, Plot.LINE);
+				plotIntA.setLimits(cr.getMin(traceX), cr.getMax(traceX), cr.getMin(traceYA), cr.getMax(traceYA));
+				
+				plotIntB.setColor(clr);
+				traceYB = cr.getIntensityTraceYB();
+				for (ii=0; ii<cr.getIntensityTracePosition(); ii++) { traceYB[ii] = traceYB[ii]/dt;}
+				plotIntB.addPoints(traceX, traceYB, Plot.LINE);
+				plotIntB.setLimits(cr.getMin(traceX), cr.getMax(traceX), cr.getMin(traceYB), cr.getMax(traceYB));
+
+				// high order functions of channel A (g11 is the same as gaa)
+				if (calculationTypeSelected=="fused") {
 					plotG12.setColor(clr);
 					plotG12.addPoints(timeArray, cr.getG12(), Plot.LINE);
 					if (autoscale  == true) {
@@ -556,29 +480,81 @@ public class FCS_calc extends PlugInFrame {
 					plotG22.setColor("black");
 					plotG22.addLegend(legendAA);
 					plotG22.updateImage();
-
-					plotInt.setColor(clr);
-					traceX = cr.getIntensityTraceX();
-					for (ii=0; ii<cr.getIntensityTracePosition(); ii++) { traceX[ii] = traceX[ii]*dt;}
-					traceYA = cr.getIntensityTraceYA();
-					for (ii=0; ii<cr.getIntensityTracePosition(); ii++) { traceYA[ii] = traceYA[ii]/dt;}
-					plotInt.addPoints(traceX, traceYA, Plot.LINE);
-					plotInt.setLimits(cr.getMin(traceX), cr.getMax(traceX), cr.getMin(traceYA), cr.getMax(traceYA));
-					filesProgress = filesProgress+1;
-					IJ.showProgress( filesProgress / filesTotal );
 				}
-	
-				try { inA.close(); }
-				catch (Throwable e) {IJ.error("Stream does not exist"); return;}
-				if (dataTypeSelected=="Flex (8-bit)" && calculationTypeSelected=="cross") {
-					try { inB.close(); }
-					catch (Throwable e) {IJ.error("Stream does not exist"); return;}
+				filesProgress = filesProgress+1;
+				IJ.showProgress( filesProgress / filesTotal );
+			} else if (calculationTypeSelected=="autoHOmlt") {
+				Color clr = new Color( cB[kk], cG[kk], cR[kk]);
+				if (kk>2) {kk=0;} else {kk++;}
+
+				plotG11.setColor(clr);
+				plotG11.addPoints(timeArray, cr.getG11(), Plot.LINE);
+				if (autoscale  == true) {
+					plotG11.setLimits(timeArray[0], timeArray[(nc+1)*np-1], cr.getMin(cr.getG11()), cr.getMax(cr.getG11()));
 				}
-				
+				plotG11.setColor("black");
+				plotG11.addLegend(legendAA);
+				plotG11.updateImage();
+				plotInt.setColor(clr);
+
+				plotG12.setColor(clr);
+				plotG12.addPoints(timeArray, cr.getG12(), Plot.LINE);
+				if (autoscale  == true) {
+					plotG12.setLimits(timeArray[0], timeArray[(nc+1)*np-1], cr.getMin(cr.getG12()), cr.getMax(cr.getG12()));
+				}
+				plotG12.setColor("black");
+				plotG12.addLegend(legendAA);
+				plotG12.updateImage();
+
+				plotG21.setColor(clr);
+				plotG21.addPoints(timeArray, cr.getG21(), Plot.LINE);
+				if (autoscale  == true) {
+					plotG21.setLimits(timeArray[0], timeArray[(nc+1)*np-1], cr.getMin(cr.getG21()), cr.getMax(cr.getG21()));
+				}
+				plotG21.setColor("black");
+				plotG21.addLegend(legendAA);
+				plotG21.updateImage();
+
+				plotG13.setColor(clr);
+				plotG13.addPoints(timeArray, cr.getG13(), Plot.LINE);
+				if (autoscale  == true) {
+					plotG13.setLimits(timeArray[0], timeArray[(nc+1)*np-1], cr.getMin(cr.getG13()), cr.getMax(cr.getG13()));
+				}
+				plotG13.setColor("black");
+				plotG13.addLegend(legendAA);
+				plotG13.updateImage();
+
+				plotG31.setColor(clr);
+				plotG31.addPoints(timeArray, cr.getG31(), Plot.LINE);
+				if (autoscale  == true) {
+					plotG31.setLimits(timeArray[0], timeArray[(nc+1)*np-1], cr.getMin(cr.getG31()), cr.getMax(cr.getG31()));
+				}
+				plotG31.setColor("black");
+				plotG31.addLegend(legendAA);
+				plotG31.updateImage();
+
+				plotG22.setColor(clr);
+				plotG22.addPoints(timeArray, cr.getG22(), Plot.LINE);
+				if (autoscale  == true) {
+					plotG22.setLimits(timeArray[0], timeArray[(nc+1)*np-1], cr.getMin(cr.getG22()), cr.getMax(cr.getG22()));
+				}
+				plotG22.setColor("black");
+				plotG22.addLegend(legendAA);
+				plotG22.updateImage();
+
+				plotInt.setColor(clr);
+				traceX = cr.getIntensityTraceX();
+				for (ii=0; ii<cr.getIntensityTracePosition(); ii++) { traceX[ii] = traceX[ii]*dt;}
+				traceYA = cr.getIntensityTraceYA();
+				for (ii=0; ii<cr.getIntensityTracePosition(); ii++) { traceYA[ii] = traceYA[ii]/dt;}
+				plotInt.addPoints(traceX, traceYA, Plot.LINE);
+				plotInt.setLimits(cr.getMin(traceX), cr.getMax(traceX), cr.getMin(traceYA), cr.getMax(traceYA));
+				filesProgress = filesProgress+1;
+				IJ.showProgress( filesProgress / filesTotal );
 			}
-		} else {		// not implemented
-			return;
+
 		}
+		workerPool.shutdown();
 		
 	}
 }
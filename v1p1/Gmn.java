@@ -17,28 +17,103 @@
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class Gmn {
 
+    // cumulative inter-arrival time of ring slots that hold no bin yet;
+    // larger than any lag and far from overflow when iat values are added to it
+    private static final long RING_EMPTY = Long.MAX_VALUE/4;
+
+    // PicoHarp T2 records: time tags of 28 bits (4 ps) that wrap after this many units
+    private static final long PT2_WRAPAROUND = 210698240;
+
+    // record types of PicoQuant unified TTTR (.ptu) files (header tag TTResultFormat_TTTRRecType)
+    private static final int PTU_PICOHARP_T2 = 0x00010203;
+    private static final int PTU_PICOHARP_T3 = 0x00010303;
+    private static final int PTU_HYDRAHARP_T2 = 0x00010204;     // HydraHarp V1
+    private static final int PTU_HYDRAHARP_T3 = 0x00010304;
+    private static final int PTU_HYDRAHARP2_T2 = 0x01010204;    // HydraHarp V2 (same layout as the ones below)
+    private static final int PTU_HYDRAHARP2_T3 = 0x01010304;
+    private static final int PTU_TIMEHARP260N_T2 = 0x00010205;
+    private static final int PTU_TIMEHARP260N_T3 = 0x00010305;
+    private static final int PTU_TIMEHARP260P_T2 = 0x00010206;
+    private static final int PTU_TIMEHARP260P_T3 = 0x00010306;
+    private static final int PTU_MULTIHARP_T2 = 0x00010207;
+    private static final int PTU_MULTIHARP_T3 = 0x00010307;
+
+    // channel selections of the Confocor2 decoder and its tables indexed by the flag byte
+    private static final int CONFOCOR2_A = 0;
+    private static final int CONFOCOR2_B = 1;
+    private static final int CONFOCOR2_AB = 2;
+    private static final int[][] CONFOCOR2_COUNT = confocor2Tables(0);    // photons in a record
+    private static final int[][] CONFOCOR2_SLOT = confocor2Tables(1);     // sub-interval of each photon
+    private static final int[][] CONFOCOR2_WEIGHT_A = confocor2Tables(2); // 1 - channel A, 0 - channel B
+
     // parameters for correlation function calculation
     private int t0=1;     // lowest time base value
     private int nc=16;     // number of cascades
     private int np=16;     // number of points in a cascade
+    private CorrelatorPlan plan = new CorrelatorPlan(t0, nc, np); // lag schedule
 
     // data arrays and array sizes for both channels
-    private byte[] bufferInA;
-    private byte[] bufferInB;
-    private int bufferInSizeA;
+    private MappedByteBuffer bufferInA; // window of the input file mapped from the page cache (ch. A)
+    private MappedByteBuffer bufferInB; // window of the input file mapped from the page cache (ch. B)
+    private int bufferInSizeA;          // bytes in the current window (-1 - end of file)
     private int bufferInSizeB;
+    private long windowStartA;          // file offset of the current window (ch. A)
+    private long windowStartB;          // file offset of the current window (ch. B)
+    private int inputWindowSize = 1<<24; // bytes mapped at a time (a multiple of the record sizes)
+    private long bytesDecoded;          // bytes of input data handed to the decoders
+    private long decodeTime;            // time spent in the decoders (ns)
+    private PhotonHeader header;        // header of the input file (readHeader*); null - not read
+    private int traceCapacity = 32768;  // intensity trace entries allocated by initializeGmn (setExpectedEvents)
+
+    // layout of the records of a .ptu file (readHeaderPTU); a record is looked up in the
+    // tables by its row: the bits above the time tag (channel, with the special bit)
+    private int ptuRecordType;          // TTResultFormat_TTTRRecType
+    private int ptuRowShift;            // record>>>ptuRowShift is the row
+    private int ptuTagMask;             // time tag (T2) or number of sync pulses (T3)
+    private int ptuOverflowZeroMask;    // bits that must be 0 for an overflow (the others are markers)
+    private int ptuOverflowCount;       // -1 - the time tag of an overflow counts the overflows, 0 - one each
+    private long ptuWrap;               // time units of one overflow
+    private int ptuFirstDetectorRow;    // row of detector channel 1
+    private int ptuDetectors;           // detector channels of the layout
+    private int ptuSyncRow;             // row of the sync input (T2); -1 - none
+    private int[] ptuOverflow = new int[128];   // 1 - overflow row
+    private int[] ptuKeep = new int[128];       // 1 - photon of channel A or B
+    private int[] ptuRouteA = new int[128];     // weight of channel A
+    private int[] ptuRouteB = new int[128];     // weight of channel B
+    private long ptuOverflowTime;       // time of all overflows so far
+
+    // microtime routes of the PicoHarp T3 decoders (setMicrotimeRoutes, setMicrotimeGates),
+    // looked up by record>>>16: the channel nibble above the 12-bit dtime of a record
+    private boolean[] gateKeep;         // photon kept by the chA, chB and chAB decoders; null - no routes
+    private long[] gateTags;            // virtual channels of a photon (bit c - channel c)
+    private int[] gateRoute;            // channels A (1) and B (2) of a photon (updateDataPicoHarpPT3routed)
+
+    // dead time of the "autoHOmlt" mode (setDeadTime)
+    private long deadTime;              // time units; 0 - photons are used as recorded
+    private long deadTimeElapsed;       // time since the last photon of channel A (up to deadTime)
+    private int[] wDeadTime;            // weights of channel A after the dead time (applyDeadTime)
 
     // photon arrays used in correlation
-    private int[] photonsIat;   // interarrival times
+    private long[] photonsIat;  // interarrival times
     private int[] wAint;        // integer weights (channel A)
     private int[] wBint;        // integer weights (channel B)
-    private int iatA;           // current inter-arrival time (ch. A)
-    private int iatB;           // current inter-arrival time (ch. B)
+    private long[] eventTags;   // channels of each event (bit c - channel c; "multi") or the
+                                // detector and dtime of its photon ("flcs"); null in other modes
+    private long iatA;          // current inter-arrival time (ch. A)
+    private long iatB;          // current inter-arrival time (ch. B)
     private int nEvents;        // current number of events in photonsIat
     
     // calculated correlation function values
@@ -54,33 +129,43 @@ public class Gmn {
     private double[] gBA; // auto and cross-correlations
     private double[] gBB; // auto and cross-correlations
 
+    // normalization of the correlation functions
+    private String correlationMode;     // correlation type selected in initializeGmn
+    private boolean gUpToDate;          // true if gXX reflect all accumulated data
+    private int normalizationInterval;  // blocks between automatic normalizations (0 - on request only)
+    private int blocksSinceNormalization; // blocks accumulated since the last normalization
+
     // internal parameters used in data processing
     private int evA;            // trackers for event numbers in
     private int evB;            // data blocks read from files
     private int ccA;            // trackers for event numbers in 
     private int ccB;            // data blocks obtained from custom hardware
-    private int[] ciatarray;    // array of cumulative inter-arrival times
+    private long[] ciatarray;   // array of cumulative inter-arrival times (bin times with absoluteTimestamps)
+    private boolean absoluteTimestamps; // ring engine: false - cumulative iats updated during the search, true - absolute bin times
     private int[] wAintArray;   // corresponding array of weights (channel A) 
     private int[] wBintArray;   // corresponding array of weights (channel B)
-    private int[] mta;          // current mta values for each cascade
-    private int[] iatnew;       // current inter-arrival time for each cascade
+    private long[] mta;         // current mta values for each cascade
+    private long[] iatnew;      // current inter-arrival time for each cascade
     private int[] wAintTemp;    // current bin weights for each cascade (channel A)
     private int[] wBintTemp;    // current bin weights for each cascade (channel B)
-    private byte[] sp;           // stop index for each cascade
+    private int[] sp;           // stop index (ring slot) for each cascade
+    private long[] ringOverruns; // bins whose lag search reached the end of the ring, for each cascade
     
-    private double[] tlast;     // last mta value for each cascade
-    private double[] wAtotal;   // total number of photons for each cascade (channel A)
-    private double[] wAtotal2;   // total number of photons for each cascade (channel A) ^2
-    private double[] wAtotal3;   // total number of photons for each cascade (channel A) ^3
-    private double[] wBtotal;   // total number of photons for each cascade (channel B)
-    private double[] s01a;      // right normalization constant (ch. A)
-    private double[] s01b;      // right normalization constant (ch. B)
-    private double[] s11aa;     // correlation function values (not normalized)
-    private double[] s11bb;     // correlation function values (not normalized)
-    private double[] s11ab;     // correlation function values (not normalized)
-    private double[] s11ba;     // correlation function values (not normalized)
-
-    private double[] s02a;      // higher order moments (ch. A)
+    // sums of integer weights up to the second power are kept in long and are exact;
+    // higher powers may exceed the long range for coarse bins and are kept in double
+    private long[] tlast;       // last mta value for each cascade
+    private long[] wAtotal;     // total number of photons for each cascade (channel A)
+    private long[] wAtotal2;    // total number of photons for each cascade (channel A) ^2
+    private double[] wAtotal3;  // total number of photons for each cascade (channel A) ^3
+    private long[] wBtotal;     // total number of photons for each cascade (channel B)
+    private long[] s01a;        // right normalization constant (ch. A)
+    private long[] s01b;        // right normalization constant (ch. B)
+    private long[] s11aa;       // correlation function values (not normalized)
+    private long[] s11bb;       // correlation function values (not normalized)
+    private long[] s11ab;       // correlation function values (not normalized)
+    private long[] s11ba;       // correlation function values (not normalized)
+
+    private long[] s02a;        // higher order moments (ch. A)
     private double[] s03a;      // higher order moments (ch. A)
     private double[] s12aa;     // correlation function values (not normalized)
     private double[] s21aa;     // correlation function values (not normalized)
@@ -88,6 +173,57 @@ public class Gmn {
     private double[] s31aa;     // correlation function values (not normalized)
     private double[] s22aa;     // correlation function values (not normalized)
 
+    // moment products accumulated in the "fused" mode
+    private String[] fusedFunctions = {"gAA", "gBB", "gAB", "gBA", "g12", "g21", "g13", "g31", "g22"};
+    private int[] productIndex;     // product number for each (early, late) weight power pair
+    private int[] productEarly;     // weight power of the earlier bin (4*channel+power)
+    private int[] productLate;      // weight power of the later bin (4*channel+power)
+    private double[][] sProduct;    // correlation function values (not normalized) for each product
+    private long[][] wPowEarly;     // powers of the weights of the earlier bin (cascade, 4*channel+power)
+    private long[][] wPowLate;      // powers of the weights of the later bin (cascade, 4*channel+power)
+
+    // correlation of channel pairs of tagged events ("multi"); the weights of the channels
+    // that appear in a pair (used channels) are kept side by side for each bin
+    private int nMultiChannels = 2;   // channels of the tags (1 to 64)
+    private int[] pairEarly;          // channel of the earlier bin of each pair (null - all pairs)
+    private int[] pairLate;           // channel of the later bin of each pair
+    private int[] usedChannels;       // channels that appear in a pair, in ascending order
+    private int[] pairEarlyIndex;     // position of pairEarly in usedChannels
+    private int[] pairLateIndex;      // position of pairLate in usedChannels
+    private int[] wMultiArray;        // weights of each ring slot (slot*nUsed+used channel)
+    private int[] wMultiTemp;         // current bin weights for each cascade (cascade*nUsed+used channel)
+    private long[] wMultiTotal;       // total number of photons for each cascade (cascade*nUsed+used channel)
+    private long[] s01multi;          // right normalization constants (used channel*lags+lag)
+    private long[] s11multi;          // correlation function values, not normalized (lag*nPairs+pair)
+    private double[][] gMulti;        // correlation function of each pair
+    private int[][] activePairs;      // scratch list of the pairs with photons in a closed bin (cascade)
+    private int[] wMultiSum;          // weights before each event of the block (used channel*(capacity+1)+event)
+
+    // lifetime-filtered correlation ("flcs"): an event holds the detector and dtime of its
+    // photon (detector<<12 | dtime) and each filter weighs the photons of one detector
+    // by their dtime; the filters are the channels of the pair bookkeeping of "multi"
+    private int[] filterDetector;     // detector of each filter
+    private double[][] filterWeight;  // weight of each dtime bin (4096) for each filter
+    private double[] wFlcsArray;      // weights of each ring slot (slot*nUsed+used filter)
+    private double[] wFlcsTemp;       // current bin weights for each cascade (cascade*nUsed+used filter)
+    private double[] wFlcsTotal;      // total weight for each cascade (cascade*nUsed+used filter)
+    private double[] s01flcs;         // right normalization constants (used filter*lags+lag)
+    private double[] s11flcs;         // correlation function values, not normalized (lag*nPairs+pair)
+    private double[] wFlcsEvent;      // weight of each event of the block (used filter*capacity+event)
+    private double[] wFlcsSum;        // weights before each event of the block (used filter*(capacity+1)+event)
+
+    // parallel correlation of the cascades
+    private ForkJoinPool workerPool;    // worker threads (null - cascades are correlated in the calling thread)
+    private boolean ownsWorkerPool;     // true if workerPool was created by setParallelism
+    private int cascadesPerTask = 1;    // largest group of cascades handed to one worker
+    private SegmentCorrelator segments; // time segments correlated on separate threads (null - not used)
+    private boolean eventsCorrelated;   // the cascades hold events correlated since initializeGmn
+
+    // block-wide event schedule shared by all cascades (see scheduleBlock)
+    private long[] eventTime;   // arrival time of each event from the start of the block (eventTime[ev+1])
+    private int[] wAsum;        // sum of the weights of the events before each event (ch. A)
+    private int[] wBsum;        // sum of the weights of the events before each event (ch. B)
+
     private double countrateA;  // averagecountrate for all data (ch. A)
     private double countrateB;  // average countrate for all data (ch. B)
     
@@ -103,108 +239,144 @@ public class Gmn {
     private int binSize;    // determines number of bins in photonsIat
     private double macroTime;   // macro time value from the start of experiment
     
+    public void initializeDecoder(int nChannels) {
+        // prepare this Gmn only for decoding (updateData*) into event blocks of one
+        // (A) or two (A and B) channels, without the correlator state (PhotonSource)
+        bytesDecoded = 0;
+        decodeTime = 0;
+        header = null;
+        evA = 32769;
+        evB = 32769;
+        ccA = 0;
+        bufferInA = null;
+        bufferInSizeA = 0;
+        bufferInB = null;
+        bufferInSizeB = 0;
+        iatA=0;
+        iatB=0;
+        photonsIat = new long[32768];
+        wAint = new int[32768];
+        wBint = (nChannels==2) ? new int[32768] : null;
+        nEvents=0;
+    }
+
     public int initializeGmn(String correlationType) {
         int ff=0;
+        if (correlationType=="flcs" && (filterWeight==null || filterWeight.length!=nMultiChannels)) {
+            throw new IllegalStateException("The lifetime filters are not set (setLifetimeFilters)");
+        }
+        bytesDecoded = 0;
+        decodeTime = 0;
+        header = null;
+        eventsCorrelated = false;
+        ringOverruns = new long[nc];
         try {
             if (correlationType=="auto") {
+                correlationMode = "auto";
+                gUpToDate = true;
+                blocksSinceNormalization = 0;
                 evA = 32769;
                 evB = 32769;
                 ccA = 0;
-                bufferInA = new byte[32768];
-                bufferInSizeA = 32768;                
+                bufferInA = null;
+                bufferInSizeA = 0;                
                 iatA=0;
-                photonsIat = new int[32768];
+                photonsIat = new long[32768];
                 wAint = new int[32768];
                 wBint = null;
                 nEvents=0;
-                ciatarray = new int[256*nc];
-                for (int kk=0; kk<256*nc; kk++) {ciatarray[kk]=10000;}
-                wAintArray = new int[256*nc];
-                mta = new int[nc];
-                iatnew = new int[nc];
+                ciatarray = new long[plan.ringLength];
+                for (int kk=0; kk<plan.ringLength; kk++) {ciatarray[kk]=absoluteTimestamps ? -RING_EMPTY : RING_EMPTY;}
+                wAintArray = new int[plan.ringLength];
+                mta = new long[nc];
+                iatnew = new long[nc];
                 wAintTemp = new int[nc];
-                sp = new byte[nc];
-                for (byte k:sp) {k=-128;}
+                sp = new int[nc];
 
                 g11 = new double[np*(nc+1)];
                 for (int kk=0; kk<np*(nc+1); kk++) {g11[kk]=0;}
-                tlast = new double[nc];
-                wAtotal = new double[nc];
-                s01a = new double[np*(nc+1)];
-                s11aa = new double[np*(nc+1)];
+                tlast = new long[nc];
+                wAtotal = new long[nc];
+                s01a = new long[np*(nc+1)];
+                s11aa = new long[np*(nc+1)];
 
-                intensityTraceX = new double[32768];
-                intensityTraceYA = new double[32768];
+                intensityTraceX = new double[traceCapacity];
+                intensityTraceYA = new double[traceCapacity];
                 intensityTracePosition = 0;
                 binSize = 4096; // so that there are 32768/4096 = 8 bins
                 macroTime = 0;
 
                 return ff=1;
             } else if (correlationType=="cross") {
+                correlationMode = "cross";
+                gUpToDate = true;
+                blocksSinceNormalization = 0;
                 evA = 32769;
                 evB = 32769;
-                bufferInA = new byte[32768];
-                bufferInSizeA = 32768;                
-                bufferInB = new byte[32768];
-                bufferInSizeB = 32768;                
+                bufferInA = null;
+                bufferInSizeA = 0;                
+                bufferInB = null;
+                bufferInSizeB = 0;                
                 iatA=0;
                 iatB=0;
-                photonsIat = new int[32768];
+                photonsIat = new long[32768];
                 wAint = new int[32768];
                 wBint = new int[32768];
                 nEvents=0;
-                ciatarray = new int[256*nc];
-                for (int kk=0; kk<256*nc; kk++) {ciatarray[kk]=10000;}
-                wAintArray = new int[256*nc];
-                wBintArray = new int[256*nc];
-                mta = new int[nc];
-                iatnew = new int[nc];
+                ciatarray = new long[plan.ringLength];
+                for (int kk=0; kk<plan.ringLength; kk++) {ciatarray[kk]=absoluteTimestamps ? -RING_EMPTY : RING_EMPTY;}
+                wAintArray = new int[plan.ringLength];
+                wBintArray = new int[plan.ringLength];
+                mta = new long[nc];
+                iatnew = new long[nc];
                 wAintTemp = new int[nc];
                 wBintTemp = new int[nc];
-                sp = new byte[nc];
-                for (byte k:sp) {k=-128;}
+                sp = new int[nc];
 
                 gAA = new double[np*(nc+1)];
                 gAB = new double[np*(nc+1)];
                 gBA = new double[np*(nc+1)];
                 gBB = new double[np*(nc+1)];
-                tlast = new double[nc];
-                wAtotal = new double[nc];
-                wBtotal = new double[nc];
-                s01a = new double[np*(nc+1)];
-                s01b = new double[np*(nc+1)];
-                s11aa = new double[np*(nc+1)];
-                s11ab = new double[np*(nc+1)];
-                s11ba = new double[np*(nc+1)];
-                s11bb = new double[np*(nc+1)];
-
-                intensityTraceX = new double[32768];
-                intensityTraceYA = new double[32768];
-                intensityTraceYB = new double[32768];
+                tlast = new long[nc];
+                wAtotal = new long[nc];
+                wBtotal = new long[nc];
+                s01a = new long[np*(nc+1)];
+                s01b = new long[np*(nc+1)];
+                s11aa = new long[np*(nc+1)];
+                s11ab = new long[np*(nc+1)];
+                s11ba = new long[np*(nc+1)];
+                s11bb = new long[np*(nc+1)];
+
+                intensityTraceX = new double[traceCapacity];
+                intensityTraceYA = new double[traceCapacity];
+                intensityTraceYB = new double[traceCapacity];
                 intensityTracePosition = 0;
                 binSize = 4096; // so that there are 32768/4096 = 8 bins
                 macroTime = 0;
 
                 return ff=1;
             } else if (correlationType=="autoHOmlt") {
+                correlationMode = "autoHOmlt";
+                deadTimeElapsed = deadTime; // the first photon is kept
+                gUpToDate = true;
+                blocksSinceNormalization = 0;
                 evA = 32769;
                 evB = 32769;
                 ccA = 0;
-                bufferInA = new byte[32768];
-                bufferInSizeA = 32768;                
+                bufferInA = null;
+                bufferInSizeA = 0;                
                 iatA=0;
-                photonsIat = new int[32768];
+                photonsIat = new long[32768];
                 wAint = new int[32768];
                 wBint = null;
                 nEvents=0;
-                ciatarray = new int[256*nc];
-                for (int kk=0; kk<256*nc; kk++) {ciatarray[kk]=10000;}
-                wAintArray = new int[256*nc];
-                mta = new int[nc];
-                iatnew = new int[nc];
+                ciatarray = new long[plan.ringLength];
+                for (int kk=0; kk<plan.ringLength; kk++) {ciatarray[kk]=absoluteTimestamps ? -RING_EMPTY : RING_EMPTY;}
+                wAintArray = new int[plan.ringLength];
+                mta = new long[nc];
+                iatnew = new long[nc];
                 wAintTemp = new int[nc];
-                sp = new byte[nc];
-                for (byte k:sp) {k=-128;}
+                sp = new int[nc];
 
                 g11 = new double[np*(nc+1)];
                 for (int kk=0; kk<np*(nc+1); kk++) {g11[kk]=0;}
@@ -218,22 +390,101 @@ public class Gmn {
                 for (int kk=0; kk<np*(nc+1); kk++) {g31[kk]=0;}
                 g22 = new double[np*(nc+1)];
                 for (int kk=0; kk<np*(nc+1); kk++) {g22[kk]=0;}
-                tlast = new double[nc];
-                wAtotal = new double[nc];
-                wAtotal2 = new double[nc];
+                tlast = new long[nc];
+                wAtotal = new long[nc];
+                wAtotal2 = new long[nc];
                 wAtotal3 = new double[nc];
-                s01a = new double[np*(nc+1)];
-                s02a = new double[np*(nc+1)];
+                s01a = new long[np*(nc+1)];
+                s02a = new long[np*(nc+1)];
                 s03a = new double[np*(nc+1)];
-                s11aa = new double[np*(nc+1)];
+                s11aa = new long[np*(nc+1)];
                 s12aa = new double[np*(nc+1)];
                 s21aa = new double[np*(nc+1)];
                 s13aa = new double[np*(nc+1)];
                 s31aa = new double[np*(nc+1)];
                 s22aa = new double[np*(nc+1)];
                 
-                intensityTraceX = new double[32768];
-                intensityTraceYA = new double[32768];
+                intensityTraceX = new double[traceCapacity];
+                intensityTraceYA = new double[traceCapacity];
+                intensityTracePosition = 0;
+                binSize = 4096; // so that there are 32768/4096 = 8 bins
+                macroTime = 0;
+
+                return ff=1;
+            } else if (correlationType=="fused") {
+                correlationMode = "fused";
+                gUpToDate = true;
+                blocksSinceNormalization = 0;
+                evA = 32769;
+                evB = 32769;
+                bufferInA = null;
+                bufferInSizeA = 0;                
+                bufferInB = null;
+                bufferInSizeB = 0;                
+                iatA=0;
+                iatB=0;
+                photonsIat = new long[32768];
+                wAint = new int[32768];
+                wBint = new int[32768];
+                nEvents=0;
+                ciatarray = new long[plan.ringLength];
+                for (int kk=0; kk<plan.ringLength; kk++) {ciatarray[kk]=absoluteTimestamps ? -RING_EMPTY : RING_EMPTY;}
+                wAintArray = new int[plan.ringLength];
+                wBintArray = new int[plan.ringLength];
+                mta = new long[nc];
+                iatnew = new long[nc];
+                wAintTemp = new int[nc];
+                wBintTemp = new int[nc];
+                sp = new int[nc];
+
+                tlast = new long[nc];
+                wAtotal = new long[nc];
+                wAtotal2 = new long[nc];
+                wAtotal3 = new double[nc];
+                wBtotal = new long[nc];
+                s01a = new long[np*(nc+1)];
+                s02a = new long[np*(nc+1)];
+                s03a = new double[np*(nc+1)];
+                s01b = new long[np*(nc+1)];
+                if (initializeFusedProducts()!=1) { return -1; }
+
+                intensityTraceX = new double[traceCapacity];
+                intensityTraceYA = new double[traceCapacity];
+                intensityTraceYB = new double[traceCapacity];
+                intensityTracePosition = 0;
+                binSize = 4096; // so that there are 32768/4096 = 8 bins
+                macroTime = 0;
+
+                return ff=1;
+            } else if (correlationType=="multi" || correlationType=="flcs") {
+                correlationMode = correlationType; // "flcs" - the same with filter weights
+                gUpToDate = true;
+                blocksSinceNormalization = 0;
+                evA = 32769;
+                evB = 32769;
+                bufferInA = null;
+                bufferInSizeA = 0;                
+                bufferInB = null;
+                bufferInSizeB = 0;                
+                iatA=0;
+                iatB=0;
+                photonsIat = new long[32768];
+                wAint = new int[32768]; // channels A and B (e.g. the groups of PhotonMerge)
+                wBint = new int[32768]; // for the intensity traces
+                eventTags = new long[32768];
+                nEvents=0;
+                ciatarray = new long[plan.ringLength];
+                for (int kk=0; kk<plan.ringLength; kk++) {ciatarray[kk]=absoluteTimestamps ? -RING_EMPTY : RING_EMPTY;}
+                mta = new long[nc];
+                iatnew = new long[nc];
+                sp = new int[nc];
+
+                tlast = new long[nc];
+                initializeChannelPairs();
+
+                intensityTraceX = new double[traceCapacity];
+                intensityTraceYA = new double[traceCapacity];
+                intensityTraceYB = new double[traceCapacity];
                 intensityTracePosition = 0;
                 binSize = 4096; // so that there are 32768/4096 = 8 bins
                 macroTime = 0;
@@ -290,6 +541,184 @@ public class Gmn {
         t0 = baseTime;
         nc = nCascades;
         np = nPointsPerCascade;
+        plan = new CorrelatorPlan(t0, nc, np);
+    }
+
+    public void setPlan(CorrelatorPlan correlatorPlan) {
+        // the same plan can be shared by several correlators
+        plan = correlatorPlan;
+        t0 = plan.getBaseTime();
+        nc = plan.getNofCascades();
+        np = plan.getNofPointsPerCascade();
+    }
+
+    public CorrelatorPlan getPlan() {
+        return plan;
+    }
+
+    public long getRingOverruns() {
+        // number of bins whose lag search went through the whole ring while the lags
+        // were still within the range of their cascade; the pairs with the older bins
+        // are missing, and a deeper ring (CorrelatorPlan ringSlots) is needed
+        normalize();
+        long total = 0;
+        for (long n:ringOverruns) { total += n; }
+        return total;
+    }
+
+    public void setChannelPairs(int nChannels, int[][] pairs) {
+        // channels of the events of the "multi" mode (1 to 64; bit c of an event tag -
+        // channel c, see PhotonMerge) and the pairs {early, late} that are correlated;
+        // pair k gives getGmulti()[k], the correlation of channel early at time t with
+        // channel late at t+lag; null - all nChannels*nChannels pairs (k = nChannels*early+late).
+        // Must be called before initializeGmn("multi")
+        int kk;
+        if (nChannels<1 || nChannels>64) { throw new IllegalArgumentException("1 to 64 channels can be correlated"); }
+        if (pairs!=null) {
+            for (kk=0; kk<pairs.length; kk++) {
+                if (pairs[kk].length!=2 || pairs[kk][0]<0 || pairs[kk][0]>=nChannels || pairs[kk][1]<0 || pairs[kk][1]>=nChannels) {
+                    throw new IllegalArgumentException("Channel pair "+(kk+1)+": two channels 0-"+(nChannels-1)+" expected");
+                }
+            }
+        }
+        nMultiChannels = nChannels;
+        if (pairs==null) {
+            pairEarly = null;
+            pairLate = null;
+            return;
+        }
+        pairEarly = new int[pairs.length];
+        pairLate = new int[pairs.length];
+        for (kk=0; kk<pairs.length; kk++) {
+            pairEarly[kk] = pairs[kk][0];
+            pairLate[kk] = pairs[kk][1];
+        }
+    }
+
+    public void setLifetimeFilters(int[] detectors, double[][] filters, int[][] pairs) {
+        // filters of the "flcs" mode: filter k weighs the photons of detector detectors[k]
+        // (1-14) by filters[k][dtime] (microtime bins of PhotonHeader.microtimeResolution;
+        // bins beyond the end of filters[k] weigh 0), e.g. the FLCS filters that separate
+        // species by their fluorescence decay. pairs {early, late} of filters are correlated
+        // as in setChannelPairs (null - all); the functions are in getGmulti.
+        // Must be called before initializeGmn("flcs")
+        int kk;
+        if (filters.length<1 || filters.length>64 || detectors.length!=filters.length) {
+            throw new IllegalArgumentException("1 to 64 filters, each with a detector, can be set");
+        }
+        filterDetector = new int[filters.length];
+        filterWeight = new double[filters.length][4096];
+        for (kk=0; kk<filters.length; kk++) {
+            if (detectors[kk]<1 || detectors[kk]>14 || filters[kk].length>4096) {
+                throw new IllegalArgumentException("Filter "+(kk+1)+": detector 1-14 and up to 4096 bins expected");
+            }
+            filterDetector[kk] = detectors[kk];
+            System.arraycopy(filters[kk], 0, filterWeight[kk], 0, filters[kk].length);
+        }
+        setChannelPairs(filters.length, pairs);
+    }
+
+    public void setDeadTime(long units) {
+        // dead time of the "autoHOmlt" mode in time units (0 - none). A photon that arrives
+        // less than units after the previous photon of channel A is dropped before it is
+        // correlated (an extending dead time that covers the one of the detector), so that
+        // the bins hold no two photons closer than the dead time; the factorial moments
+        // of the bins are then corrected for the excluded configurations in normalize().
+        // All functions, g11 included, are those of the remaining photons; the intensity
+        // trace is of all recorded photons.
+        // Must be called before initializeGmn("autoHOmlt")
+        if (units<0) { throw new IllegalArgumentException("The dead time cannot be negative"); }
+        deadTime = units;
+    }
+
+    public void setFusedFunctions(String[] functions) {
+        // correlation functions calculated in the "fused" mode; any of
+        // gAA, gBB, gAB, gBA (channels A and B) and g12, g21, g13, g31, g22 (channel A)
+        // must be called before initializeGmn("fused")
+        for (String f:functions) {
+            if (!Arrays.asList("gAA", "gBB", "gAB", "gBA", "g12", "g21", "g13", "g31", "g22").contains(f)) {
+                throw new IllegalArgumentException("Unknown correlation function "+f);
+            }
+        }
+        fusedFunctions = functions.clone();
+    }
+
+    public void setParallelism(int nThreads) {
+        // number of worker threads that correlate groups of cascades;
+        // 1 (default) correlates all cascades in the calling thread
+        if (ownsWorkerPool) { workerPool.shutdown(); }
+        if (nThreads>1) {
+            workerPool = new ForkJoinPool(nThreads);
+            ownsWorkerPool = true;
+        } else {
+            workerPool = null;
+            ownsWorkerPool = false;
+        }
+    }
+
+    public void setWorkerPool(ForkJoinPool pool) {
+        // share an existing pool between several correlators (null - sequential)
+        if (ownsWorkerPool) { workerPool.shutdown(); }
+        workerPool = pool;
+        ownsWorkerPool = false;
+    }
+
+    public void setSegmentation(ForkJoinPool pool, int eventsPerSegment) {
+        // correlate the following events in time segments of (at least) eventsPerSegment
+        // events on the threads of pool; the segments are merged when a correlation
+        // function is requested, after which events are correlated directly again.
+        // The first segment starts with empty cascades, so segmentation must be set
+        // before any event is correlated (before or right after initializeGmn)
+        if (eventsCorrelated) { throw new IllegalStateException("Segmentation must be set before any event is correlated"); }
+        segments = new SegmentCorrelator(this, pool, eventsPerSegment);
+    }
+
+    public void setAbsoluteTimestamps(boolean absolute) {
+        // choose the ring engine before initializeGmn: false (default) keeps cumulative
+        // inter-arrival times that are updated while the lags are searched; true keeps
+        // the time of each bin, so a lag is a difference and the search only reads
+        absoluteTimestamps = absolute;
+    }
+
+    public void setCascadesPerTask(int nCascades) {
+        cascadesPerTask = Math.max(1, nCascades);
+    }
+
+    public void setInputWindowSize(int nBytes) {
+        // bytes of an input file mapped at a time; kept a multiple of 4 so that
+        // records of all formats (1, 2 or 4 bytes) never straddle two windows
+        inputWindowSize = Math.max(4, nBytes/4*4);
+    }
+
+    public void setNormalizationInterval(int nBlocks) {
+        // the correlation function is normalized every nBlocks event blocks;
+        // with nBlocks=0 it is only normalized when requested (getG11(), etc.)
+        normalizationInterval = nBlocks;
+    }
+
+    public void normalize() {
+        // calculate normalized correlation functions from the accumulated sums
+        if (segments!=null) { // merge time segments that are still being correlated
+            SegmentCorrelator finished = segments;
+            segments = null;
+            finished.finish();
+        }
+        if (gUpToDate) { return; }
+        if (correlationMode=="auto") {
+            normalizeAutoInt();
+        } else if (correlationMode=="cross") {
+            normalizeCrossInt();
+        } else if (correlationMode=="autoHOmlt") {
+            normalizeAutoHOmltInt();
+        } else if (correlationMode=="fused") {
+            normalizeFusedInt();
+        } else if (correlationMode=="multi") {
+            normalizeMultiInt();
+        } else if (correlationMode=="flcs") {
+            normalizeFlcs();
+        }
+        gUpToDate = true;
+        blocksSinceNormalization = 0;
     }
 
     public int[] getParams() {
@@ -301,11 +730,33 @@ public class Gmn {
         return a;
     }
     
+    public PhotonHeader getHeader() {
+        // header of the input file read by the last readHeader* method; null if none
+        return header;
+    }
+
+    public void setExpectedEvents(long nEvents) {
+        // size the intensity trace of the next initializeGmn for nEvents events (e.g. the
+        // record count of the file header), so a long run is not cut short; blocks of
+        // 32768 events give 8 entries each. Not smaller than the default of 32768 entries
+        traceCapacity = (int)Math.min(Integer.MAX_VALUE-8, Math.max(32768, 8*(nEvents/32760+2)));
+    }
+
+    public long getDecodedBytes() {
+        // bytes of input data decoded since initializeGmn
+        return bytesDecoded;
+    }
+
+    public double getDecodeRate() {
+        // decoding throughput since initializeGmn (bytes per second)
+        return (decodeTime>0) ? bytesDecoded/(decodeTime*1e-9) : 0;
+    }
+
     public int getNofEvents() {
         return nEvents;
     }
     
-    public int[] getPhotonsIat() {
+    public long[] getPhotonsIat() {
         return photonsIat;
     }
     
@@ -316,46 +767,78 @@ public class Gmn {
     public int[] getWeightsB() {
         return wBint;
     }
+
+    public long[] getEventTags() {
+        return eventTags;
+    }
     
     public double[] getWaTotal() {
-        return wAtotal;
+        double[] total = new double[wAtotal.length];
+        for (int jj=0; jj<wAtotal.length; jj++) { total[jj] = wAtotal[jj]; }
+        return total;
     }
 
     public double[] getG11() {
+        normalize();
         return g11;
     }
     
     public double[] getG12() {
+        normalize();
         return g12;
     }
     public double[] getG21() {
+        normalize();
         return g21;
     }
     public double[] getG13() {
+        normalize();
         return g13;
     }
     public double[] getG31() {
+        normalize();
         return g31;
     }
     public double[] getG22() {
+        normalize();
         return g22;
     }
 
     public double[] getGaa() {
+        normalize();
         return gAA;
     }
     
     public double[] getGab() {
+        normalize();
         return gAB;
     }
     
     public double[] getGba() {
+        normalize();
         return gBA;
     }
     
     public double[] getGbb() {
+        normalize();
         return gBB;
     }
+
+    public double[][] getGmulti() {
+        // correlation functions of the channel pairs of the "multi" mode (setChannelPairs)
+        // or of the filter pairs of the "flcs" mode (setLifetimeFilters)
+        normalize();
+        return gMulti;
+    }
+
+    public int[][] getChannelPairs() {
+        // {early, late} channels of each function of getGmulti
+        int[][] pairs = new int[pairEarlyIndex.length][];
+        for (int kk=0; kk<pairs.length; kk++) {
+            pairs[kk] = new int[] {usedChannels[pairEarlyIndex[kk]], usedChannels[pairLateIndex[kk]]};
+        }
+        return pairs;
+    }
     
     public int getIntensityTracePosition() {
         return intensityTracePosition;
@@ -412,6 +895,7 @@ public class Gmn {
 
     public int updateDataFlexOneCh(FileInputStream inputFile) {
 
+        long decodeStart = System.nanoTime(); // for the decoding throughput
         nEvents=0;
         try {
             // Flex8 data format uses unsigned byte data type
@@ -420,18 +904,14 @@ public class Gmn {
             // after that the signed number rolls over to -128
             // eventually unsigned 255 corresponds to signed -1
             if (evA>=bufferInSizeA) { // read in the next chunk of data
-                bufferInSizeA = inputFile.read(bufferInA);
+                bufferInSizeA = mapWindowA(inputFile);
                 evA=0;
             }
             while ( nEvents<32768 && bufferInSizeA!=-1 ) {
-                if (bufferInA[evA]==-1) {
+                if (bufferInA.get(evA)==-1) {
                     iatA += 255;
                 } else {
-                    if (bufferInA[evA]>=0) {
-                        iatA += bufferInA[evA]+1;
-                    } else {
-                        iatA += 256+bufferInA[evA]+1;
-                    }
+                    iatA += (bufferInA.get(evA) & 0xFF)+1;
                     photonsIat[nEvents]=iatA;
                     wAint[nEvents] = 1;
                     iatA=0;
@@ -439,26 +919,28 @@ public class Gmn {
                 }
                 evA++;
                 if (evA>=bufferInSizeA) { // read in the next chunk of data
-                    bufferInSizeA = inputFile.read(bufferInA);
+                    bufferInSizeA = mapWindowA(inputFile);
                     evA=0;
                 }
             }
             return bufferInSizeA;
         } finally {
+            decodeTime += System.nanoTime()-decodeStart;
             return bufferInSizeA;
         }
     }
     
     public int updateDataFlexTwoCh(FileInputStream inputFileA, FileInputStream inputFileB) {
         
+        long decodeStart = System.nanoTime(); // for the decoding throughput
         nEvents=0;
         try {
             if (evA>=bufferInSizeA) { // read in the next chunk of data (ch. A)
-                bufferInSizeA = inputFileA.read(bufferInA);
+                bufferInSizeA = mapWindowA(inputFileA);
                 evA=0;
             }
             if (evB>=bufferInSizeB) { // read in the next chunk of data (ch. B)
-                bufferInSizeB = inputFileB.read(bufferInB);
+                bufferInSizeB = mapWindowB(inputFileB);
                 evB=0;
             }
                         
@@ -466,38 +948,44 @@ public class Gmn {
                 // Channel A
                 if (iatA==0) {
                     // Channel A
-                    while (bufferInA[evA]==-1 && bufferInSizeA!=-1) {  // sum up overrun clock cycles
+                    if (evA>=bufferInSizeA) { // read in the next chunk of data
+                        bufferInSizeA = mapWindowA(inputFileA);
+                        evA=0;
+                    }
+                    while (bufferInSizeA!=-1 && bufferInA.get(evA)==-1) {  // sum up overrun clock cycles
                         iatA += 255;
                         evA++;
                         if (evA>=bufferInSizeA) { // read in the next chunk of data
-                            bufferInSizeA = inputFileA.read(bufferInA);
+                            bufferInSizeA = mapWindowA(inputFileA);
                             evA=0;
                         }
                     }
                     if ( bufferInSizeA!=-1 ) { // add the photon-interrupted clock cycle
-                        if (bufferInA[evA]>=0)  { iatA += bufferInA[evA]+1; }
-                        else { iatA += 256+bufferInA[evA]+1; }
+                        iatA += (bufferInA.get(evA) & 0xFF)+1;
                         if (evA>=bufferInSizeA) { // read in the next chunk of data
-                            bufferInSizeA = inputFileA.read(bufferInA);
+                            bufferInSizeA = mapWindowA(inputFileA);
                             evA=0;
                         }
                     }
                 }
                 if (iatB==0) {
                     // Channel B
-                    while (bufferInB[evB]==-1 && bufferInSizeB!=-1) {  // sum up overrun clock cycles
+                    if (evB>=bufferInSizeB) { // read in the next chunk of data
+                        bufferInSizeB = mapWindowB(inputFileB);
+                        evB=0;
+                    }
+                    while (bufferInSizeB!=-1 && bufferInB.get(evB)==-1) {  // sum up overrun clock cycles
                         iatB += 255;
                         evB++;
                         if (evB>=bufferInSizeB) { // read in the next chunk of data
-                            bufferInSizeB = inputFileB.read(bufferInB);
+                            bufferInSizeB = mapWindowB(inputFileB);
                             evB=0;
                         }
                     }
                     if ( bufferInSizeB!=-1 ) { // add the photon-interrupted clock cycle
-                        if (bufferInB[evB]>=0)  { iatB += bufferInB[evB]+1; }
-                        else { iatB += 256+bufferInB[evB]+1; }
+                        iatB += (bufferInB.get(evB) & 0xFF)+1;
                         if (evB>=bufferInSizeB) { // read in the next chunk of data
-                            bufferInSizeB = inputFileB.read(bufferInB);
+                            bufferInSizeB = mapWindowB(inputFileB);
                             evB=0;
                         }
                     }
@@ -534,19 +1022,23 @@ public class Gmn {
             // finish the calculation on the remaining data
             if (bufferInSizeA==-1 && bufferInSizeB!=-1 ) { // channel B only
                 // carry out one channel conversion
+                if (iatB>0) { // the photon read before channel A ended (at evB) is still to be recorded
+                    photonsIat[nEvents]=iatB;
+                    wAint[nEvents] = 0;
+                    wBint[nEvents] = 1;
+                    iatB=0;
+                    nEvents++;
+                    evB++;
+                }
                 if (evB>=bufferInSizeB) { // read in the next chunk of data
-                    bufferInSizeB = inputFileB.read(bufferInB);
+                    bufferInSizeB = mapWindowB(inputFileB);
                     evB=0;
                 }
                 while ( nEvents<32768 && bufferInSizeB!=-1 ) {
-                    if (bufferInB[evB]==-1) {
+                    if (bufferInB.get(evB)==-1) {
                         iatB += 255;
                     } else {
-                        if (bufferInB[evB]>=0) {
-                            iatB += bufferInB[evB]+1;
-                        } else {
-                            iatB += 256+bufferInB[evB]+1;
-                        }
+                        iatB += (bufferInB.get(evB) & 0xFF)+1;
                         photonsIat[nEvents]=iatB;
                         wAint[nEvents] = 0;
                         wBint[nEvents] = 1;
@@ -555,26 +1047,30 @@ public class Gmn {
                     }
                     evB++;
                     if (evB>=bufferInSizeB) { // read in the next chunk of data
-                        bufferInSizeB = inputFileB.read(bufferInB);
+                        bufferInSizeB = mapWindowB(inputFileB);
                         evB=0;
                     }
                 }
             }
             if (bufferInSizeA!=-1 && bufferInSizeB==-1 ) { // channel A only
                 // carry out one channel conversion
+                if (iatA>0) { // the photon read before channel B ended (at evA) is still to be recorded
+                    photonsIat[nEvents]=iatA;
+                    wAint[nEvents] = 1;
+                    wBint[nEvents] = 0;
+                    iatA=0;
+                    nEvents++;
+                    evA++;
+                }
                 if (evA>=bufferInSizeA) { // read in the next chunk of data
-                    bufferInSizeA = inputFileA.read(bufferInA);
+                    bufferInSizeA = mapWindowA(inputFileA);
                     evA=0;
                 }
                 while ( nEvents<32768 && bufferInSizeA!=-1 ) {
-                    if (bufferInA[evA]==-1) {
+                    if (bufferInA.get(evA)==-1) {
                         iatA += 255;
                     } else {
-                        if (bufferInA[evA]>=0) {
-                            iatA += bufferInA[evA]+1;
-                        } else {
-                            iatA += 256+bufferInA[evA]+1;
-                        }
+                        iatA += (bufferInA.get(evA) & 0xFF)+1;
                         photonsIat[nEvents]=iatA;
                         wAint[nEvents] = 1;
                         wBint[nEvents] = 0;
@@ -583,161 +1079,142 @@ public class Gmn {
                     }
                     evA++;
                     if (evA>=bufferInSizeA) { // read in the next chunk of data
-                        bufferInSizeA = inputFileA.read(bufferInA);
+                        bufferInSizeA = mapWindowA(inputFileA);
                         evA=0;
                     }
                 }
             }            
             return bufferInSizeA;
         } finally {
+            decodeTime += System.nanoTime()-decodeStart;
             return bufferInSizeA;
         }
     }
     
+    private MappedByteBuffer mapWindow(FileInputStream inputFile) throws IOException {
+        // map the next window of the file from the current position of the stream
+        // (i.e. after the header); decoders read it in place without copying it
+        // to the heap; returns null at the end of the file
+        FileChannel channel = inputFile.getChannel();
+        long position = channel.position();
+        long size = Math.min(inputWindowSize, channel.size()-position);
+        MappedByteBuffer window;
+        if (size<=0) { return null; }
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        window.order(ByteOrder.LITTLE_ENDIAN);
+        channel.position(position+size);
+        bytesDecoded += size;
+        return window;
+    }
+
+    private int mapWindowA(FileInputStream inputFile) throws IOException {
+        windowStartA = inputFile.getChannel().position();
+        bufferInA = mapWindow(inputFile);
+        return (bufferInA!=null) ? bufferInA.limit() : -1;
+    }
+
+    long[] getDecoderState(FileInputStream inputFileA, FileInputStream inputFileB) throws IOException {
+        // where the next updateData* call continues: the file offsets of the next records
+        // (ch. A, ch. B; -1 - no file) and the values carried over to them (iatA, iatB,
+        // the PTU overflow time); setDecoderState continues there in a new decoder
+        long[] state = new long[5];
+        state[0] = inputPosition(inputFileA, bufferInA, windowStartA, evA);
+        state[1] = inputPosition(inputFileB, bufferInB, windowStartB, evB);
+        state[2] = iatA;
+        state[3] = iatB;
+        state[4] = ptuOverflowTime;
+        return state;
+    }
+
+    void setDecoderState(FileInputStream inputFileA, FileInputStream inputFileB, long[] state) throws IOException {
+        // continue decoding where getDecoderState was called; the header must have been
+        // read (the record layout), the windows are mapped again from the offsets
+        if (inputFileA!=null) { inputFileA.getChannel().position(state[0]); }
+        if (inputFileB!=null) { inputFileB.getChannel().position(state[1]); }
+        bufferInA = null;
+        bufferInB = null;
+        bufferInSizeA = 0;
+        bufferInSizeB = 0;
+        evA = 32769;
+        evB = 32769;
+        iatA = state[2];
+        iatB = state[3];
+        ptuOverflowTime = state[4];
+    }
+
+    private static long inputPosition(FileInputStream inputFile, MappedByteBuffer window, long windowStart, int ev) throws IOException {
+        if (inputFile==null) { return -1; }
+        if (window!=null && ev<window.limit()) { return windowStart+ev; }
+        return inputFile.getChannel().position(); // no window yet, or all of the file has been mapped
+    }
+
+    private int mapWindowB(FileInputStream inputFile) throws IOException {
+        windowStartB = inputFile.getChannel().position();
+        bufferInB = mapWindow(inputFile);
+        return (bufferInB!=null) ? bufferInB.limit() : -1;
+    }
+
     public int readHeaderConfocor2(FileInputStream inputFile) {
-        int aa;
-        byte[] bb;
-        bb = new byte[30];
-        
-        try {
-            aa = inputFile.read(bb);
-            return 1;
-        } finally {
-            return 1;
-        }
-        
+        // 30 bytes without the fields used here; 2-byte records follow
+        PhotonHeader h = new PhotonHeader("Confocor2");
+        h.channels = new int[] {1, 2};
+        h.headerSize = 30;
+        return startRecords(inputFile, h, 2);
     }
 
     public int updateDataConfocor2chA(FileInputStream inputFile) {
+        return updateDataConfocor2(inputFile, CONFOCOR2_A);
+    }
+    
+    public int updateDataConfocor2chB(FileInputStream inputFile) {
+        return updateDataConfocor2(inputFile, CONFOCOR2_B);
+    }
+    
+    public int updateDataConfocor2chAB(FileInputStream inputFile) {
+        return updateDataConfocor2(inputFile, CONFOCOR2_AB);
+    }
+
+    private int updateDataConfocor2(FileInputStream inputFile, int channels) {
+        // a record is two bytes: the time since the previous record (0xFF - overrun,
+        // 0 - end of data) and the photon flags of four sub-intervals; the photons of
+        // each flag byte are looked up in the Confocor2 tables
         
+        long decodeStart = System.nanoTime(); // for the decoding throughput
+        int iatByte;            // first byte of a record: time since the previous record
+        int flags;              // second byte of a record: photons in the four sub-intervals
+        int nPhotons, pp, slot, entry;
+        long elapsed;           // time since the last photon at the first sub-interval
+        int[] count = CONFOCOR2_COUNT[channels];
+        int[] slots = CONFOCOR2_SLOT[channels];
+        int[] weights = CONFOCOR2_WEIGHT_A[channels];
         nEvents=0;
         try {
             if (evA>=bufferInSizeA) { // read in the next chunk of data
-                bufferInSizeA = inputFile.read(bufferInA);
+                bufferInSizeA = mapWindowA(inputFile);
                 evA=0;
             }
              
-            while ( nEvents<32768 && bufferInSizeA!=-1 ) {
-                if (bufferInA[evA]!=0) {
-                    if (bufferInA[evA]==-1) {
-                        iatA += 255;
-                        if (bufferInA[evA+1]==0) {           // 00000000
-                            iatA += 3;
-                        } else {
-                            if ( (bufferInA[evA+1] & 1)!=0 ) {    // 00000001
-                                photonsIat[nEvents]=iatA;
-                                iatA=0;
-                                wAint[nEvents] = 1;                   
-                                nEvents++;
-                            }
-                            if ( (bufferInA[evA+1] & (1 << 1))!=0 ) {    // 00000010
-                                //photonsIat[nEvents]=iat;
-                                //iat=0;
-                                //wAint[nEvents] = 1;                   
-                                //nEvents++;
-                            } 
-                            iatA += 1;
-                            if ( (bufferInA[evA+1] & (1 << 2))!=0 ) {    // 00000100
-                                photonsIat[nEvents]=iatA;
-                                iatA=0;
-                                wAint[nEvents] = 1;                   
-                                nEvents++;
-                            }
-                            if ( (bufferInA[evA+1] & (1 << 3))!=0 ) {    // 00001000
-                                //photonsIat[nEvents]=iat;
-                                //iat=0;
-                                //wAint[nEvents] = 1;                   
-                                //nEvents++;
-                            }
-                            iatA += 1;
-                            if ( (bufferInA[evA+1] & (1 << 4))!=0 ) {    // 00010000
-                                photonsIat[nEvents]=iatA;
-                                iatA=0;
-                                wAint[nEvents] = 1;                   
-                                nEvents++;
-                            }   
-                            if ( (bufferInA[evA+1] & (1 << 5))!=0 ) {    // 00100000
-                                //photonsIat[nEvents]=iat;
-                                //iat=0;
-                                //wAint[nEvents] = 1;                   
-                                //nEvents++;
-                            }
-                            iatA += 1;
-                            if ( (bufferInA[evA+1] & (1 << 6))!=0 ) {    // 01000000
-                                photonsIat[nEvents]=iatA;
-                                iatA=0;
-                                wAint[nEvents] = 1;                   
-                                nEvents++;
-                            }
-                            if ( (bufferInA[evA+1] & (1 << 7))!=0 ) {    // 10000000
-                                //photonsIat[nEvents]=iat;
-                                //iat=0;
-                                //wAint[nEvents] = 1;                   
-                                //nEvents++;
-                            }
-                        }
-                    } else {
-                        if (bufferInA[evA]>=0) {
-                            iatA += bufferInA[evA];
-                        } else {
-                            iatA += 256+bufferInA[evA];
-                        }
-                        if ( (bufferInA[evA+1] & 1)!=0 ) {    // 00000001
-                            photonsIat[nEvents]=iatA;
-                            iatA=0;
-                            wAint[nEvents] = 1;                   
-                            nEvents++;
-                        }
-                        if ( (bufferInA[evA+1] & (1 << 1))!=0 ) {    // 00000010
-                            //photonsIat[nEvents]=iat;
-                            //iat=0;
-                            //wAint[nEvents] = 1;                   
-                            //nEvents++;
-                        }
-                        iatA += 1;
-                        if ( (bufferInA[evA+1] & (1 << 2))!=0 ) {    // 00000100
-                            photonsIat[nEvents]=iatA;
-                            iatA=0;
-                            wAint[nEvents] = 1;                   
-                            nEvents++;
-                        }
-                        if ( (bufferInA[evA+1] & (1 << 3))!=0 ) {    // 00001000
-                            //photonsIat[nEvents]=iat;
-                            //iat=0;
-                            //wAint[nEvents] = 1;                   
-                            //nEvents++;
-                        }
-                        iatA += 1;
-                        if ( (bufferInA[evA+1] & (1 << 4))!=0 ) {    // 00010000
-                            photonsIat[nEvents]=iatA;
-                            iatA=0;
-                            wAint[nEvents] = 1;                   
-                            nEvents++;
-                        }
-                        if ( (bufferInA[evA+1] & (1 << 5))!=0 ) {    // 00100000
-                            //photonsIat[nEvents]=iat;
-                            //iat=0;
-                            //wAint[nEvents] = 1;                   
-                            //nEvents++;
-                        }
-                        iatA += 1;
-                        if ( (bufferInA[evA+1] & (1 << 6))!=0 ) {    // 01000000
-                            photonsIat[nEvents]=iatA;
-                            iatA=0;
-                            wAint[nEvents] = 1;                   
-                            nEvents++;
-                        }
-                        if ( (bufferInA[evA+1] & (1 << 7))!=0 ) {    // 10000000
-                            //photonsIat[nEvents]=iat;
-                            //iat=0;
-                            //wAint[nEvents] = 1;                   
-                            //nEvents++;
-                        }
+            // a record holds up to 8 photons
+            while ( nEvents<=32768-8 && bufferInSizeA!=-1 ) {
+                iatByte = bufferInA.get(evA) & 0xFF;
+                flags = bufferInA.get(evA+1) & 0xFF;
+                if (iatByte!=0) {
+                    elapsed = iatA+iatByte;
+                    nPhotons = count[flags];
+                    entry = flags << 3;
+                    for (pp=0; pp<nPhotons; pp++) {
+                        slot = slots[entry+pp];
+                        photonsIat[nEvents] = elapsed+slot;
+                        wAint[nEvents] = weights[entry+pp];
+                        if (channels==CONFOCOR2_AB) { wBint[nEvents] = 1-weights[entry+pp]; }
+                        nEvents++;
+                        elapsed = -slot;
                     }
+                    iatA = elapsed+3; // the record spans four sub-intervals
                     
                     evA += 2;
                     if (evA>=bufferInSizeA) { // read in the next chunk of data
-                        bufferInSizeA = inputFile.read(bufferInA);
+                        bufferInSizeA = mapWindowA(inputFile);
                         evA=0;
                     }
                 
@@ -745,401 +1222,120 @@ public class Gmn {
             } 
             return bufferInSizeA;
         } finally {
+            decodeTime += System.nanoTime()-decodeStart;
             return bufferInSizeA;
         }
     }
-    
-    public int updateDataConfocor2chB(FileInputStream inputFile) {
-       
+
+    private static int[][] confocor2Tables(int what) {
+        // for each channel selection (A, B, AB) and flag byte: the number of photons
+        // (what=0), and per photon its sub-interval (what=1) and channel A weight (what=2);
+        // bit 2*k flags a photon of channel A and bit 2*k+1 of channel B in sub-interval k
+        int[][] table = new int[3][];
+        int channels, flags, bit, nPhotons;
+        for (channels=0; channels<3; channels++) {
+            table[channels] = new int[what==0 ? 256 : 256*8];
+            for (flags=0; flags<256; flags++) {
+                nPhotons = 0;
+                for (bit=0; bit<8; bit++) {
+                    if ( (flags & (1 << bit))==0 ) { continue; }
+                    if (channels==CONFOCOR2_A && (bit & 1)!=0) { continue; }
+                    if (channels==CONFOCOR2_B && (bit & 1)==0) { continue; }
+                    if (what==1) { table[channels][(flags << 3)+nPhotons] = bit >> 1; }
+                    if (what==2) { table[channels][(flags << 3)+nPhotons] = (channels==CONFOCOR2_AB) ? 1-(bit & 1) : 1; }
+                    nPhotons++;
+                }
+                if (what==0) { table[channels][flags] = nPhotons; }
+            }
+        }
+        return table;
+    }
+
+    public int readHeaderConfocor3(FileInputStream inputFile) {
+        // 128 bytes without the fields used here; 4-byte records follow
+        PhotonHeader h = new PhotonHeader("Confocor3");
+        h.channels = new int[] {1};
+        h.headerSize = 128;
+        return startRecords(inputFile, h, 4);
+    }
+
+    private static ByteBuffer readHeaderBytes(FileInputStream inputFile, int nBytes) throws IOException {
+        // the first nBytes of the file (fewer if it is shorter) in a single read that
+        // leaves the position of the stream unchanged
+        FileChannel channel = inputFile.getChannel();
+        ByteBuffer bytes = ByteBuffer.allocate((int)Math.min(nBytes, channel.size()));
+        while (bytes.hasRemaining() && channel.read(bytes, bytes.position())>0) { }
+        bytes.flip();
+        bytes.order(ByteOrder.LITTLE_ENDIAN);
+        return bytes;
+    }
+
+    private int startRecords(FileInputStream inputFile, PhotonHeader h, int recordSize) {
+        // keep h as the header of the file, count its records if the header does not
+        // state them and move the stream to the first record
+        FileChannel channel = inputFile.getChannel();
+        try {
+            if (h.nRecords<0) { h.nRecords = Math.max(0, channel.size()-h.headerSize)/recordSize; }
+            channel.position(h.headerSize);
+        } catch (IOException e) {
+            return 0;
+        }
+        header = h;
+        return 1;
+    }
+
+    public int updateDataConfocor3OneCh(FileInputStream inputFile) {
+        
+        long decodeStart = System.nanoTime(); // for the decoding throughput
         nEvents=0;
         try {
             if (evA>=bufferInSizeA) { // read in the next chunk of data
-                bufferInSizeA = inputFile.read(bufferInA);
+                bufferInSizeA = mapWindowA(inputFile);
                 evA=0;
             }
              
             while ( nEvents<32768 && bufferInSizeA!=-1 ) {
-                if (bufferInA[evA]!=0) {
-                    if (bufferInA[evA]==-1) {
-                        iatA += 255;
-                        if (bufferInA[evA+1]==0) {           // 00000000
-                            iatA += 3;
-                        } else {
-                            if ( (bufferInA[evA+1] & 1)!=0 ) {    // 00000001
-                                //photonsIat[nPhotonsA]=iat;
-                                //iat=0;
-                                //wAint[nPhotonsA] = 0;                   
-                                //nPhotonsA++;
-                            }
-                            if ( (bufferInA[evA+1] & (1 << 1))!=0 ) {    // 00000010
-                                photonsIat[nEvents]=iatA;
-                                iatA=0;
-                                wAint[nEvents] = 1;                   
-                                nEvents++;
-                            } 
-                            iatA += 1;
-                            if ( (bufferInA[evA+1] & (1 << 2))!=0 ) {    // 00000100
-                                //photonsIat[nPhotonsA]=iat;
-                                //iat=0;
-                                //wAint[nPhotonsA] = 0;                   
-                                //nPhotonsA++;
-                            }
-                            if ( (bufferInA[evA+1] & (1 << 3))!=0 ) {    // 00001000
-                                photonsIat[nEvents]=iatA;
-                                iatA=0;
-                                wAint[nEvents] = 1;                   
-                                nEvents++;
-                            }
-                            iatA += 1;
-                            if ( (bufferInA[evA+1] & (1 << 4))!=0 ) {    // 00010000
-                                //photonsIat[nPhotonsA]=iat;
-                                //iat=0;
-                                //wAint[nPhotonsA] = 0;                   
-                                //nPhotonsA++;
-                            }   
-                            if ( (bufferInA[evA+1] & (1 << 5))!=0 ) {    // 00100000
-                                photonsIat[nEvents]=iatA;
-                                iatA=0;
-                                wAint[nEvents] = 1;                   
-                                nEvents++;
-                            }
-                            iatA += 1;
-                            if ( (bufferInA[evA+1] & (1 << 6))!=0 ) {    // 01000000
-                                //photonsIat[nPhotonsA]=iat;
-                                //iat=0;
-                                //wAint[nPhotonsA] = 0;                   
-                                //nPhotonsA++;
-                            }
-                            if ( (bufferInA[evA+1] & (1 << 7))!=0 ) {    // 10000000
-                                photonsIat[nEvents]=iatA;
-                                iatA=0;
-                                wAint[nEvents] = 1;                   
-                                nEvents++;
-                            }
-                        }
-                    } else {
-                        if (bufferInA[evA]>=0) {
-                            iatA += bufferInA[evA];
-                        } else {
-                            iatA += 256+bufferInA[evA];
-                        }
-                        if ( (bufferInA[evA+1] & 1)!=0 ) {    // 00000001
-                            //photonsIat[nPhotonsA]=iat;
-                            //iat=0;
-                            //wAint[nPhotonsA] = 0;                   
-                            //nPhotonsA++;
-                        }
-                        if ( (bufferInA[evA+1] & (1 << 1))!=0 ) {    // 00000010
-                            photonsIat[nEvents]=iatA;
-                            iatA=0;
-                            wAint[nEvents] = 1;                   
-                            nEvents++;
-                        }
-                        iatA += 1;
-                        if ( (bufferInA[evA+1] & (1 << 2))!=0 ) {    // 00000100
-                            //photonsIat[nPhotonsA]=iat;
-                            //iat=0;
-                            //wAint[nPhotonsA] = 0;                   
-                            //nPhotonsA++;
-                        }
-                        if ( (bufferInA[evA+1] & (1 << 3))!=0 ) {    // 00001000
-                            photonsIat[nEvents]=iatA;
-                            iatA=0;
-                            wAint[nEvents] = 1;                   
-                            nEvents++;
-                        }
-                        iatA += 1;
-                        if ( (bufferInA[evA+1] & (1 << 4))!=0 ) {    // 00010000
-                            //photonsIat[nPhotonsA]=iat;
-                            //iat=0;
-                            //wAint[nPhotonsA] = 0;                   
-                            //nPhotonsA++;
-                        }
-                        if ( (bufferInA[evA+1] & (1 << 5))!=0 ) {    // 00100000
-                            photonsIat[nEvents]=iatA;
-                            iatA=0;
-                            wAint[nEvents] = 1;                   
-                            nEvents++;
-                        }
-                        iatA += 1;
-                        if ( (bufferInA[evA+1] & (1 << 6))!=0 ) {    // 01000000
-                            //photonsIat[nPhotonsA]=iat;
-                            //iat=0;
-                            //wAint[nPhotonsA] = 0;                   
-                            //nPhotonsA++;
-                        }
-                        if ( (bufferInA[evA+1] & (1 << 7))!=0 ) {    // 10000000
-                            photonsIat[nEvents]=iatA;
-                            iatA=0;
-                            wAint[nEvents] = 1;                   
-                            nEvents++;
-                        }
-                    }
-                    
-                    evA += 2;
-                    if (evA>=bufferInSizeA) { // read in the next chunk of data
-                        bufferInSizeA = inputFile.read(bufferInA);
-                        evA=0;
-                    }
+                // 32-bit little-endian inter-arrival time
+                photonsIat[nEvents] = bufferInA.getInt(evA) & 0xFFFFFFFFL;
+                evA += 4;
                 
-                } else { bufferInSizeA=-1; } // end of data has been reached
-            } 
+                wAint[nEvents] = 1;
+                nEvents++;
+
+                if (evA>=bufferInSizeA) { // read in the next chunk of data
+                    bufferInSizeA = mapWindowA(inputFile);
+                    evA=0;
+                }
+            }
             return bufferInSizeA;
         } finally {
+            decodeTime += System.nanoTime()-decodeStart;
             return bufferInSizeA;
         }
     }
-    
-    public int updateDataConfocor2chAB(FileInputStream inputFile) {
-        
-        nEvents=0;
-        try {
-            if (evA>=bufferInSizeA) { // read in the next chunk of data
-                bufferInSizeA = inputFile.read(bufferInA);
-                evA=0;
-            }
-             
-            while ( nEvents<32768 && bufferInSizeA!=-1 ) {
-                if (bufferInA[evA]!=0) {
-                    if (bufferInA[evA]==-1) {
-                        iatA += 255;
-                        if (bufferInA[evA+1]==0) {           // 00000000
-                            iatA += 3;
-                        } else {
-                            if ( (bufferInA[evA+1] & 1)!=0 ) {    // 00000001
-                                photonsIat[nEvents]=iatA;
-                                iatA=0;
-                                wAint[nEvents] = 1;                   
-                                wBint[nEvents] = 0;                   
-                                nEvents++;
-                            }
-                            if ( (bufferInA[evA+1] & (1 << 1))!=0 ) {    // 00000010
-                                photonsIat[nEvents]=iatA;
-                                iatA=0;
-                                wAint[nEvents] = 0;                   
-                                wBint[nEvents] = 1;                   
-                                nEvents++;
-                            } 
-                            iatA += 1;
-                            if ( (bufferInA[evA+1] & (1 << 2))!=0 ) {    // 00000100
-                                photonsIat[nEvents]=iatA;
-                                iatA=0;
-                                wAint[nEvents] = 1;                   
-                                wBint[nEvents] = 0;                   
-                                nEvents++;
-                            }
-                            if ( (bufferInA[evA+1] & (1 << 3))!=0 ) {    // 00001000
-                                photonsIat[nEvents]=iatA;
-                                iatA=0;
-                                wAint[nEvents] = 0;                   
-                                wBint[nEvents] = 1;                   
-                                nEvents++;
-                            }
-                            iatA += 1;
-                            if ( (bufferInA[evA+1] & (1 << 4))!=0 ) {    // 00010000
-                                photonsIat[nEvents]=iatA;
-                                iatA=0;
-                                wAint[nEvents] = 1;                   
-                                wBint[nEvents] = 0;                   
-                                nEvents++;
-                            }   
-                            if ( (bufferInA[evA+1] & (1 << 5))!=0 ) {    // 00100000
-                                photonsIat[nEvents]=iatA;
-                                iatA=0;
-                                wAint[nEvents] = 0;                   
-                                wBint[nEvents] = 1;                   
-                                nEvents++;
-                            }
-                            iatA += 1;
-                            if ( (bufferInA[evA+1] & (1 << 6))!=0 ) {    // 01000000
-                                photonsIat[nEvents]=iatA;
-                                iatA=0;
-                                wAint[nEvents] = 1;                   
-                                wBint[nEvents] = 0;                   
-                                nEvents++;
-                            }
-                            if ( (bufferInA[evA+1] & (1 << 7))!=0 ) {    // 10000000
-                                photonsIat[nEvents]=iatA;
-                                iatA=0;
-                                wAint[nEvents] = 0;                   
-                                wBint[nEvents] = 1;                   
-                                nEvents++;
-                            }
-                        }
-                    } else {
-                        if (bufferInA[evA]>=0) {
-                            iatA += bufferInA[evA];
-                        } else {
-                            iatA += 256+bufferInA[evA];
-                        }
-                        if ( (bufferInA[evA+1] & 1)!=0 ) {    // 00000001
-                            photonsIat[nEvents]=iatA;
-                            iatA=0;
-                            wAint[nEvents] = 1;                   
-                            wBint[nEvents] = 0;                   
-                            nEvents++;
-                        }
-                        if ( (bufferInA[evA+1] & (1 << 1))!=0 ) {    // 00000010
-                            photonsIat[nEvents]=iatA;
-                            iatA=0;
-                            wAint[nEvents] = 0;                   
-                            wBint[nEvents] = 1;                   
-                            nEvents++;
-                        }
-                        iatA += 1;
-                        if ( (bufferInA[evA+1] & (1 << 2))!=0 ) {    // 00000100
-                            photonsIat[nEvents]=iatA;
-                            iatA=0;
-                            wAint[nEvents] = 1;                   
-                            wBint[nEvents] = 0;                   
-                            nEvents++;
-                        }
-                        if ( (bufferInA[evA+1] & (1 << 3))!=0 ) {    // 00001000
-                            photonsIat[nEvents]=iatA;
-                            iatA=0;
-                            wAint[nEvents] = 0;                   
-                            wBint[nEvents] = 1;                   
-                            nEvents++;
-                        }
-                        iatA += 1;
-                        if ( (bufferInA[evA+1] & (1 << 4))!=0 ) {    // 00010000
-                            photonsIat[nEvents]=iatA;
-                            iatA=0;
-                            wAint[nEvents] = 1;                   
-                            wBint[nEvents] = 0;                   
-                            nEvents++;
-                        }
-                        if ( (bufferInA[evA+1] & (1 << 5))!=0 ) {    // 00100000
-                            photonsIat[nEvents]=iatA;
-                            iatA=0;
-                            wAint[nEvents] = 0;                   
-                            wBint[nEvents] = 1;                   
-                            nEvents++;
-                        }
-                        iatA += 1;
-                        if ( (bufferInA[evA+1] & (1 << 6))!=0 ) {    // 01000000
-                            photonsIat[nEvents]=iatA;
-                            iatA=0;
-                            wAint[nEvents] = 1;                   
-                            wBint[nEvents] = 0;                   
-                            nEvents++;
-                        }
-                        if ( (bufferInA[evA+1] & (1 << 7))!=0 ) {    // 10000000
-                            photonsIat[nEvents]=iatA;
-                            iatA=0;
-                            wAint[nEvents] = 0;                   
-                            wBint[nEvents] = 1;                   
-                            nEvents++;
-                        }
-                    }
-                    
-                    evA += 2;
-                    if (evA>=bufferInSizeA) { // read in the next chunk of data
-                        bufferInSizeA = inputFile.read(bufferInA);
-                        evA=0;
-                    }
-                
-                } else { bufferInSizeA=-1; } // end of data has been reached
-            } 
-            return bufferInSizeA;
-        } finally {
-            return bufferInSizeA;
-        }
-    }
-
-    public int readHeaderConfocor3(FileInputStream inputFile) {
-        int aa;
-        byte[] bb;
-        bb = new byte[128];
-        
-        try {
-            aa = inputFile.read(bb);
-            return 1;
-        } finally {
-            return 1;
-        }
-        
-    }
-
-    public int updateDataConfocor3OneCh(FileInputStream inputFile) {
-        
-        nEvents=0;
-        try {
-            if (evA>=bufferInSizeA) { // read in the next chunk of data
-                bufferInSizeA = inputFile.read(bufferInA);
-                evA=0;
-            }
-             
-            while ( nEvents<32768 && bufferInSizeA!=-1 ) {
-                if (bufferInA[evA]>=0) {
-                    iatA += bufferInA[evA];
-                } else {
-                    iatA += 256+bufferInA[evA];
-                }
-                photonsIat[nEvents]=iatA;
-                iatA=0;
-                evA++;
-                if (bufferInA[evA]>=0) {
-                    iatA += bufferInA[evA];
-                } else {
-                    iatA += 256+bufferInA[evA];
-                }
-                photonsIat[nEvents]=photonsIat[nEvents]+256*iatA;
-                iatA=0;
-                evA++;
-                if (bufferInA[evA]>=0) {
-                    iatA += bufferInA[evA];
-                } else {
-                    iatA += 256+bufferInA[evA];
-                }
-                photonsIat[nEvents]=photonsIat[nEvents]+256*256*iatA;
-                iatA=0;
-                evA++;
-                if (bufferInA[evA]>=0) {
-                    iatA += bufferInA[evA];
-                } else {
-                    iatA += 256+bufferInA[evA];
-                }
-                photonsIat[nEvents]=photonsIat[nEvents]+256*256*256*iatA;
-                iatA=0;
-                evA++;
-                
-                wAint[nEvents] = 1;
-                nEvents++;
-
-                if (evA>=bufferInSizeA) { // read in the next chunk of data
-                    bufferInSizeA = inputFile.read(bufferInA);
-                    evA=0;
-                }
-            }
-            return bufferInSizeA;
-        } finally {
-            return bufferInSizeA;
-        }
-    }
-
-    public int readHeaderLongPicoHarpPT3(FileInputStream inputFile) {
-                
-        int aa;
-        byte[] bb2, bb4, bb6, bb12, bb16, bb18, bb20, bb60, bb256;
-        bb2 = new byte[2];
-        bb4 = new byte[4];
-        bb6 = new byte[6];
-        bb12 = new byte[12];
-        bb16 = new byte[16];
-        bb18 = new byte[18];
-        bb20 = new byte[20];
-        bb60 = new byte[60];
-        bb256 = new byte[256];
-        String Ident;
-        String FormatVersion;
-        String CreatorName;
-        String CreatorVersion;
-        String FileTime;
-        String CRLF;
-        String Comment;
-        String ScriptName;   
-        String BrdHardwareIdent;
+
+    public int readHeaderLongPicoHarpPT3(FileInputStream inputFile) {
+                
+        int aa;
+        byte[] bb2, bb4, bb6, bb12, bb16, bb18, bb20, bb60, bb256;
+        bb2 = new byte[2];
+        bb4 = new byte[4];
+        bb6 = new byte[6];
+        bb12 = new byte[12];
+        bb16 = new byte[16];
+        bb18 = new byte[18];
+        bb20 = new byte[20];
+        bb60 = new byte[60];
+        bb256 = new byte[256];
+        String Ident;
+        String FormatVersion;
+        String CreatorName;
+        String CreatorVersion;
+        String FileTime;
+        String CRLF;
+        String Comment;
+        String ScriptName;   
+        String BrdHardwareIdent;
         
         int NumberOfCurves, BitsPerRecord, RoutingChannels, NumberOfBoards;
         int ActiveCurve, MeasurementMode, SubMode, RangeNo, Offset;
@@ -1286,314 +1482,705 @@ public class Gmn {
     }
 
     public int readHeaderPicoHarpPT3(FileInputStream inputFile) {
-             
-        int aa;
-        int ii,jj;
-        byte[] bb4;
-        bb4 = new byte[4];
+        return readHeaderPicoHarp(inputFile, false);
+    }
 
-        int NumberOfBoards;
-        int NumberOfRouterChannels=4;
-        int ImgHdrSize;
-        
-        try {
-            
-            for (ii=0; ii<85; ii++) { aa = inputFile.read(bb4); };
+    private int readHeaderPicoHarp(FileInputStream inputFile, boolean t2) {
 
-            aa = inputFile.read(bb4); //  NumberOfBoards
-            NumberOfBoards = bb4[0];
+        // PicoHarp 300 header: the text part and measurement settings (536 bytes; the
+        // number of routing channels at 336 and of boards at 340), 15 integers per board
+        // (the 13th is the Resolution (ns)), 4 router channels of 6 integers and the TTTR
+        // part: ExtDevices, Reserved1, Reserved2, CntRate0 (sync rate), CntRate1,
+        // StopAfter, StopReason, Records and ImgHdrSize, followed by the image header.
+        // T3 records count sync periods, T2 records time tags of the board resolution
+        PhotonHeader h = new PhotonHeader(t2 ? "PicoHarp pt2" : "PicoHarp pt3");
+        ByteBuffer bytes;
+        int ii, nBoards, nRoutingChannels, tttr;
+        float resolution;
 
-            for (ii=0; ii<48; ii++) { aa = inputFile.read(bb4); };
+        try {
+            bytes = readHeaderBytes(inputFile, 4096);
+        } catch (IOException e) {
+            return 0;
+        }
+        if (bytes.limit()<536+60) { return 0; }
+        nRoutingChannels = bytes.getInt(336);
+        nBoards = bytes.getInt(340);
+        tttr = 536+60*nBoards+4*6*4;
+        if (nBoards<1 || tttr+36>bytes.limit()) { return 0; }
+        resolution = bytes.getFloat(536+12*4);
+        h.syncRate = bytes.getInt(tttr+3*4);
+        h.nRecords = (bytes.getInt(tttr+7*4)!=0) ? bytes.getInt(tttr+7*4) & 0xFFFFFFFFL : -1; // 0 - not stated
+        h.headerSize = tttr+9*4+4L*bytes.getInt(tttr+8*4);
+        if (t2) {
+            h.timeResolution = (resolution>0) ? resolution*1e-9 : 4e-12; // 4 ps time tags of the PicoHarp 300
+            h.channels = new int[] {0, 1};
+        } else {
+            h.timeResolution = (h.syncRate>0) ? 1/h.syncRate : 0;
+            h.microtimeResolution = resolution*1e-9;
+            h.channels = new int[Math.max(1, nRoutingChannels)];
+            for (ii=0; ii<h.channels.length; ii++) { h.channels[ii] = ii+1; }
+        }
+        return startRecords(inputFile, h, 4);
+    }
 
-            for (jj=0; jj<NumberOfBoards; jj++) {
-                for (ii=0; ii<15; ii++) { aa = inputFile.read(bb4); }
+    public void setMicrotimeGates(int[][] gates) {
+        // time-gated FCS with PicoHarp T3 data: gates {detector, first, last} select the
+        // photons of a detector (routing channel 1-14) whose dtime (microtime bin, of
+        // PhotonHeader.microtimeResolution) is from first to last. The chA, chB and chAB
+        // decoders drop the other photons of a gated detector; detectors without gates
+        // are not gated. updateDataPicoHarpPT3gates makes every gate a channel of its
+        // own (up to 64). null - no gates
+        int gg;
+        int[][] routes = null;
+        if (gates!=null) {
+            if (gates.length<1 || gates.length>64) { throw new IllegalArgumentException("1 to 64 microtime gates can be set"); }
+            routes = new int[gates.length][];
+            for (gg=0; gg<gates.length; gg++) {
+                if (gates[gg].length!=3) { throw new IllegalArgumentException("Microtime gate "+(gg+1)+": detector, first and last bin expected"); }
+                routes[gg] = new int[] {gates[gg][0], gates[gg][1], gates[gg][2], gg};
             }
+        }
+        setMicrotimeRoutes(routes, null, null);
+    }
 
-            for (jj=0; jj<NumberOfRouterChannels; jj++) { 
-                for (ii=0; ii<6; ii++) { aa = inputFile.read(bb4); }
+    public void setMicrotimeRoutes(int[][] routes, int[] channelsA, int[] channelsB) {
+        // routing of PicoHarp T3 photons to virtual channels (0-63), e.g. detector x
+        // excitation pulse for pulsed interleaved excitation (PIE, see PieRouting): a route
+        // {detector, first, last, channel} sends the photons of a detector (1-14) with a
+        // dtime from first to last to the channel. Several routes may lead to a channel
+        // (a window that wraps around the sync period, several detectors) and a photon
+        // on overlapping routes is in several channels. The routes are folded into tables
+        // of record>>>16, so a record is routed with a single lookup:
+        // updateDataPicoHarpPT3gates tags the events with their channels (for "multi"),
+        // updateDataPicoHarpPT3routed counts the channels channelsA in A and channelsB in
+        // B (null - none). The chA, chB and chAB decoders keep the photons of a detector
+        // on its routes (detectors without routes are not gated). null - no routes
+        int ii, rr, row, route;
+        long inA = 0, inB = 0;
+        if (routes==null) {
+            gateKeep = null;
+            gateTags = null;
+            gateRoute = null;
+            return;
+        }
+        for (ii=0; channelsA!=null && ii<channelsA.length; ii++) { inA |= 1L << channelsA[ii]; }
+        for (ii=0; channelsB!=null && ii<channelsB.length; ii++) { inB |= 1L << channelsB[ii]; }
+        gateKeep = new boolean[16 << 12];
+        gateTags = new long[16 << 12];
+        gateRoute = new int[16 << 12];
+        for (rr=0; rr<routes.length; rr++) {
+            if (routes[rr].length!=4 || routes[rr][0]<1 || routes[rr][0]>14 || routes[rr][1]<0
+                    || routes[rr][2]<routes[rr][1] || routes[rr][2]>4095 || routes[rr][3]<0 || routes[rr][3]>63) {
+                throw new IllegalArgumentException("Microtime route "+(rr+1)+": detector 1-14, bins 0-4095 and channel 0-63 expected");
+            }
+            row = routes[rr][0] << 12;
+            for (ii=routes[rr][1]; ii<=routes[rr][2]; ii++) { gateTags[row+ii] |= 1L << routes[rr][3]; }
+        }
+        for (row=0; row<16; row++) {
+            boolean gated = false;
+            for (rr=0; rr<routes.length; rr++) { gated |= (routes[rr][0]==row); }
+            for (ii=0; ii<4096; ii++) {
+                route = (row << 12)+ii;
+                gateKeep[route] = !gated || gateTags[route]!=0;
+                gateRoute[route] = (((gateTags[route] & inA)!=0) ? 1 : 0) | (((gateTags[route] & inB)!=0) ? 2 : 0);
             }
-
-            for (ii=0; ii<8; ii++) { aa = inputFile.read(bb4); }
-
-            aa = inputFile.read(bb4); //  ImgHdrSize
-            ImgHdrSize = byte4ToInt(bb4);
-
-            for (jj=0; jj<ImgHdrSize; jj++) { aa = inputFile.read(bb4); }
-            
-            return 1;
-        } finally {
-            return 1;
         }
-        
     }
 
     public int updateDataPicoHarpPT3chA(FileInputStream inputFile) {
 
-        byte byteconst15 = 15;
+        int record;             // 32-bit little-endian event record
         int chNumber;
         int tempmta;
         
+        long decodeStart = System.nanoTime(); // for the decoding throughput
         nEvents=0;
         try {
             if (evA>=bufferInSizeA) { // read in the next chunk of data
-                bufferInSizeA = inputFile.read(bufferInA);
+                bufferInSizeA = mapWindowA(inputFile);
                 evA=0;
             }
 
             while ( nEvents<32768 && bufferInSizeA!=-1 ) {
-                chNumber = (bufferInA[evA+3]>>4) & byteconst15; // 4 bits with channel number
-                if ( chNumber==1) { 
-                    if (bufferInA[evA]>=0) {
-                        tempmta = bufferInA[evA];
-                    } else {
-                        tempmta = 256+bufferInA[evA];
-                    }
-                    if (bufferInA[evA+1]>=0) {
-                        tempmta += 256*bufferInA[evA+1];
-                    } else {
-                        tempmta += 256*(256+bufferInA[evA+1]);
-                    }                
+                record = bufferInA.getInt(evA);
+                chNumber = record>>>28; // 4 bits with channel number
+                if ( chNumber==1 && (gateKeep==null || gateKeep[record>>>16])) { // channel and 12-bit dtime
+                    tempmta = record & 0xFFFF; // 16 bits with the number of sync pulses
                     iatA = tempmta - iatA;
                     photonsIat[nEvents]=iatA;
                     wAint[nEvents] = 1;
                     nEvents++;
                     iatA=tempmta; // iatA holds the last mta value now
-                } else if (chNumber==15) {
-                    iatA = iatA - 65535;
+                } else if (chNumber==15 && (record & 0x0FFF0000)==0) { // an overflow; other special records are markers
+                    iatA = iatA - 65536;
                 }
                 evA += 4;
 
                 if (evA>=bufferInSizeA) { // read in the next chunk of data
-                    bufferInSizeA = inputFile.read(bufferInA);
+                    bufferInSizeA = mapWindowA(inputFile);
                     evA=0;
                 }
             }
             return bufferInSizeA;
         } finally {
+            decodeTime += System.nanoTime()-decodeStart;
             return bufferInSizeA;
         }
     }
     
     public int updateDataPicoHarpPT3chB(FileInputStream inputFile) {
 
-        byte byteconst15 = 15;
+        int record;             // 32-bit little-endian event record
         int chNumber;
         int tempmta;
         
+        long decodeStart = System.nanoTime(); // for the decoding throughput
         nEvents=0;
         try {
             if (evA>=bufferInSizeA) { // read in the next chunk of data
-                bufferInSizeA = inputFile.read(bufferInA);
+                bufferInSizeA = mapWindowA(inputFile);
                 evA=0;
             }
 
             while ( nEvents<32768 && bufferInSizeA!=-1 ) {
-                chNumber = (bufferInA[evA+3]>>4) & byteconst15; // 4 bits with channel number
-                if ( chNumber==2) { 
-                    if (bufferInA[evA]>=0) {
-                        tempmta = bufferInA[evA];
-                    } else {
-                        tempmta = 256+bufferInA[evA];
-                    }
-                    if (bufferInA[evA+1]>=0) {
-                        tempmta += 256*bufferInA[evA+1];
-                    } else {
-                        tempmta += 256*(256+bufferInA[evA+1]);
-                    }                
+                record = bufferInA.getInt(evA);
+                chNumber = record>>>28; // 4 bits with channel number
+                if ( chNumber==2 && (gateKeep==null || gateKeep[record>>>16])) { // channel and 12-bit dtime
+                    tempmta = record & 0xFFFF; // 16 bits with the number of sync pulses
                     iatA = tempmta - iatA;
                     photonsIat[nEvents]=iatA;
                     wAint[nEvents] = 1;
                     nEvents++;
                     iatA=tempmta; // iatA holds the last mta value now
-                } else if (chNumber==15) {
-                    iatA = iatA - 65535;
+                } else if (chNumber==15 && (record & 0x0FFF0000)==0) { // an overflow; other special records are markers
+                    iatA = iatA - 65536;
                 }
                 evA += 4;
 
                 if (evA>=bufferInSizeA) { // read in the next chunk of data
-                    bufferInSizeA = inputFile.read(bufferInA);
+                    bufferInSizeA = mapWindowA(inputFile);
                     evA=0;
                 }
             }
             return bufferInSizeA;
         } finally {
+            decodeTime += System.nanoTime()-decodeStart;
             return bufferInSizeA;
         }
     }
 
     public int updateDataPicoHarpPT3chAB(FileInputStream inputFile) {
 
-        byte byteconst15 = 15;
+        int record;             // 32-bit little-endian event record
         int chNumber;
         int tempmta;
         
+        long decodeStart = System.nanoTime(); // for the decoding throughput
         nEvents=0;
         try {
             if (evA>=bufferInSizeA) { // read in the next chunk of data
-                bufferInSizeA = inputFile.read(bufferInA);
+                bufferInSizeA = mapWindowA(inputFile);
                 evA=0;
             }
 
             while ( nEvents<32768 && bufferInSizeA!=-1 ) {
-                chNumber = (bufferInA[evA+3]>>4) & byteconst15; // 4 bits with channel number
-                if ( chNumber==1) { 
-                    if (bufferInA[evA]>=0) {
-                        tempmta = bufferInA[evA];
-                    } else {
-                        tempmta = 256+bufferInA[evA];
-                    }
-                    if (bufferInA[evA+1]>=0) {
-                        tempmta += 256*bufferInA[evA+1];
-                    } else {
-                        tempmta += 256*(256+bufferInA[evA+1]);
-                    }                
+                record = bufferInA.getInt(evA);
+                chNumber = record>>>28; // 4 bits with channel number
+                if ( chNumber==1 && (gateKeep==null || gateKeep[record>>>16])) { // channel and 12-bit dtime
+                    tempmta = record & 0xFFFF; // 16 bits with the number of sync pulses
                     iatA = tempmta - iatA;
                     photonsIat[nEvents]=iatA;
                     wAint[nEvents] = 1;
                     wBint[nEvents] = 0;
                     nEvents++;
                     iatA=tempmta; // iatA holds the last mta value now
-                } else if ( chNumber==2) { 
-                    if (bufferInA[evA]>=0) {
-                        tempmta = bufferInA[evA];
-                    } else {
-                        tempmta = 256+bufferInA[evA];
-                    }
-                    if (bufferInA[evA+1]>=0) {
-                        tempmta += 256*bufferInA[evA+1];
-                    } else {
-                        tempmta += 256*(256+bufferInA[evA+1]);
-                    }                
+                } else if ( chNumber==2 && (gateKeep==null || gateKeep[record>>>16])) {
+                    tempmta = record & 0xFFFF; // 16 bits with the number of sync pulses
                     iatA = tempmta - iatA;
                     photonsIat[nEvents]=iatA;
                     wAint[nEvents] = 0;
                     wBint[nEvents] = 1;
                     nEvents++;
                     iatA=tempmta; // iatA holds the last mta value now
-                } else if (chNumber==15) {
-                    iatA = iatA - 65535;
+                } else if (chNumber==15 && (record & 0x0FFF0000)==0) { // an overflow; other special records are markers
+                    iatA = iatA - 65536;
                 }
                 evA += 4;
 
                 if (evA>=bufferInSizeA) { // read in the next chunk of data
-                    bufferInSizeA = inputFile.read(bufferInA);
+                    bufferInSizeA = mapWindowA(inputFile);
                     evA=0;
                 }
             }
             return bufferInSizeA;
         } finally {
+            decodeTime += System.nanoTime()-decodeStart;
             return bufferInSizeA;
         }
     }
     
-    public int readHeaderPicoHarpPT2(FileInputStream inputFile) {
-             
-        int aa;
-        int ii,jj;
-        byte[] bb4;
-        bb4 = new byte[4];
+    public int updateDataPicoHarpPT3gates(FileInputStream inputFile) {
 
-        int NumberOfBoards;
-        int NumberOfRouterChannels=4;
-        int ImgHdrSize;
-        
+        // events tagged with the microtime gates of their photon (bit g - gate g of
+        // setMicrotimeGates, or the virtual channels of setMicrotimeRoutes), e.g. for the
+        // "multi" mode; photons outside all gates are dropped. Channels A and B hold the
+        // photons of detectors 1 and 2 (intensity traces)
+        int record;             // 32-bit little-endian event record
+        int chNumber;
+        int tempmta;
+        long tags;
+
+        long decodeStart = System.nanoTime(); // for the decoding throughput
+        nEvents=0;
+        if (gateTags==null) { throw new IllegalStateException("No microtime gates are set"); }
+        if (eventTags==null) { eventTags = new long[photonsIat.length]; }
         try {
-            
-            for (ii=0; ii<85; ii++) { aa = inputFile.read(bb4); };
+            if (evA>=bufferInSizeA) { // read in the next chunk of data
+                bufferInSizeA = mapWindowA(inputFile);
+                evA=0;
+            }
 
-            aa = inputFile.read(bb4); //  NumberOfBoards
-            NumberOfBoards = bb4[0];
+            while ( nEvents<32768 && bufferInSizeA!=-1 ) {
+                record = bufferInA.getInt(evA);
+                chNumber = record>>>28; // 4 bits with channel number
+                tags = gateTags[record>>>16]; // channel and 12 bits of dtime
+                if ( tags!=0 ) {
+                    tempmta = record & 0xFFFF; // 16 bits with the number of sync pulses
+                    iatA = tempmta - iatA;
+                    photonsIat[nEvents]=iatA;
+                    wAint[nEvents] = (chNumber==1) ? 1 : 0;
+                    wBint[nEvents] = (chNumber==2) ? 1 : 0;
+                    eventTags[nEvents] = tags;
+                    nEvents++;
+                    iatA=tempmta; // iatA holds the last mta value now
+                } else if (chNumber==15 && (record & 0x0FFF0000)==0) { // an overflow; other special records are markers
+                    iatA = iatA - 65536;
+                }
+                evA += 4;
 
-            for (ii=0; ii<48; ii++) { aa = inputFile.read(bb4); };
+                if (evA>=bufferInSizeA) { // read in the next chunk of data
+                    bufferInSizeA = mapWindowA(inputFile);
+                    evA=0;
+                }
+            }
+            return bufferInSizeA;
+        } finally {
+            decodeTime += System.nanoTime()-decodeStart;
+            return bufferInSizeA;
+        }
+    }
+
+    public int updateDataPicoHarpPT3routed(FileInputStream inputFile) {
+
+        // the photons routed to channels A and B by setMicrotimeRoutes (e.g. PIE-FCCS:
+        // detector 1 after the first pulse in A, detector 2 after the second in B); a
+        // photon in neither is dropped, one in both is an event of both
+        int record;             // 32-bit little-endian event record
+        int route;
+        int tempmta;
 
-            for (jj=0; jj<NumberOfBoards; jj++) {
-                for (ii=0; ii<15; ii++) { aa = inputFile.read(bb4); }
+        long decodeStart = System.nanoTime(); // for the decoding throughput
+        nEvents=0;
+        if (gateRoute==null) { throw new IllegalStateException("No microtime routes are set"); }
+        try {
+            if (evA>=bufferInSizeA) { // read in the next chunk of data
+                bufferInSizeA = mapWindowA(inputFile);
+                evA=0;
             }
 
-            for (jj=0; jj<NumberOfRouterChannels; jj++) { 
-                for (ii=0; ii<6; ii++) { aa = inputFile.read(bb4); }
+            while ( nEvents<32768 && bufferInSizeA!=-1 ) {
+                record = bufferInA.getInt(evA);
+                route = gateRoute[record>>>16]; // channel and 12 bits of dtime
+                if ( route!=0 ) {
+                    tempmta = record & 0xFFFF; // 16 bits with the number of sync pulses
+                    iatA = tempmta - iatA;
+                    photonsIat[nEvents]=iatA;
+                    wAint[nEvents] = route & 1;
+                    if (wBint!=null) { wBint[nEvents] = route>>>1; }
+                    nEvents++;
+                    iatA=tempmta; // iatA holds the last mta value now
+                } else if ((record>>>28)==15 && (record & 0x0FFF0000)==0) { // an overflow; other special records are markers
+                    iatA = iatA - 65536;
+                }
+                evA += 4;
+
+                if (evA>=bufferInSizeA) { // read in the next chunk of data
+                    bufferInSizeA = mapWindowA(inputFile);
+                    evA=0;
+                }
             }
+            return bufferInSizeA;
+        } finally {
+            decodeTime += System.nanoTime()-decodeStart;
+            return bufferInSizeA;
+        }
+    }
 
-            for (ii=0; ii<8; ii++) { aa = inputFile.read(bb4); }
+    public int updateHistogramPicoHarpPT3(FileInputStream inputFile, long[] histogram) {
 
-            aa = inputFile.read(bb4); //  ImgHdrSize
-            ImgHdrSize = byte4ToInt(bb4);
+        // adds the photons of the next 32768 records to histogram[record>>>16] (detector<<12 |
+        // dtime), the microtime histogram of each detector (PieRouting); -1 at the end of the file
+        int record;             // 32-bit little-endian event record
+        int nRecords = 0;
 
-            for (jj=0; jj<ImgHdrSize; jj++) { aa = inputFile.read(bb4); }
-            
-            return 1;
+        long decodeStart = System.nanoTime(); // for the decoding throughput
+        nEvents=0;
+        try {
+            if (evA>=bufferInSizeA) { // read in the next chunk of data
+                bufferInSizeA = mapWindowA(inputFile);
+                evA=0;
+            }
+
+            while ( nRecords<32768 && bufferInSizeA!=-1 ) {
+                record = bufferInA.getInt(evA);
+                if ((record>>>28)!=15) { histogram[record>>>16]++; }
+                nRecords++;
+                evA += 4;
+
+                if (evA>=bufferInSizeA) { // read in the next chunk of data
+                    bufferInSizeA = mapWindowA(inputFile);
+                    evA=0;
+                }
+            }
+            return bufferInSizeA;
         } finally {
-            return 1;
+            decodeTime += System.nanoTime()-decodeStart;
+            return bufferInSizeA;
         }
-        
     }
 
-    public int updateDataPicoHarpPT2chA(FileInputStream inputFile) {
+    public int updateDataPicoHarpPT3microtimes(FileInputStream inputFile) {
 
-        byte byteconst15 = 15;
-        int chNumber, time4bits;
+        // events tagged with the detector and dtime of their photon (record>>>16, i.e.
+        // detector<<12 | dtime) for the lifetime filters of the "flcs" mode; photons
+        // outside the microtime gates (if set) are dropped. Channels A and B hold the
+        // photons of detectors 1 and 2 (intensity traces)
+        int record;             // 32-bit little-endian event record
+        int chNumber;
         int tempmta;
-        
+
+        long decodeStart = System.nanoTime(); // for the decoding throughput
         nEvents=0;
+        if (eventTags==null) { eventTags = new long[photonsIat.length]; }
         try {
             if (evA>=bufferInSizeA) { // read in the next chunk of data
-                bufferInSizeA = inputFile.read(bufferInA);
+                bufferInSizeA = mapWindowA(inputFile);
                 evA=0;
             }
 
             while ( nEvents<32768 && bufferInSizeA!=-1 ) {
-                chNumber = (bufferInA[evA+3]>>4) & byteconst15; // 4 bits with channel number
-                if ( chNumber==1) { 
-                    if (bufferInA[evA]>=0) {
-                        tempmta = bufferInA[evA];
-                    } else {
-                        tempmta = 256+bufferInA[evA];
-                    }
-                    if (bufferInA[evA+1]>=0) {
-                        tempmta += 256*bufferInA[evA+1];
-                    } else {
-                        tempmta += 256*(256+bufferInA[evA+1]);
-                    }                
-                    if (bufferInA[evA+2]>=0) {
-                        tempmta += 256*256*bufferInA[evA+2];
-                    } else {
-                        tempmta += 256*256*(256+bufferInA[evA+2]);
-                    }
-                    tempmta += (bufferInA[evA+3] & byteconst15)*256*256*256;
+                record = bufferInA.getInt(evA);
+                chNumber = record>>>28; // 4 bits with channel number
+                if ( chNumber!=15 && (gateKeep==null || gateKeep[record>>>16])) { // channel and 12-bit dtime
+                    tempmta = record & 0xFFFF; // 16 bits with the number of sync pulses
                     iatA = tempmta - iatA;
                     photonsIat[nEvents]=iatA;
-                    wAint[nEvents] = 1;
+                    wAint[nEvents] = (chNumber==1) ? 1 : 0;
+                    wBint[nEvents] = (chNumber==2) ? 1 : 0;
+                    eventTags[nEvents] = record>>>16;
                     nEvents++;
                     iatA=tempmta; // iatA holds the last mta value now
-                } else if (chNumber==15) {
-                    iatA = iatA - 2147483647; // an overlow occurs after 128*256*256*256-1
+                } else if (chNumber==15 && (record & 0x0FFF0000)==0) { // an overflow; other special records are markers
+                    iatA = iatA - 65536;
                 }
                 evA += 4;
 
                 if (evA>=bufferInSizeA) { // read in the next chunk of data
-                    bufferInSizeA = inputFile.read(bufferInA);
+                    bufferInSizeA = mapWindowA(inputFile);
                     evA=0;
                 }
             }
             return bufferInSizeA;
         } finally {
+            decodeTime += System.nanoTime()-decodeStart;
             return bufferInSizeA;
         }
     }
 
-    public void updateIntensityTraceOneChInt() {
+    public int readHeaderPicoHarpPT2(FileInputStream inputFile) {
+        return readHeaderPicoHarp(inputFile, true);
+    }
+
+    public int updateDataPicoHarpPT2chA(FileInputStream inputFile) {
+        return updateDataPicoHarpPT2(inputFile, 1, -1);
+    }
+
+    public int updateDataPicoHarpPT2chB(FileInputStream inputFile) {
+        return updateDataPicoHarpPT2(inputFile, -1, 0);
+    }
+
+    public int updateDataPicoHarpPT2chAB(FileInputStream inputFile) {
+        return updateDataPicoHarpPT2(inputFile, 1, 0);
+    }
+
+    private int updateDataPicoHarpPT2(FileInputStream inputFile, int channelA, int channelB) {
+
+        // T2 records hold a 4-bit channel and a 28-bit time tag; channel A is input 1
+        // and channel B the sync input (channel 0), which is a second detector input
+        // in T2 mode; -1 skips a channel, both given fill wAint and wBint.
+        // iatA holds the last time tag minus the time of all overflows so far (64 bit)
+        int record;             // 32-bit little-endian event record
+        int chNumber;
+        int tempmta;
+        boolean twoChannels = (channelA>=0 && channelB>=0);
         
-        // intensity trace is calculated by dividing the event block
-        // into chunks that contain binSize number of events each
-        // and dividing the sum of all event weights by the time 
-        // it took to collect these events
+        long decodeStart = System.nanoTime(); // for the decoding throughput
+        nEvents=0;
+        try {
+            if (evA>=bufferInSizeA) { // read in the next chunk of data
+                bufferInSizeA = mapWindowA(inputFile);
+                evA=0;
+            }
+
+            while ( nEvents<32768 && bufferInSizeA!=-1 ) {
+                record = bufferInA.getInt(evA);
+                chNumber = record>>>28; // 4 bits with channel number
+                if (chNumber==15) {
+                    if ((record & 0xF)==0) { // an overflow; other special records are markers
+                        iatA = iatA - PT2_WRAPAROUND;
+                    }
+                } else if (chNumber==channelA || chNumber==channelB) { 
+                    tempmta = record & 0x0FFFFFFF; // 28 bits with the time tag
+                    iatA = tempmta - iatA;
+                    photonsIat[nEvents]=iatA;
+                    if (twoChannels) {
+                        wAint[nEvents] = (chNumber==channelA) ? 1 : 0;
+                        wBint[nEvents] = 1-wAint[nEvents];
+                    } else {
+                        wAint[nEvents] = 1;
+                    }
+                    nEvents++;
+                    iatA=tempmta; // iatA holds the last mta value now
+                }
+                evA += 4;
+
+                if (evA>=bufferInSizeA) { // read in the next chunk of data
+                    bufferInSizeA = mapWindowA(inputFile);
+                    evA=0;
+                }
+            }
+            return bufferInSizeA;
+        } finally {
+            decodeTime += System.nanoTime()-decodeStart;
+            return bufferInSizeA;
+        }
+    }
+
+    public int readHeaderPTU(FileInputStream inputFile) {
+
+        // PicoQuant unified TTTR header: "PQTTTR", a version and tags of 48 bytes
+        // (identifier, index, type, value) up to Header_End; strings and arrays follow
+        // their tag, which then holds their length in bytes. Sets the record layout,
+        // the header and routes detector channel 1 (2) to channel A (B).
+        // Returns 0 if this is not a .ptu file or its record type is not supported
+        PhotonHeader h;
+        ByteBuffer bytes;
+        int size = 65536;       // bytes read at once; doubled until Header_End is among them
+
+        ptuOverflowTime = 0;
+        try {
+            do {
+                bytes = readHeaderBytes(inputFile, size);
+                h = readHeaderPTU(bytes);
+                if (h==null && (bytes.limit()<size || size>=1<<30)) { return 0; } // no Header_End
+                size = 2*size;
+            } while (h==null);
+        } catch (IOException e) {
+            return 0;
+        }
+        if (h.headerSize<0 || !setPTULayout(ptuRecordType)) { return 0; }
+        if (startRecords(inputFile, h, 4)==0) { return 0; }
+        setPTUChannels(new int[] {1}, (wBint!=null) ? new int[] {2} : null);
+        return 1;
+    }
+
+    private PhotonHeader readHeaderPTU(ByteBuffer bytes) {
+        // the header in bytes; null if they end before Header_End, a header size
+        // of -1 if they do not start with "PQTTTR"
+        PhotonHeader h = new PhotonHeader("PicoQuant ptu");
+        String ident;
+        int ii, position, type, length, nInputChannels = 0;
+        long value;
+        boolean t2;
+
+        ptuRecordType = 0;
+        if (bytes.limit()<16) { return null; }
+        if (!new String(bytes.array(), 0, 6, StandardCharsets.US_ASCII).equals("PQTTTR")) {
+            h.headerSize = -1;
+            return h;
+        }
+        position = 16;
+        do {
+            if (position+48>bytes.limit()) { return null; }
+            for (length=0; length<32 && bytes.get(position+length)!=0; length++) { }
+            ident = new String(bytes.array(), position, length, StandardCharsets.US_ASCII);
+            type = bytes.getInt(position+36);
+            value = bytes.getLong(position+40);
+            position += 48;
+            if ((type & 0xFFFF)==0xFFFF) { // skip the string or array
+                if (value<0 || position+value>bytes.limit()) { return null; }
+                position += (int)value;
+            }
+            if (ident.equals("TTResultFormat_TTTRRecType")) {
+                ptuRecordType = (int)value;
+            } else if (ident.equals("MeasDesc_GlobalResolution")) { // time tag (T2) or sync period (T3)
+                h.timeResolution = Double.longBitsToDouble(value);
+            } else if (ident.equals("MeasDesc_Resolution")) { // microtime bin (T3)
+                h.microtimeResolution = Double.longBitsToDouble(value);
+            } else if (ident.equals("TTResult_SyncRate")) {
+                h.syncRate = value;
+            } else if (ident.equals("TTResult_NumberOfRecords")) {
+                h.nRecords = value;
+            } else if (ident.equals("HW_InpChannels")) {
+                nInputChannels = (int)value;
+            }
+        } while (!ident.equals("Header_End"));
+        h.headerSize = position;
+        t2 = ((ptuRecordType>>>8 & 0xFF)==0x02);
+        if (t2) { h.microtimeResolution = 0; }
+        h.channels = new int[Math.max(0, nInputChannels)+(t2 ? 1 : 0)]; // and the sync input (0) in T2 mode
+        for (ii=0; ii<h.channels.length; ii++) { h.channels[ii] = t2 ? ii : ii+1; }
+        return h;
+    }
+
+    private boolean setPTULayout(int recordType) {
+        // PicoHarp: 4-bit channel (15 - special) above a 28-bit time tag (T2) or a 12-bit
+        // dtime and 16 sync pulses (T3). The others: special bit, 6-bit channel (63 -
+        // overflow) and a 25-bit time tag (T2) or 15-bit dtime and 10 sync pulses (T3)
+        boolean picoHarp = (recordType==PTU_PICOHARP_T2 || recordType==PTU_PICOHARP_T3);
+        boolean t2 = ((recordType>>>8 & 0xFF)==0x02);
+        switch (recordType) {
+            case PTU_PICOHARP_T2: case PTU_PICOHARP_T3:
+            case PTU_HYDRAHARP_T2: case PTU_HYDRAHARP_T3:
+            case PTU_HYDRAHARP2_T2: case PTU_HYDRAHARP2_T3:
+            case PTU_TIMEHARP260N_T2: case PTU_TIMEHARP260N_T3:
+            case PTU_TIMEHARP260P_T2: case PTU_TIMEHARP260P_T3:
+            case PTU_MULTIHARP_T2: case PTU_MULTIHARP_T3:
+                break;
+            default:
+                return false;
+        }
+        Arrays.fill(ptuOverflow, 0);
+        if (picoHarp) {
+            ptuRowShift = 28;
+            ptuTagMask = t2 ? 0x0FFFFFFF : 0xFFFF;
+            ptuOverflowZeroMask = t2 ? 0xF : 0x0FFF0000;
+            ptuOverflowCount = 0;
+            ptuWrap = t2 ? PT2_WRAPAROUND : 65536;
+            ptuFirstDetectorRow = 1;
+            ptuDetectors = 4;
+            ptuSyncRow = t2 ? 0 : -1;
+            ptuOverflow[15] = 1;
+        } else {
+            ptuRowShift = 25;
+            ptuTagMask = t2 ? 0x1FFFFFF : 0x3FF;
+            ptuOverflowZeroMask = 0;
+            ptuOverflowCount = (recordType==PTU_HYDRAHARP_T2 || recordType==PTU_HYDRAHARP_T3) ? 0 : -1;
+            ptuWrap = t2 ? ((ptuOverflowCount==0) ? 33552000 : 33554432) : 1024;
+            ptuFirstDetectorRow = 0;
+            ptuDetectors = 64;
+            ptuSyncRow = t2 ? 64 : -1; // special record of channel 0
+            ptuOverflow[127] = 1;
+        }
+        return true;
+    }
+
+    public void setPTUChannels(int[] channelsA, int[] channelsB) {
+        // detector channels (1, 2, ...; 0 - the sync input in T2 mode) whose photons
+        // are events of channel A and of channel B (null - none); a detector may be in
+        // both. Called after readHeaderPTU
+        int ii, row;
+        Arrays.fill(ptuKeep, 0);
+        Arrays.fill(ptuRouteA, 0);
+        Arrays.fill(ptuRouteB, 0);
+        for (ii=0; ii<channelsA.length; ii++) {
+            row = ptuRow(channelsA[ii]);
+            ptuRouteA[row] = 1;
+            ptuKeep[row] = 1;
+        }
+        if (channelsB!=null && wBint!=null) {
+            for (ii=0; ii<channelsB.length; ii++) {
+                row = ptuRow(channelsB[ii]);
+                ptuRouteB[row] = 1;
+                ptuKeep[row] = 1;
+            }
+        }
+    }
+
+    private int ptuRow(int channel) {
+        if (channel==0 && ptuSyncRow>=0) { return ptuSyncRow; }
+        if (channel>=1 && channel<=ptuDetectors) { return ptuFirstDetectorRow+channel-1; }
+        throw new IllegalArgumentException("PTU record type 0x"+Integer.toHexString(ptuRecordType)+" has no channel "+channel);
+    }
+
+    public int getPTURecordType() {
+        return ptuRecordType;
+    }
+
+    public int updateDataPTU(FileInputStream inputFile) {
+
+        // records of the layout set by readHeaderPTU, decoded without branching on their
+        // content: the row of a record says (through the tables) whether it is a photon
+        // and its weights in channels A and B, or an overflow. Every record is written to
+        // the block, which only advances for photons. iatA holds the time of the last photon
+        int record;             // 32-bit little-endian event record
+        int row, tag, overflow, keep, end;
+        long time;
+        boolean twoChannels = (wBint!=null);
+
+        long decodeStart = System.nanoTime(); // for the decoding throughput
+        nEvents=0;
+        try {
+            if (evA>=bufferInSizeA) { // read in the next chunk of data
+                bufferInSizeA = mapWindowA(inputFile);
+                evA=0;
+            }
+
+            while ( nEvents<32768 && bufferInSizeA!=-1 ) {
+                end = Math.min(bufferInSizeA, evA+4*(32768-nEvents)); // at most one event per record
+                for (; evA<end; evA+=4) {
+                    record = bufferInA.getInt(evA);
+                    row = record>>>ptuRowShift;
+                    tag = record & ptuTagMask;
+                    overflow = ptuOverflow[row] & ((record & ptuOverflowZeroMask)-1)>>>31;
+                    keep = ptuKeep[row];
+                    time = ptuOverflowTime+tag;
+                    photonsIat[nEvents] = time-iatA;
+                    wAint[nEvents] = ptuRouteA[row];
+                    if (twoChannels) { wBint[nEvents] = ptuRouteB[row]; } // the same for all records
+                    iatA += keep*(time-iatA);
+                    nEvents += keep;
+                    // an overflow tag of 0 counts as one overflow
+                    ptuOverflowTime += overflow*ptuWrap*(1+(ptuOverflowCount & (tag-1+((tag-1)>>>31))));
+                }
+
+                if (evA>=bufferInSizeA) { // read in the next chunk of data
+                    bufferInSizeA = mapWindowA(inputFile);
+                    evA=0;
+                }
+            }
+            return bufferInSizeA;
+        } finally {
+            decodeTime += System.nanoTime()-decodeStart;
+            return bufferInSizeA;
+        }
+    }
+
+    public void updateIntensityTraceOneChInt() {
+        
+        // intensity trace is calculated by dividing the event block
+        // into chunks that contain binSize number of events each
+        // and dividing the sum of all event weights by the time 
+        // it took to collect these events
         
         int ev;
         int ii=0; // counter within one bin
-        int x=0, y=0;
+        long x=0;
+        int y=0;
         
         ev=0;
-        while (ev<nEvents && intensityTracePosition<32768) { // for all events in this block
+        while (ev<nEvents && intensityTracePosition<intensityTraceX.length) { // for all events in this block
         // note that the length of the intensity trace is limited to 32768 points
             y += wAint[ev];         // intensity value for this bin
             x += photonsIat[ev];    // duration of the current bin
@@ -1621,10 +2208,11 @@ public class Gmn {
         
         int ev;
         int ii=0; // counter within one bin
-        int x=0, yA=0, yB=0;
+        long x=0;
+        int yA=0, yB=0;
         
         ev=0;
-        while (ev<nEvents && intensityTracePosition<32768) { // for all events in this block
+        while (ev<nEvents && intensityTracePosition<intensityTraceX.length) { // for all events in this block
         // note that the length of the intensity trace is limited to 32768 points
             yA += wAint[ev];         // intensity value for this bin
             yB += wBint[ev];         // intensity value for this bin
@@ -1648,137 +2236,547 @@ public class Gmn {
    
     public void updateCorrAutoInt() {
 
+        // A. lagtime values are precomputed in the correlator plan
+
+        if (segments!=null) { // the block is correlated later as part of a time segment
+            segments.addEvents(photonsIat, wAint, wBint, nEvents);
+            return;
+        }
+
+        // B. calculate the correlation; cascades are independent and may run in parallel
+        correlateCascades("auto");
+
+        // C. normalization is deferred until the correlation function is requested
+        gUpToDate = false;
+        blocksSinceNormalization++;
+        if (normalizationInterval>0 && blocksSinceNormalization>=normalizationInterval) { normalize(); }
+        // end of C
+
+    }
+
+    private void correlateAutoInt(int jjFirst, int jjLast) {
+
+        // section B of updateCorrAutoInt for cascades jjFirst..jjLast-1; the ring holds
+        // cumulative iats or, with absoluteTimestamps, the time of each bin
+
         int ii; // index that runs over all timelag values within one cascade
         int jj; // index that runs over all timebase values (cascades)
         int jjoffset; // helps to account for twice as many points in the first cascade
         int iioffset; // helps to account for twice as many points in the first cascade
 
-        int[] timebase;         // timebase values
-        timebase = new int[nc];
-        int[] ntlag;
-        ntlag = new int[nc];    // array with the number of points in each cascade
-        int[] cc;
-        cc = new int[(nc+1)*np];// lagtime values in units of timebase
+        int[] timebase = plan.timebase;  // timebase values
+        int[] ntlag = plan.ntlag;        // array with the number of points in each cascade
+        int[] cc = plan.cc;              // lagtime values in units of timebase
+        int ringSize = plan.ringSize;    // ring slots per cascade (a power of two)
+        int ringMask = plan.ringMask;    // wraps ring slot indices
+        int[] cascadeOffset = plan.cascadeOffset; // position of each cascade in cc and sXX arrays
         
-        int tt;                 // temporary variable for storing lag time
-        int iat;                // iat and
+        long iat;               // iat and
         int w;               // weight for the most recent photon
         int ev;                 // counter over all events
-        byte st=-128;                 // index of the stop event
-        double cum10, cum01, cum11, n, s10;
-        double tlast_old;
-        double wtotal_old;
-
+        int evClose;            // event that closes the current bin
+        int st;                // ring slot of the stop event
+        long lag;               // lag between the bin in slot st and bin 1
+        int ring;               // position of the cascade in ciatarray and wXintArray
+        // state of the current cascade
+        long mtaJ, iatnewJ;
+        int wATempJ;
+        int spJ;
+        long tlastJ, wAtotalJ;
+        long tlast_old;
+        long wtotal_old;
 
-        // A. calculate lagtime values
-        ntlag[0] = np*2; // twice as many points in the first cascade
-        for (jj=1; jj<nc; jj++) { ntlag[jj]=np; }
-        tt = 0;
-        timebase[0]= t0;
-        for (jj=1; jj<nc; jj++) { timebase[jj] = timebase[jj-1] * 2; }
-        for (jj=0; jj<nc; jj++) {
-            if (jj==0) {jjoffset=0;} else {jjoffset=(jj+1)*np;}
-            for (ii=0; ii<ntlag[jj]; ii++) {
-                tt += timebase[jj];
-                cc[jjoffset+ii] = tt / timebase[jj];
-        }
-    }
-    // end of A
 
     // B. calculate the correlation
     tlast_old = tlast[0];
     wtotal_old = wAtotal[0];
         
-    ev = 0;
-    while (ev<nEvents) { // for all events in this block
-        iat = photonsIat[ev];
-        w = wAint[ev];
-        ev++;
-        for (jj=0; jj<nc; jj++) { // for all cascades
-            if (jj==0) {jjoffset=0;} else {jjoffset=(jj+1)*np;} // use for cc, sXX array
+    for (jj=jjFirst; jj<jjLast; jj++) { // for all cascades in this range
+        jjoffset = cascadeOffset[jj]; // use for cc, sXX array
+        ring = jj*ringSize; // use for ciatarray, wXintArray
+        // the cascade state stays in local variables while the block is processed
+        mtaJ = mta[jj];
+        iatnewJ = iatnew[jj];
+        wATempJ = wAintTemp[jj];
+        spJ = sp[jj];
+        tlastJ = tlast[jj];
+        wAtotalJ = wAtotal[jj];
+        ev = 0;
+        while (ev<nEvents) { // for all events in this block
+            if (timebase[jj]!=1) { // skip the events that only add to the current bin
+                evClose = nextBinClose(ev, timebase[jj]-mtaJ);
+                mtaJ += eventTime[evClose]-eventTime[ev];
+                wATempJ += wAsum[evClose]-wAsum[ev];
+                ev = evClose;
+                if (ev==nEvents) { break; }
+            }
+            iat = photonsIat[ev];
+            w = wAint[ev];
+            ev++;
             if (timebase[jj]!=1) { // if time coarsening is necessary
                 // bin 1 - the bin that has been populated and is ready for correlation
                 // bin 2 - the bin that is being populated
-                mta[jj] += iat; // mta value of photons in bin 2
-                if ( mta[jj]>=timebase[jj] ) { // bin 2 becomes bin 1
-                    ciatarray[128+jj*256+sp[jj]] = iatnew[jj];
-                    sp[jj]++; // array pointer for bin 1
-                    wAintArray[128+jj*256+sp[jj]] = wAintTemp[jj];
-                    wAintTemp[jj] = w;
+                mtaJ += iat; // mta value of photons in bin 2
+                if ( mtaJ>=timebase[jj] ) { // bin 2 becomes bin 1
+                    if (!absoluteTimestamps) { ciatarray[ring+spJ] = iatnewJ; }
+                    spJ = (spJ+1)&ringMask; // array pointer for bin 1
+                    wAintArray[ring+spJ] = wATempJ;
+                    wATempJ = w;
 
                     // calculation of normalization values
-                    tlast[jj] += iatnew[jj];
-                    wAtotal[jj] += wAintArray[128+jj*256+sp[jj]];
-                    if ( tlast[jj]<cc[jjoffset+ntlag[jj]-1] ) {
+                    tlastJ += iatnewJ;
+                    if (absoluteTimestamps) { ciatarray[ring+spJ] = tlastJ; } // time of bin 1
+                    wAtotalJ += wAintArray[ring+spJ];
+                    if ( tlastJ<cc[jjoffset+ntlag[jj]-1] ) {
                         for (ii=ntlag[jj]-1; ii>=0; ii--) {
-                            if (tlast[jj]<cc[jjoffset+ii]) {s01a[jjoffset+ii]+=wAintArray[128+jj*256+sp[jj]];}
+                            if (tlastJ<cc[jjoffset+ii]) {s01a[jjoffset+ii]+=wAintArray[ring+spJ];}
                         }
                     }
                     // correlation search and calculation
-                    st = sp[jj]; // check the last entry
-                    st--;
-                    if ( ciatarray[128+jj*256+st]<=cc[jjoffset+ntlag[jj]-1] ) {
-                        while ( ciatarray[128+jj*256+st]<cc[jjoffset] ) {
-                            st--;
-                            ciatarray[128+jj*256+st] += iatnew[jj];
+                    st = spJ; // check the last entry
+                    st = (st-1)&ringMask;
+                    if (absoluteTimestamps) {
+                        lag = tlastJ-ciatarray[ring+st];
+                        if ( lag<=cc[jjoffset+ntlag[jj]-1] ) {
+                            while ( lag<cc[jjoffset] && st!=spJ ) {
+                                st = (st-1)&ringMask;
+                                lag = tlastJ-ciatarray[ring+st];
+                            }
+                            // while within the limits of timelag values
+                            while ( lag<=cc[jjoffset+ntlag[jj]-1] && lag>=cc[jjoffset] && st!=spJ ) {
+                                s11aa[jjoffset+(int)lag-cc[jjoffset]] += (long)wAintArray[ring+spJ]*wAintArray[ring+st];
+                                st = (st-1)&ringMask;
+                                lag = tlastJ-ciatarray[ring+st];
+                            }
+                            if (st==spJ) { ringOverruns[jj]++; } // the lags reach beyond the ring
+                        }
+                    } else if ( ciatarray[ring+st]<=cc[jjoffset+ntlag[jj]-1] ) {
+                        while ( ciatarray[ring+st]<cc[jjoffset] && st!=spJ ) {
+                            st = (st-1)&ringMask;
+                            ciatarray[ring+st] += iatnewJ;
                         }
                         // while within the limits of timelag values
-                        while ( ciatarray[128+jj*256+st]<=cc[jjoffset+ntlag[jj]-1] && ciatarray[128+jj*256+st]>=cc[jjoffset] ) {
-                            s11aa[jjoffset+ciatarray[128+jj*256+st]-cc[jjoffset]] += wAintArray[128+jj*256+sp[jj]]*wAintArray[128+jj*256+st];
-                            st--;
-                            ciatarray[128+jj*256+st] += iatnew[jj];
+                        while ( ciatarray[ring+st]<=cc[jjoffset+ntlag[jj]-1] && ciatarray[ring+st]>=cc[jjoffset] && st!=spJ ) {
+                            s11aa[jjoffset+(int)ciatarray[ring+st]-cc[jjoffset]] += (long)wAintArray[ring+spJ]*wAintArray[ring+st];
+                            st = (st-1)&ringMask;
+                            ciatarray[ring+st] += iatnewJ;
                         }
+                        if (st==spJ) { ringOverruns[jj]++; } // the lags reach beyond the ring
                     }
 
-                    iatnew[jj] = mta[jj]/timebase[jj]; // iat value for bin 2
-                    mta[jj] = mta[jj]-iatnew[jj]*timebase[jj]; // offset mta value for bin 2
+                    iatnewJ = mtaJ/timebase[jj]; // iat value for bin 2
+                    mtaJ = mtaJ-iatnewJ*timebase[jj]; // offset mta value for bin 2
                 } else { // processing the current time bin
-                    wAintTemp[jj] += w; // add photon weights
+                    wATempJ += w; // add photon weights
                 }
             } else { // timebase=1; no need to coarsen time
-                ciatarray[128+jj*256+sp[jj]] = iat; // iat value for bin 1
-                sp[jj]++; // array pointer for bin 1
-                wAintArray[128+jj*256+sp[jj]] = w;
+                if (!absoluteTimestamps) { ciatarray[ring+spJ] = iat; } // iat value for bin 1
+                spJ = (spJ+1)&ringMask; // array pointer for bin 1
+                wAintArray[ring+spJ] = w;
 
                 // calculation of normalization values
-                tlast[jj] += iat;
-                wAtotal[jj] += wAintArray[128+jj*256+sp[jj]];
-                if ( tlast[jj]<cc[jjoffset+ntlag[jj]-1] ) {
+                tlastJ += iat;
+                if (absoluteTimestamps) { ciatarray[ring+spJ] = tlastJ; } // time of bin 1
+                wAtotalJ += wAintArray[ring+spJ];
+                if ( tlastJ<cc[jjoffset+ntlag[jj]-1] ) {
                     for (ii=ntlag[jj]-1; ii>=0; ii--) {
-                        if (tlast[jj]<cc[jjoffset+ii]) {s01a[jjoffset+ii]+=wAintArray[128+jj*256+sp[jj]];}
+                        if (tlastJ<cc[jjoffset+ii]) {s01a[jjoffset+ii]+=wAintArray[ring+spJ];}
                     }
                 }
 
                 // correlation search and calculation
-                st = sp[jj]; // check the last entry
-                st--;
-                if ( ciatarray[128+jj*256+st]<=cc[jjoffset+ntlag[jj]-1] ) {
-                    while ( ciatarray[128+jj*256+st]<cc[jjoffset] ) {
-                        st--;
-                        ciatarray[128+jj*256+st] += iatnew[jj];
+                st = spJ; // check the last entry
+                st = (st-1)&ringMask;
+                if (absoluteTimestamps) {
+                    lag = tlastJ-ciatarray[ring+st];
+                    if ( lag<=cc[jjoffset+ntlag[jj]-1] ) {
+                        while ( lag<cc[jjoffset] && st!=spJ ) {
+                            st = (st-1)&ringMask;
+                            lag = tlastJ-ciatarray[ring+st];
+                        }
+                        // while within the limits of timelag values
+                        while ( lag>=cc[jjoffset] && lag<=cc[jjoffset+ntlag[jj]-1] && st!=spJ ) {
+                            s11aa[jjoffset+(int)lag-1] += (long)wAintArray[ring+spJ]*wAintArray[ring+st];
+                            st = (st-1)&ringMask;
+                            lag = tlastJ-ciatarray[ring+st];
+                        }
+                        if (st==spJ) { ringOverruns[jj]++; } // the lags reach beyond the ring
+                    }
+                } else if ( ciatarray[ring+st]<=cc[jjoffset+ntlag[jj]-1] ) {
+                    while ( ciatarray[ring+st]<cc[jjoffset] && st!=spJ ) {
+                        st = (st-1)&ringMask;
+                        ciatarray[ring+st] += iatnewJ;
                     }
                     // while within the limits of timelag values
-                    while ( ciatarray[128+jj*256+st]>=cc[jjoffset] && ciatarray[128+jj*256+st]<=cc[jjoffset+ntlag[jj]-1] ) {
-                        s11aa[jjoffset+ciatarray[128+jj*256+st]-1] += wAintArray[128+jj*256+sp[jj]]*wAintArray[128+jj*256+st];
-                        st--;
-                        ciatarray[128+jj*256+st] += iat;
+                    while ( ciatarray[ring+st]>=cc[jjoffset] && ciatarray[ring+st]<=cc[jjoffset+ntlag[jj]-1] && st!=spJ ) {
+                        s11aa[jjoffset+(int)ciatarray[ring+st]-1] += (long)wAintArray[ring+spJ]*wAintArray[ring+st];
+                        st = (st-1)&ringMask;
+                        ciatarray[ring+st] += iat;
                     }
+                    if (st==spJ) { ringOverruns[jj]++; } // the lags reach beyond the ring
                 }
             }
-        } // end of cycle over timebase values          
-    } // end of cycle over all events
+        } // end of cycle over all events
+        mta[jj] = mtaJ;
+        iatnew[jj] = iatnewJ;
+        wAintTemp[jj] = wATempJ;
+        sp[jj] = spJ;
+        tlast[jj] = tlastJ;
+        wAtotal[jj] = wAtotalJ;
+    } // end of cycle over timebase values
     // end of B
 
+//    countrateA = wAtotal[0] / tlast[0] / dt;
+
+    //return (wAtotal[0]-wtotal_old)/(tlast[0]-tlast_old)/dt; // local countrate
+//////////////////////////////////////////////////////////////////////////////
+        
+    }
+
+    public void updateCorr() {
+        // correlate the current block of events with the kernel selected in initializeGmn
+        if (correlationMode=="auto") {
+            updateCorrAutoInt();
+        } else if (correlationMode=="cross") {
+            updateCorrCrossInt();
+        } else if (correlationMode=="autoHOmlt") {
+            updateCorrAutoHOmltInt();
+        } else if (correlationMode=="fused") {
+            updateCorrFusedInt();
+        } else if (correlationMode=="multi") {
+            updateCorrMultiInt();
+        } else if (correlationMode=="flcs") {
+            updateCorrFlcs();
+        }
+    }
+
+    public void correlateEvents(long[] iat, int[] wA, int[] wB, int offset, int n) {
+        correlateEvents(iat, wA, wB, null, offset, n);
+    }
+
+    public void correlateEvents(long[] iat, int[] wA, int[] wB, long[] tags, int offset, int n) {
+        // correlate n events given as inter-arrival times, weights and channel tags
+        // ("multi", "flcs"; otherwise null), using the kernel selected in initializeGmn;
+        // events are passed on in blocks of photonsIat.length
+        int ev, nBlock;
+        while (n>0) {
+            nBlock = Math.min(n, photonsIat.length);
+            for (ev=0; ev<nBlock; ev++) {
+                photonsIat[ev] = iat[offset+ev];
+                wAint[ev] = wA[offset+ev];
+                if (wBint!=null && wB!=null) { wBint[ev] = wB[offset+ev]; }
+                if (eventTags!=null && tags!=null) { eventTags[ev] = tags[offset+ev]; }
+            }
+            nEvents = nBlock;
+            updateCorr();
+            offset += nBlock;
+            n -= nBlock;
+        }
+    }
+
+    public Gmn newSegment() {
+        // correlator with the same plan, mode and functions as this one;
+        // used to correlate one time segment of the data on its own
+        Gmn segment = new Gmn();
+        segment.setPlan(plan);
+        segment.fusedFunctions = fusedFunctions;
+        segment.nMultiChannels = nMultiChannels;
+        segment.pairEarly = pairEarly;
+        segment.pairLate = pairLate;
+        segment.filterDetector = filterDetector;
+        segment.filterWeight = filterWeight;
+        segment.absoluteTimestamps = absoluteTimestamps;
+        // no deadTime: photons within the dead time are dropped before events are segmented
+        segment.initializeGmn(correlationMode);
+        return segment;
+    }
+
+    void exchangeEvents(EventBlock block) {
+        // swap the current block of events with block, whose arrays have the same
+        // size and channels: this Gmn continues with the events of block, and
+        // block receives the events (and arrays) this Gmn held so far
+        long[] iat = photonsIat;
+        int[] wA = wAint;
+        int[] wB = wBint;
+        long[] tags = eventTags;
+        int n = nEvents;
+        photonsIat = block.iat;
+        wAint = block.wA;
+        wBint = block.wB;
+        eventTags = block.tags;
+        nEvents = block.nEvents;
+        block.iat = iat;
+        block.wA = wA;
+        block.wB = wB;
+        block.tags = tags;
+        block.nEvents = n;
+    }
+
+    public void startSegment(long startTime) {
+        // set the cascades as if no photon arrived in the lag range before startTime,
+        // which must be a multiple of the largest timebase; an empty bin just before
+        // startTime is closed by the first event, whose iat is counted from startTime
+        int[] timebase = plan.timebase;
+        for (int jj=0; jj<nc; jj++) {
+            iatnew[jj] = 0;
+            if (timebase[jj]!=1) {
+                mta[jj] = timebase[jj];
+                tlast[jj] = startTime/timebase[jj] - 1;
+            } else {
+                mta[jj] = 0;
+                tlast[jj] = startTime;
+            }
+        }
+    }
+
+    public void clearSums() {
+        // zero all accumulated sums but keep the ring buffers and tlast, so that
+        // events correlated so far serve only as history for the following ones
+        clearArray(wAtotal); clearArray(wAtotal2); clearArray(wAtotal3); clearArray(wBtotal);
+        clearArray(s01a); clearArray(s02a); clearArray(s03a); clearArray(s01b);
+        clearArray(s11aa); clearArray(s11ab); clearArray(s11ba); clearArray(s11bb);
+        clearArray(s12aa); clearArray(s21aa); clearArray(s13aa); clearArray(s31aa); clearArray(s22aa);
+        if (sProduct!=null) {
+            for (double[] s:sProduct) { clearArray(s); }
+        }
+        clearArray(wMultiTotal); clearArray(s01multi); clearArray(s11multi);
+        clearArray(wFlcsTotal); clearArray(s01flcs); clearArray(s11flcs);
+        clearArray(ringOverruns);
+        gUpToDate = false;
+    }
+
+    public void mergeSegment(Gmn segment) {
+        // add the sums of a segment that follows the data correlated so far and take
+        // over its ring buffers and cascade state; sums of integer weights are exact,
+        // so merging gives the same result as correlating all events in one pass
+        // (the filter weights of "flcs" are summed in another order)
+        addArray(wAtotal, segment.wAtotal); addArray(wAtotal2, segment.wAtotal2);
+        addArray(wAtotal3, segment.wAtotal3); addArray(wBtotal, segment.wBtotal);
+        addArray(s01a, segment.s01a); addArray(s02a, segment.s02a);
+        addArray(s03a, segment.s03a); addArray(s01b, segment.s01b);
+        addArray(s11aa, segment.s11aa); addArray(s11ab, segment.s11ab);
+        addArray(s11ba, segment.s11ba); addArray(s11bb, segment.s11bb);
+        addArray(s12aa, segment.s12aa); addArray(s21aa, segment.s21aa);
+        addArray(s13aa, segment.s13aa); addArray(s31aa, segment.s31aa); addArray(s22aa, segment.s22aa);
+        if (sProduct!=null) {
+            for (int kk=0; kk<sProduct.length; kk++) { addArray(sProduct[kk], segment.sProduct[kk]); }
+        }
+        addArray(wMultiTotal, segment.wMultiTotal);
+        addArray(s01multi, segment.s01multi); addArray(s11multi, segment.s11multi);
+        addArray(wFlcsTotal, segment.wFlcsTotal);
+        addArray(s01flcs, segment.s01flcs); addArray(s11flcs, segment.s11flcs);
+        addArray(ringOverruns, segment.ringOverruns);
+
+        tlast = segment.tlast.clone();
+        ciatarray = segment.ciatarray.clone();
+        if (segment.wAintArray!=null) { wAintArray = segment.wAintArray.clone(); }
+        if (segment.wBintArray!=null) { wBintArray = segment.wBintArray.clone(); }
+        mta = segment.mta.clone();
+        iatnew = segment.iatnew.clone();
+        if (segment.wAintTemp!=null) { wAintTemp = segment.wAintTemp.clone(); }
+        if (segment.wBintTemp!=null) { wBintTemp = segment.wBintTemp.clone(); }
+        if (segment.wMultiArray!=null) {
+            wMultiArray = segment.wMultiArray.clone();
+            wMultiTemp = segment.wMultiTemp.clone();
+        }
+        if (segment.wFlcsArray!=null) {
+            wFlcsArray = segment.wFlcsArray.clone();
+            wFlcsTemp = segment.wFlcsTemp.clone();
+        }
+        sp = segment.sp.clone();
+        eventsCorrelated = true;
+        gUpToDate = false;
+    }
+
+    private void clearArray(double[] v) {
+        if (v!=null) { Arrays.fill(v, 0); }
+    }
+
+    private void clearArray(long[] v) {
+        if (v!=null) { Arrays.fill(v, 0); }
+    }
+
+    private void addArray(double[] v, double[] add) {
+        if (v!=null && add!=null) {
+            for (int kk=0; kk<v.length; kk++) { v[kk] += add[kk]; }
+        }
+    }
+
+    private void addArray(long[] v, long[] add) {
+        if (v!=null && add!=null) {
+            for (int kk=0; kk<v.length; kk++) { v[kk] += add[kk]; }
+        }
+    }
+
+    private long ringLag(int jj, int st) {
+        // lag between the bin in ring slot st and the last closed bin of cascade jj
+        if (absoluteTimestamps) {
+            return tlast[jj]-ciatarray[jj*plan.ringSize+st];
+        }
+        return ciatarray[jj*plan.ringSize+st];
+    }
+
+    private void correlateCascades(String kernel) {
+        // every cascade reads the same block of events but only touches its own
+        // state, ring slice and sXX range, so groups of cascades can be correlated
+        // on separate threads with results identical to the sequential order
+        eventsCorrelated = true;
+        scheduleBlock();
+        if (workerPool==null || nc<2) {
+            correlateCascadeRange(kernel, 0, nc);
+        } else {
+            workerPool.invoke(new CascadeTask(kernel, 0, nc));
+        }
+    }
+
+    private void scheduleBlock() {
+        // running times and weight sums of the block; with them a coarse cascade
+        // jumps from one closing bin to the next instead of visiting every event
+        int ev;
+        if (eventTime==null || eventTime.length<photonsIat.length+1) {
+            eventTime = new long[photonsIat.length+1];
+            wAsum = new int[photonsIat.length+1];
+            wBsum = new int[photonsIat.length+1];
+        }
+        for (ev=0; ev<nEvents; ev++) {
+            eventTime[ev+1] = eventTime[ev]+photonsIat[ev];
+            wAsum[ev+1] = wAsum[ev]+wAint[ev];
+        }
+        if (wBint!=null) {
+            for (ev=0; ev<nEvents; ev++) { wBsum[ev+1] = wBsum[ev]+wBint[ev]; }
+        }
+        if (correlationMode=="multi") { // the same for each used channel
+            int uu, stride = photonsIat.length+1, sum, bit;
+            if (wMultiSum==null || wMultiSum.length<stride*usedChannels.length) {
+                wMultiSum = new int[stride*usedChannels.length];
+            }
+            for (uu=0; uu<usedChannels.length; uu++) {
+                bit = usedChannels[uu];
+                sum = 0;
+                for (ev=0; ev<nEvents; ev++) {
+                    wMultiSum[uu*stride+ev] = sum;
+                    sum += (int)(eventTags[ev] >>> bit) & 1;
+                }
+                wMultiSum[uu*stride+nEvents] = sum;
+            }
+        } else if (correlationMode=="flcs") { // filter weights of the events, looked up once per block
+            int uu, kk, detector, capacity = photonsIat.length, stride = capacity+1;
+            double sum, w;
+            double[] filter;
+            long code;
+            if (wFlcsSum==null || wFlcsSum.length<stride*usedChannels.length) {
+                wFlcsEvent = new double[capacity*usedChannels.length];
+                wFlcsSum = new double[stride*usedChannels.length];
+            }
+            for (uu=0; uu<usedChannels.length; uu++) {
+                kk = usedChannels[uu];
+                detector = filterDetector[kk];
+                filter = filterWeight[kk];
+                sum = 0;
+                for (ev=0; ev<nEvents; ev++) {
+                    code = eventTags[ev];
+                    w = ((int)(code >>> 12)==detector) ? filter[(int)code & 4095] : 0;
+                    wFlcsEvent[uu*capacity+ev] = w;
+                    wFlcsSum[uu*stride+ev] = sum;
+                    sum += w;
+                }
+                wFlcsSum[uu*stride+nEvents] = sum;
+            }
+        }
+    }
+
+    private int nextBinClose(int ev, long remaining) {
+        // first event at or after ev that arrives at least 'remaining' time units
+        // after event ev-1, i.e. the event that closes the current bin of a cascade;
+        // nEvents if the bin stays open until the end of the block
+        long target = eventTime[ev]+remaining;
+        int lo, hi, mid, step;
+        if (eventTime[ev+1]>=target) { return ev; } // fine cascades close at almost every event
+        lo = ev+1; // eventTime[lo]<target
+        step = 1;
+        hi = lo+step;
+        while (hi<=nEvents && eventTime[hi]<target) { // gallop over the bin
+            lo = hi;
+            step = 2*step;
+            hi = lo+step;
+        }
+        if (hi>nEvents) {
+            if (eventTime[nEvents]<target) { return nEvents; }
+            hi = nEvents;
+        }
+        while (hi-lo>1) { // eventTime[lo]<target<=eventTime[hi]
+            mid = (lo+hi)>>>1;
+            if (eventTime[mid]<target) { lo = mid; } else { hi = mid; }
+        }
+        return hi-1;
+    }
+
+    private void correlateCascadeRange(String kernel, int jjFirst, int jjLast) {
+        if (kernel=="auto") {
+            correlateAutoInt(jjFirst, jjLast);
+        } else if (kernel=="cross") {
+            correlateCrossInt(jjFirst, jjLast);
+        } else if (kernel=="autoHOmlt") {
+            correlateAutoHOmltInt(jjFirst, jjLast);
+        } else if (kernel=="fused") {
+            correlateFusedInt(jjFirst, jjLast);
+        } else if (kernel=="multi") {
+            correlateMultiInt(jjFirst, jjLast);
+        } else if (kernel=="flcs") {
+            correlateFlcs(jjFirst, jjLast);
+        }
+    }
+
+    private class CascadeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String kernel;
+        private final int jjFirst;      // first cascade of the group
+        private final int jjLast;       // last cascade of the group (exclusive)
+
+        CascadeTask(String kernel, int jjFirst, int jjLast) {
+            this.kernel = kernel;
+            this.jjFirst = jjFirst;
+            this.jjLast = jjLast;
+        }
+
+        @Override
+        protected void compute() {
+            if (jjLast-jjFirst<=cascadesPerTask) {
+                correlateCascadeRange(kernel, jjFirst, jjLast);
+            } else {
+                int jjMid = (jjFirst+jjLast)/2;
+                invokeAll(new CascadeTask(kernel, jjFirst, jjMid), new CascadeTask(kernel, jjMid, jjLast));
+            }
+        }
+    }
+
+    private void normalizeAutoInt() {
+
+        int ii; // index that runs over all timelag values within one cascade
+        int jj; // index that runs over all timebase values (cascades)
+        int jjoffset; // helps to account for twice as many points in the first cascade
+
+        int[] ntlag = plan.ntlag;        // array with the number of points in each cascade
+        int[] cc = plan.cc;              // lagtime values in units of timebase
+        int ringSize = plan.ringSize;    // ring slots per cascade (a power of two)
+        int ringMask = plan.ringMask;    // wraps ring slot indices
+        int[] cascadeOffset = plan.cascadeOffset; // position of each cascade in cc and sXX arrays
+
+        int st;                          // ring slot of the stop event
+        double cum10, cum01, cum11, n, s10;
+
     // C. normalize the correlation function
     for (jj=0; jj<nc; jj++) {
-        if (jj==0) {jjoffset=0;} else {jjoffset=(jj+1)*np;}
+        jjoffset = cascadeOffset[jj];
         for (ii=0; ii<ntlag[jj]; ii++) {
-            s10 = wAtotal[jj] - wAintArray[128+jj*256+sp[jj]]; // subtract last bin
+            s10 = wAtotal[jj] - wAintArray[jj*ringSize+sp[jj]]; // subtract last bin
             st = sp[jj];
-            st--;
-            while ( (ciatarray[128+jj*256+st]+1)<=cc[jjoffset+ii] ) {
-                  s10 = s10 - wAintArray[128+jj*256+st];
-                  st--;
+            st = (st-1)&ringMask;
+            while ( (ringLag(jj, st)+1)<=cc[jjoffset+ii] && st!=sp[jj] ) {
+                  s10 = s10 - wAintArray[jj*ringSize+st];
+                  st = (st-1)&ringMask;
             }
             n = tlast[jj]-cc[jjoffset+ii];
             // basically, true s10 is s10 - wtotal
@@ -1790,190 +2788,311 @@ public class Gmn {
     }
     // end of C
 
-//    countrateA = wAtotal[0] / tlast[0] / dt;
-
-    //return (wAtotal[0]-wtotal_old)/(tlast[0]-tlast_old)/dt; // local countrate
-//////////////////////////////////////////////////////////////////////////////
-        
     }
 
     public void updateCorrCrossInt() {
 
+        // A. lagtime values are precomputed in the correlator plan
+
+        if (segments!=null) { // the block is correlated later as part of a time segment
+            segments.addEvents(photonsIat, wAint, wBint, nEvents);
+            return;
+        }
+
+        // B. calculate the correlation; cascades are independent and may run in parallel
+        correlateCascades("cross");
+
+        // C. normalization is deferred until the correlation function is requested
+        gUpToDate = false;
+        blocksSinceNormalization++;
+        if (normalizationInterval>0 && blocksSinceNormalization>=normalizationInterval) { normalize(); }
+        // end of C
+
+    }
+
+    private void correlateCrossInt(int jjFirst, int jjLast) {
+
+        // section B of updateCorrCrossInt for cascades jjFirst..jjLast-1; the ring holds
+        // cumulative iats or, with absoluteTimestamps, the time of each bin
+
         int ii; // index that runs over all timelag values within one cascade
         int jj; // index that runs over all timebase values (cascades)
         int jjoffset; // helps to account for twice as many points in the first cascade
         int iioffset; // helps to account for twice as many points in the first cascade
 
-        int[] timebase;         // timebase values
-        timebase = new int[nc];
-        int[] ntlag;
-        ntlag = new int[nc];    // array with the number of points in each cascade
-        int[] cc;
-        cc = new int[(nc+1)*np];// lagtime values in units of timebase
+        int[] timebase = plan.timebase;  // timebase values
+        int[] ntlag = plan.ntlag;        // array with the number of points in each cascade
+        int[] cc = plan.cc;              // lagtime values in units of timebase
+        int ringSize = plan.ringSize;    // ring slots per cascade (a power of two)
+        int ringMask = plan.ringMask;    // wraps ring slot indices
+        int[] cascadeOffset = plan.cascadeOffset; // position of each cascade in cc and sXX arrays
         
-        int tt;                 // temporary variable for storing lag time
-        int iat;                // iat and
+        long iat;               // iat and
         int wA, wB;               // weight for the most recent photon
         int ev;                 // counter over all events
-        byte st=-128;                 // index of the stop event
-        double cum10a, cum01a, cum10b, cum01b, cum11aa, cum11bb, cum11ab, cum11ba, n, s10a, s10b;
-        double tlast_old;
-        double wAtotal_old, wBtotal_old;
+        int evClose;            // event that closes the current bin
+        int st;                // ring slot of the stop event
+        long lag;               // lag between the bin in slot st and bin 1
+        int ring;               // position of the cascade in ciatarray and wXintArray
+        // state of the current cascade
+        long mtaJ, iatnewJ;
+        int wATempJ, wBTempJ;
+        int spJ;
+        long tlastJ, wAtotalJ, wBtotalJ;
+        long tlast_old;
+        long wAtotal_old, wBtotal_old;
 
 
-        // A. calculate lagtime values
-        ntlag[0] = np*2; // twice as many points in the first cascade
-        for (jj=1; jj<nc; jj++) { ntlag[jj]=np; }
-        tt = 0;
-        timebase[0]= t0;
-        for (jj=1; jj<nc; jj++) { timebase[jj] = timebase[jj-1] * 2; }
-        for (jj=0; jj<nc; jj++) {
-            if (jj==0) {jjoffset=0;} else {jjoffset=(jj+1)*np;}
-            for (ii=0; ii<ntlag[jj]; ii++) {
-                tt += timebase[jj];
-                cc[jjoffset+ii] = tt / timebase[jj];
-        }
-    }
-    // end of A
-
     // B. calculate the correlation
     tlast_old = tlast[0];
     wAtotal_old = wAtotal[0];
     wBtotal_old = wBtotal[0];
         
-    ev = 0;
-    while (ev<nEvents) { // for all events in this block
-        iat = photonsIat[ev];
-        wA = wAint[ev];
-        wB = wBint[ev];
-        ev++;
-        for (jj=0; jj<nc; jj++) { // for all cascades
-            if (jj==0) {jjoffset=0;} else {jjoffset=(jj+1)*np;} // use for cc, sXX array
+    for (jj=jjFirst; jj<jjLast; jj++) { // for all cascades in this range
+        jjoffset = cascadeOffset[jj]; // use for cc, sXX array
+        ring = jj*ringSize; // use for ciatarray, wXintArray
+        // the cascade state stays in local variables while the block is processed
+        mtaJ = mta[jj];
+        iatnewJ = iatnew[jj];
+        wATempJ = wAintTemp[jj];
+        wBTempJ = wBintTemp[jj];
+        spJ = sp[jj];
+        tlastJ = tlast[jj];
+        wAtotalJ = wAtotal[jj];
+        wBtotalJ = wBtotal[jj];
+        ev = 0;
+        while (ev<nEvents) { // for all events in this block
+            if (timebase[jj]!=1) { // skip the events that only add to the current bin
+                evClose = nextBinClose(ev, timebase[jj]-mtaJ);
+                mtaJ += eventTime[evClose]-eventTime[ev];
+                wATempJ += wAsum[evClose]-wAsum[ev];
+                wBTempJ += wBsum[evClose]-wBsum[ev];
+                ev = evClose;
+                if (ev==nEvents) { break; }
+            }
+            iat = photonsIat[ev];
+            wA = wAint[ev];
+            wB = wBint[ev];
+            ev++;
             if (timebase[jj]!=1) { // if time coarsening is necessary
                 // bin 1 - the bin that has been populated and is ready for correlation
                 // bin 2 - the bin that is being populated
-                mta[jj] += iat; // mta value of photons in bin 2
-                if ( mta[jj]>=timebase[jj] ) { // bin 2 becomes bin 1
-                    ciatarray[128+jj*256+sp[jj]] = iatnew[jj];
-                    sp[jj]++; // array pointer for bin 1
-                    wAintArray[128+jj*256+sp[jj]] = wAintTemp[jj];
-                    wBintArray[128+jj*256+sp[jj]] = wBintTemp[jj];
-                    wAintTemp[jj] = wA;
-                    wBintTemp[jj] = wB;
+                mtaJ += iat; // mta value of photons in bin 2
+                if ( mtaJ>=timebase[jj] ) { // bin 2 becomes bin 1
+                    if (!absoluteTimestamps) { ciatarray[ring+spJ] = iatnewJ; }
+                    spJ = (spJ+1)&ringMask; // array pointer for bin 1
+                    wAintArray[ring+spJ] = wATempJ;
+                    wBintArray[ring+spJ] = wBTempJ;
+                    wATempJ = wA;
+                    wBTempJ = wB;
 
                     // calculation of normalization values
-                    tlast[jj] += iatnew[jj];
-                    wAtotal[jj] += wAintArray[128+jj*256+sp[jj]];
-                    wBtotal[jj] += wBintArray[128+jj*256+sp[jj]];
-                    if ( tlast[jj]<cc[jjoffset+ntlag[jj]-1] ) {
+                    tlastJ += iatnewJ;
+                    if (absoluteTimestamps) { ciatarray[ring+spJ] = tlastJ; } // time of bin 1
+                    wAtotalJ += wAintArray[ring+spJ];
+                    wBtotalJ += wBintArray[ring+spJ];
+                    if ( tlastJ<cc[jjoffset+ntlag[jj]-1] ) {
                         for (ii=ntlag[jj]-1; ii>=0; ii--) {
-                            if (tlast[jj]<cc[jjoffset+ii]) {s01a[jjoffset+ii]+=wAintArray[128+jj*256+sp[jj]];}
-                            if (tlast[jj]<cc[jjoffset+ii]) {s01b[jjoffset+ii]+=wBintArray[128+jj*256+sp[jj]];}
+                            if (tlastJ<cc[jjoffset+ii]) {s01a[jjoffset+ii]+=wAintArray[ring+spJ];}
+                            if (tlastJ<cc[jjoffset+ii]) {s01b[jjoffset+ii]+=wBintArray[ring+spJ];}
                         }
                     }
                     // correlation search and calculation
-                    st = sp[jj]; // check the last entry
-                    st--;
-                    if ( ciatarray[128+jj*256+st]<=cc[jjoffset+ntlag[jj]-1] ) {
-                        while ( ciatarray[128+jj*256+st]<cc[jjoffset] ) {
-                            st--;
-                            ciatarray[128+jj*256+st] += iatnew[jj];
+                    st = spJ; // check the last entry
+                    st = (st-1)&ringMask;
+                    if (absoluteTimestamps) {
+                        lag = tlastJ-ciatarray[ring+st];
+                        if ( lag<=cc[jjoffset+ntlag[jj]-1] ) {
+                            while ( lag<cc[jjoffset] && st!=spJ ) {
+                                st = (st-1)&ringMask;
+                                lag = tlastJ-ciatarray[ring+st];
+                            }
+                            // while within the limits of timelag values
+                            while ( lag<=cc[jjoffset+ntlag[jj]-1] && lag>=cc[jjoffset] && st!=spJ ) {
+                                if (wAintArray[ring+st]>0) {
+                                    if (wAintArray[ring+spJ]>0) {
+                                        s11aa[jjoffset+(int)lag-cc[jjoffset]] += (long)wAintArray[ring+st]*wAintArray[ring+spJ];
+                                    }
+                                    if (wBintArray[ring+spJ]>0) {
+                                        s11ab[jjoffset+(int)lag-cc[jjoffset]] += (long)wAintArray[ring+st]*wBintArray[ring+spJ];
+                                    }
+                                }
+                                if (wBintArray[ring+st]>0) {
+                                    if (wBintArray[ring+spJ]>0) {
+                                        s11bb[jjoffset+(int)lag-cc[jjoffset]] += (long)wBintArray[ring+st]*wBintArray[ring+spJ];
+                                    }
+                                    if (wAintArray[ring+spJ]>0) {
+                                        s11ba[jjoffset+(int)lag-cc[jjoffset]] += (long)wBintArray[ring+st]*wAintArray[ring+spJ];
+                                    }
+                                }
+                                st = (st-1)&ringMask;
+                                lag = tlastJ-ciatarray[ring+st];
+                            }
+                            if (st==spJ) { ringOverruns[jj]++; } // the lags reach beyond the ring
+                        }
+                    } else if ( ciatarray[ring+st]<=cc[jjoffset+ntlag[jj]-1] ) {
+                        while ( ciatarray[ring+st]<cc[jjoffset] && st!=spJ ) {
+                            st = (st-1)&ringMask;
+                            ciatarray[ring+st] += iatnewJ;
                         }
                         // while within the limits of timelag values
-                        while ( ciatarray[128+jj*256+st]<=cc[jjoffset+ntlag[jj]-1] && ciatarray[128+jj*256+st]>=cc[jjoffset] ) {
-                            if (wAintArray[128+jj*256+st]>0) {
-                                if (wAintArray[128+jj*256+sp[jj]]>0) {
-                                    s11aa[jjoffset+ciatarray[128+jj*256+st]-cc[jjoffset]] += wAintArray[128+jj*256+st]*wAintArray[128+jj*256+sp[jj]];
+                        while ( ciatarray[ring+st]<=cc[jjoffset+ntlag[jj]-1] && ciatarray[ring+st]>=cc[jjoffset] && st!=spJ ) {
+                            if (wAintArray[ring+st]>0) {
+                                if (wAintArray[ring+spJ]>0) {
+                                    s11aa[jjoffset+(int)ciatarray[ring+st]-cc[jjoffset]] += (long)wAintArray[ring+st]*wAintArray[ring+spJ];
                                 }
-                                if (wBintArray[128+jj*256+sp[jj]]>0) {
-                                    s11ab[jjoffset+ciatarray[128+jj*256+st]-cc[jjoffset]] += wAintArray[128+jj*256+st]*wBintArray[128+jj*256+sp[jj]];
+                                if (wBintArray[ring+spJ]>0) {
+                                    s11ab[jjoffset+(int)ciatarray[ring+st]-cc[jjoffset]] += (long)wAintArray[ring+st]*wBintArray[ring+spJ];
                                 }
                             }
-                            if (wBintArray[128+jj*256+st]>0) {
-                                if (wBintArray[128+jj*256+sp[jj]]>0) {
-                                    s11bb[jjoffset+ciatarray[128+jj*256+st]-cc[jjoffset]] += wBintArray[128+jj*256+st]*wBintArray[128+jj*256+sp[jj]];
+                            if (wBintArray[ring+st]>0) {
+                                if (wBintArray[ring+spJ]>0) {
+                                    s11bb[jjoffset+(int)ciatarray[ring+st]-cc[jjoffset]] += (long)wBintArray[ring+st]*wBintArray[ring+spJ];
                                 }
-                                if (wAintArray[128+jj*256+sp[jj]]>0) {
-                                    s11ba[jjoffset+ciatarray[128+jj*256+st]-cc[jjoffset]] += wBintArray[128+jj*256+st]*wAintArray[128+jj*256+sp[jj]];
+                                if (wAintArray[ring+spJ]>0) {
+                                    s11ba[jjoffset+(int)ciatarray[ring+st]-cc[jjoffset]] += (long)wBintArray[ring+st]*wAintArray[ring+spJ];
                                 }
                             }
-                            st--;
-                            ciatarray[128+jj*256+st] += iatnew[jj];
+                            st = (st-1)&ringMask;
+                            ciatarray[ring+st] += iatnewJ;
                         }
+                        if (st==spJ) { ringOverruns[jj]++; } // the lags reach beyond the ring
                     }
 
-                    iatnew[jj] = mta[jj]/timebase[jj]; // iat value for bin 2
-                    mta[jj] = mta[jj]-iatnew[jj]*timebase[jj]; // offset mta value for bin 2
+                    iatnewJ = mtaJ/timebase[jj]; // iat value for bin 2
+                    mtaJ = mtaJ-iatnewJ*timebase[jj]; // offset mta value for bin 2
                 } else { // processing the current time bin
-                    wAintTemp[jj] += wA; // add photon weights
-                    wBintTemp[jj] += wB; // add photon weights
+                    wATempJ += wA; // add photon weights
+                    wBTempJ += wB; // add photon weights
                 }
             } else { // timebase=1; no need to coarsen time
-                ciatarray[128+jj*256+sp[jj]] = iat; // iat value for bin 1
-                sp[jj]++; // array pointer for bin 1
-                wAintArray[128+jj*256+sp[jj]] = wA;
-                wBintArray[128+jj*256+sp[jj]] = wB;
+                if (!absoluteTimestamps) { ciatarray[ring+spJ] = iat; } // iat value for bin 1
+                spJ = (spJ+1)&ringMask; // array pointer for bin 1
+                wAintArray[ring+spJ] = wA;
+                wBintArray[ring+spJ] = wB;
 
                 // calculation of normalization values
-                tlast[jj] += iat;
-                wAtotal[jj] += wAintArray[128+jj*256+sp[jj]];
-                wBtotal[jj] += wBintArray[128+jj*256+sp[jj]];
-                if ( tlast[jj]<cc[jjoffset+ntlag[jj]-1] ) {
+                tlastJ += iat;
+                if (absoluteTimestamps) { ciatarray[ring+spJ] = tlastJ; } // time of bin 1
+                wAtotalJ += wAintArray[ring+spJ];
+                wBtotalJ += wBintArray[ring+spJ];
+                if ( tlastJ<cc[jjoffset+ntlag[jj]-1] ) {
                     for (ii=ntlag[jj]-1; ii>=0; ii--) {
-                        if (tlast[jj]<cc[jjoffset+ii]) {
-                            s01a[jjoffset+ii]+=wAintArray[128+jj*256+sp[jj]];
-                            s01b[jjoffset+ii]+=wBintArray[128+jj*256+sp[jj]];
+                        if (tlastJ<cc[jjoffset+ii]) {
+                            s01a[jjoffset+ii]+=wAintArray[ring+spJ];
+                            s01b[jjoffset+ii]+=wBintArray[ring+spJ];
                         }
                     }
                 }
 
                 // correlation search and calculation
-                st = sp[jj]; // check the last entry
-                st--;
-                if ( ciatarray[128+jj*256+st]<=cc[jjoffset+ntlag[jj]-1] ) {
-                    while ( ciatarray[128+jj*256+st]<cc[jjoffset] ) {
-                        st--;
-                        ciatarray[128+jj*256+st] += iatnew[jj];
+                st = spJ; // check the last entry
+                st = (st-1)&ringMask;
+                if (absoluteTimestamps) {
+                    lag = tlastJ-ciatarray[ring+st];
+                    if ( lag<=cc[jjoffset+ntlag[jj]-1] ) {
+                        while ( lag<cc[jjoffset] && st!=spJ ) {
+                            st = (st-1)&ringMask;
+                            lag = tlastJ-ciatarray[ring+st];
+                        }
+                        // while within the limits of timelag values
+                        while ( lag>=cc[jjoffset] && lag<=cc[jjoffset+ntlag[jj]-1] && st!=spJ ) {
+                            if (wAintArray[ring+st]>0) {
+                                if (wAintArray[ring+spJ]>0) {
+                                    s11aa[jjoffset+(int)lag-cc[jjoffset]] += (long)wAintArray[ring+st]*wAintArray[ring+spJ];
+                                }
+                                if (wBintArray[ring+spJ]>0) {
+                                    s11ab[jjoffset+(int)lag-cc[jjoffset]] += (long)wAintArray[ring+st]*wBintArray[ring+spJ];
+                                }
+                            }
+                            if (wBintArray[ring+st]>0) {
+                                if (wBintArray[ring+spJ]>0) {
+                                    s11bb[jjoffset+(int)lag-cc[jjoffset]] += (long)wBintArray[ring+st]*wBintArray[ring+spJ];
+                                }
+                                if (wAintArray[ring+spJ]>0) {
+                                    s11ba[jjoffset+(int)lag-cc[jjoffset]] += (long)wBintArray[ring+st]*wAintArray[ring+spJ];
+                                }
+                            }
+                            st = (st-1)&ringMask;
+                            lag = tlastJ-ciatarray[ring+st];
+                        }
+                        if (st==spJ) { ringOverruns[jj]++; } // the lags reach beyond the ring
+                    }
+                } else if ( ciatarray[ring+st]<=cc[jjoffset+ntlag[jj]-1] ) {
+                    while ( ciatarray[ring+st]<cc[jjoffset] && st!=spJ ) {
+                        st = (st-1)&ringMask;
+                        ciatarray[ring+st] += iatnewJ;
                     }
                     // while within the limits of timelag values
-                    while ( ciatarray[128+jj*256+st]>=cc[jjoffset] && ciatarray[128+jj*256+st]<=cc[jjoffset+ntlag[jj]-1] ) {
-                        if (wAintArray[128+jj*256+st]>0) {
-                            if (wAintArray[128+jj*256+sp[jj]]>0) {
-                                s11aa[jjoffset+ciatarray[128+jj*256+st]-cc[jjoffset]] += wAintArray[128+jj*256+st]*wAintArray[128+jj*256+sp[jj]];
+                    while ( ciatarray[ring+st]>=cc[jjoffset] && ciatarray[ring+st]<=cc[jjoffset+ntlag[jj]-1] && st!=spJ ) {
+                        if (wAintArray[ring+st]>0) {
+                            if (wAintArray[ring+spJ]>0) {
+                                s11aa[jjoffset+(int)ciatarray[ring+st]-cc[jjoffset]] += (long)wAintArray[ring+st]*wAintArray[ring+spJ];
                             }
-                            if (wBintArray[128+jj*256+sp[jj]]>0) {
-                                s11ab[jjoffset+ciatarray[128+jj*256+st]-cc[jjoffset]] += wAintArray[128+jj*256+st]*wBintArray[128+jj*256+sp[jj]];
+                            if (wBintArray[ring+spJ]>0) {
+                                s11ab[jjoffset+(int)ciatarray[ring+st]-cc[jjoffset]] += (long)wAintArray[ring+st]*wBintArray[ring+spJ];
                             }
                         }
-                        if (wBintArray[128+jj*256+st]>0) {
-                            if (wBintArray[128+jj*256+sp[jj]]>0) {
-                                s11bb[jjoffset+ciatarray[128+jj*256+st]-cc[jjoffset]] += wBintArray[128+jj*256+st]*wBintArray[128+jj*256+sp[jj]];
+                        if (wBintArray[ring+st]>0) {
+                            if (wBintArray[ring+spJ]>0) {
+                                s11bb[jjoffset+(int)ciatarray[ring+st]-cc[jjoffset]] += (long)wBintArray[ring+st]*wBintArray[ring+spJ];
                             }
-                            if (wAintArray[128+jj*256+sp[jj]]>0) {
-                                s11ba[jjoffset+ciatarray[128+jj*256+st]-cc[jjoffset]] += wBintArray[128+jj*256+st]*wAintArray[128+jj*256+sp[jj]];
+                            if (wAintArray[ring+spJ]>0) {
+                                s11ba[jjoffset+(int)ciatarray[ring+st]-cc[jjoffset]] += (long)wBintArray[ring+st]*wAintArray[ring+spJ];
                             }
                         }
-                        st--;
-                        ciatarray[128+jj*256+st] += iat;
+                        st = (st-1)&ringMask;
+                        ciatarray[ring+st] += iat;
                     }
+                    if (st==spJ) { ringOverruns[jj]++; } // the lags reach beyond the ring
                 }
             }
-        } // end of cycle over timebase values          
-    } // end of cycle over all events
+        } // end of cycle over all events
+        mta[jj] = mtaJ;
+        iatnew[jj] = iatnewJ;
+        wAintTemp[jj] = wATempJ;
+        wBintTemp[jj] = wBTempJ;
+        sp[jj] = spJ;
+        tlast[jj] = tlastJ;
+        wAtotal[jj] = wAtotalJ;
+        wBtotal[jj] = wBtotalJ;
+    } // end of cycle over timebase values
     // end of B
 
+//    countrateA = wAtotal[0] / tlast[0] / dt;
+
+    //return (wAtotal[0]-wtotal_old)/(tlast[0]-tlast_old)/dt; // local countrate
+//////////////////////////////////////////////////////////////////////////////
+        
+    }
+
+    private void normalizeCrossInt() {
+
+        int ii; // index that runs over all timelag values within one cascade
+        int jj; // index that runs over all timebase values (cascades)
+        int jjoffset; // helps to account for twice as many points in the first cascade
+
+        int[] ntlag = plan.ntlag;        // array with the number of points in each cascade
+        int[] cc = plan.cc;              // lagtime values in units of timebase
+        int ringSize = plan.ringSize;    // ring slots per cascade (a power of two)
+        int ringMask = plan.ringMask;    // wraps ring slot indices
+        int[] cascadeOffset = plan.cascadeOffset; // position of each cascade in cc and sXX arrays
+
+        int st;                          // ring slot of the stop event
+        double cum10a, cum01a, cum10b, cum01b, cum11aa, cum11bb, cum11ab, cum11ba, n, s10a, s10b;
+
     // C. normalize the correlation function
     for (jj=0; jj<nc; jj++) {
-        if (jj==0) {jjoffset=0;} else {jjoffset=(jj+1)*np;}
+        jjoffset = cascadeOffset[jj];
         for (ii=0; ii<ntlag[jj]; ii++) {
-            s10a = wAtotal[jj] - wAintArray[128+jj*256+sp[jj]]; // subtract last bin
-            s10b = wBtotal[jj] - wBintArray[128+jj*256+sp[jj]]; // subtract last bin
+            s10a = wAtotal[jj] - wAintArray[jj*ringSize+sp[jj]]; // subtract last bin
+            s10b = wBtotal[jj] - wBintArray[jj*ringSize+sp[jj]]; // subtract last bin
             st = sp[jj];
-            st--;
-            while ( (ciatarray[128+jj*256+st]+1)<=cc[jjoffset+ii] ) {
-                  s10a = s10a - wAintArray[128+jj*256+st];
-                  s10b = s10b - wBintArray[128+jj*256+st];
-                  st--;
+            st = (st-1)&ringMask;
+            while ( (ringLag(jj, st)+1)<=cc[jjoffset+ii] && st!=sp[jj] ) {
+                  s10a = s10a - wAintArray[jj*ringSize+st];
+                  s10b = s10b - wBintArray[jj*ringSize+st];
+                  st = (st-1)&ringMask;
             }
             n = tlast[jj]-cc[jjoffset+ii];
             // basically, true s10 is s10 - wtotal
@@ -1993,261 +3112,1376 @@ public class Gmn {
     }
     // end of C
 
-//    countrateA = wAtotal[0] / tlast[0] / dt;
-
-    //return (wAtotal[0]-wtotal_old)/(tlast[0]-tlast_old)/dt; // local countrate
-//////////////////////////////////////////////////////////////////////////////
-        
     }
 
     public void updateCorrAutoHOmltInt() {
 
-        int ii; // index that runs over all timelag values within one cascade
-        int jj; // index that runs over all timebase values (cascades)
-        int jjoffset; // helps to account for twice as many points in the first cascade
-        int iioffset; // helps to account for twice as many points in the first cascade
+        // A. lagtime values are precomputed in the correlator plan;
+        // photons within the dead time are dropped from the weights that are correlated
+        // (segments receive the remaining ones), the intensity trace keeps all of them
+        int[] recorded = wAint;
+        if (deadTime>0) { wAint = applyDeadTime(recorded); }
 
-        int[] timebase;         // timebase values
-        timebase = new int[nc];
-        int[] ntlag;
-        ntlag = new int[nc];    // array with the number of points in each cascade
-        int[] cc;
-        cc = new int[(nc+1)*np];// lagtime values in units of timebase
-        
-        int tt;                 // temporary variable for storing lag time
-        int iat;                // iat and
-        int w;               // weight for the most recent photon
-        int ev;                 // counter over all events
-        byte st=-128;                 // index of the stop event
-        double cum10, cum01, cum11, n, s10, s20, s30, s01aT, s02aT, s03aT;
-        double cum20, cum02, cum30, cum03, cum12, cum21, cum13, cum31, cum22;
-        double tlast_old;
-        double wtotal_old;
+        if (segments!=null) { // the block is correlated later as part of a time segment
+            segments.addEvents(photonsIat, wAint, wBint, nEvents);
+        } else {
+            // B. calculate the correlation; cascades are independent and may run in parallel
+            correlateCascades("autoHOmlt");
 
+            // C. normalization is deferred until the correlation function is requested
+            gUpToDate = false;
+            blocksSinceNormalization++;
+            if (normalizationInterval>0 && blocksSinceNormalization>=normalizationInterval) { normalize(); }
+            // end of C
+        }
+        wAint = recorded;
 
-        // A. calculate lagtime values
-        ntlag[0] = np*2; // twice as many points in the first cascade
-        for (jj=1; jj<nc; jj++) { ntlag[jj]=np; }
-        tt = 0;
-        timebase[0]= t0;
-        for (jj=1; jj<nc; jj++) { timebase[jj] = timebase[jj-1] * 2; }
-        for (jj=0; jj<nc; jj++) {
-            if (jj==0) {jjoffset=0;} else {jjoffset=(jj+1)*np;}
-            for (ii=0; ii<ntlag[jj]; ii++) {
-                tt += timebase[jj];
-                cc[jjoffset+ii] = tt / timebase[jj];
+    }
+
+    private int[] applyDeadTime(int[] recorded) {
+        // weights of channel A that keep a photon only if the previous one arrived at
+        // least deadTime earlier; a photon that is dropped still starts a new dead time,
+        // and of several photons at the same time only the first can be kept
+        int ev;
+        long elapsed = deadTimeElapsed;
+        if (wDeadTime==null || wDeadTime.length<photonsIat.length) { wDeadTime = new int[photonsIat.length]; }
+        for (ev=0; ev<nEvents; ev++) {
+            if (elapsed<deadTime) { elapsed += photonsIat[ev]; }
+            if (recorded[ev]!=0) {
+                wDeadTime[ev] = (elapsed>=deadTime) ? 1 : 0;
+                elapsed = 0;
+            } else {
+                wDeadTime[ev] = 0;
+            }
         }
+        deadTimeElapsed = elapsed;
+        return wDeadTime;
     }
-    // end of A
+
+    private void correlateAutoHOmltInt(int jjFirst, int jjLast) {
+
+        // section B of updateCorrAutoHOmltInt for cascades jjFirst..jjLast-1; the ring holds
+        // cumulative iats or, with absoluteTimestamps, the time of each bin
+
+        int ii; // index that runs over all timelag values within one cascade
+        int jj; // index that runs over all timebase values (cascades)
+        int jjoffset; // helps to account for twice as many points in the first cascade
+        int iioffset; // helps to account for twice as many points in the first cascade
+
+        int[] timebase = plan.timebase;  // timebase values
+        int[] ntlag = plan.ntlag;        // array with the number of points in each cascade
+        int[] cc = plan.cc;              // lagtime values in units of timebase
+        int ringSize = plan.ringSize;    // ring slots per cascade (a power of two)
+        int ringMask = plan.ringMask;    // wraps ring slot indices
+        int[] cascadeOffset = plan.cascadeOffset; // position of each cascade in cc and sXX arrays
+        
+        long iat;               // iat and
+        int w;               // weight for the most recent photon
+        int ev;                 // counter over all events
+        int evClose;            // event that closes the current bin
+        int st;                // ring slot of the stop event
+        long lag;               // lag between the bin in slot st and bin 1
+        int ring;               // position of the cascade in ciatarray and wXintArray
+        // state of the current cascade
+        long mtaJ, iatnewJ;
+        int wATempJ;
+        int spJ;
+        long tlastJ, wAtotalJ, wAtotal2J;
+        double wAtotal3J;
+        long tlast_old;
+        long wtotal_old;
+
 
     // B. calculate the correlation
     tlast_old = tlast[0];
     wtotal_old = wAtotal[0];
         
-    ev = 0;
-    while (ev<nEvents) { // for all events in this block
-        iat = photonsIat[ev];
-        w = wAint[ev];
-        ev++;
-        for (jj=0; jj<nc; jj++) { // for all cascades
-            if (jj==0) {jjoffset=0;} else {jjoffset=(jj+1)*np;} // use for cc, sXX array
+    for (jj=jjFirst; jj<jjLast; jj++) { // for all cascades in this range
+        jjoffset = cascadeOffset[jj]; // use for cc, sXX array
+        ring = jj*ringSize; // use for ciatarray, wXintArray
+        // the cascade state stays in local variables while the block is processed
+        mtaJ = mta[jj];
+        iatnewJ = iatnew[jj];
+        wATempJ = wAintTemp[jj];
+        spJ = sp[jj];
+        tlastJ = tlast[jj];
+        wAtotalJ = wAtotal[jj];
+        wAtotal2J = wAtotal2[jj];
+        wAtotal3J = wAtotal3[jj];
+        ev = 0;
+        while (ev<nEvents) { // for all events in this block
+            if (timebase[jj]!=1) { // skip the events that only add to the current bin
+                evClose = nextBinClose(ev, timebase[jj]-mtaJ);
+                mtaJ += eventTime[evClose]-eventTime[ev];
+                wATempJ += wAsum[evClose]-wAsum[ev];
+                ev = evClose;
+                if (ev==nEvents) { break; }
+            }
+            iat = photonsIat[ev];
+            w = wAint[ev];
+            ev++;
             if (timebase[jj]!=1) { // if time coarsening is necessary
                 // bin 1 - the bin that has been populated and is ready for correlation
                 // bin 2 - the bin that is being populated
-                mta[jj] += iat; // mta value of photons in bin 2
-                if ( mta[jj]>=timebase[jj] ) { // bin 2 becomes bin 1
-                    ciatarray[128+jj*256+sp[jj]] = iatnew[jj];
-                    sp[jj]++; // array pointer for bin 1
-                    wAintArray[128+jj*256+sp[jj]] = wAintTemp[jj];
-                    wAintTemp[jj] = w;
+                mtaJ += iat; // mta value of photons in bin 2
+                if ( mtaJ>=timebase[jj] ) { // bin 2 becomes bin 1
+                    if (!absoluteTimestamps) { ciatarray[ring+spJ] = iatnewJ; }
+                    spJ = (spJ+1)&ringMask; // array pointer for bin 1
+                    wAintArray[ring+spJ] = wATempJ;
+                    wATempJ = w;
 
                     // calculation of normalization values
-                    tlast[jj] += iatnew[jj];
-                    wAtotal[jj]  += wAintArray[128+jj*256+sp[jj]];
-                    wAtotal2[jj] += wAintArray[128+jj*256+sp[jj]]
-                                   *wAintArray[128+jj*256+sp[jj]];
-                    wAtotal3[jj] += wAintArray[128+jj*256+sp[jj]]
-                                   *wAintArray[128+jj*256+sp[jj]]
-                                   *wAintArray[128+jj*256+sp[jj]];
-                    if ( tlast[jj]<cc[jjoffset+ntlag[jj]-1] ) {
+                    tlastJ += iatnewJ;
+                    if (absoluteTimestamps) { ciatarray[ring+spJ] = tlastJ; } // time of bin 1
+                    wAtotalJ  += wAintArray[ring+spJ];
+                    wAtotal2J += (long)wAintArray[ring+spJ]
+                                         *wAintArray[ring+spJ];
+                    wAtotal3J += (double)wAintArray[ring+spJ]
+                                           *wAintArray[ring+spJ]
+                                           *wAintArray[ring+spJ];
+                    if ( tlastJ<cc[jjoffset+ntlag[jj]-1] ) {
                         for (ii=ntlag[jj]-1; ii>=0; ii--) {
-                            if (tlast[jj]<cc[jjoffset+ii]) {
-                                s01a[jjoffset+ii]+=wAintArray[128+jj*256+sp[jj]];
-                                s02a[jjoffset+ii]+=wAintArray[128+jj*256+sp[jj]]
-                                                  *wAintArray[128+jj*256+sp[jj]];
-                                s03a[jjoffset+ii]+=wAintArray[128+jj*256+sp[jj]]
-                                                  *wAintArray[128+jj*256+sp[jj]]
-                                                  *wAintArray[128+jj*256+sp[jj]];
+                            if (tlastJ<cc[jjoffset+ii]) {
+                                s01a[jjoffset+ii]+=wAintArray[ring+spJ];
+                                s02a[jjoffset+ii]+=(long)wAintArray[ring+spJ]
+                                                        *wAintArray[ring+spJ];
+                                s03a[jjoffset+ii]+=(double)wAintArray[ring+spJ]
+                                                          *wAintArray[ring+spJ]
+                                                          *wAintArray[ring+spJ];
                             }
                         }
                     }
                     // correlation search and calculation
-                    st = sp[jj]; // check the last entry
-                    st--;
-                    if ( ciatarray[128+jj*256+st]<=cc[jjoffset+ntlag[jj]-1] ) {
-                        while ( ciatarray[128+jj*256+st]<cc[jjoffset] ) {
-                            st--;
-                            ciatarray[128+jj*256+st] += iatnew[jj];
+                    st = spJ; // check the last entry
+                    st = (st-1)&ringMask;
+                    if (absoluteTimestamps) {
+                        lag = tlastJ-ciatarray[ring+st];
+                        if ( lag<=cc[jjoffset+ntlag[jj]-1] ) {
+                            while ( lag<cc[jjoffset] && st!=spJ ) {
+                                st = (st-1)&ringMask;
+                                lag = tlastJ-ciatarray[ring+st];
+                            }
+                            // while within the limits of timelag values
+                            while ( lag<=cc[jjoffset+ntlag[jj]-1] && lag>=cc[jjoffset] && st!=spJ ) {
+                                s11aa[jjoffset+(int)lag-cc[jjoffset]] += (long)wAintArray[ring+spJ]*wAintArray[ring+st];
+                                s12aa[jjoffset+(int)lag-cc[jjoffset]] += (double)wAintArray[ring+spJ]*wAintArray[ring+st]
+                                                                                                *wAintArray[ring+spJ];
+                                s21aa[jjoffset+(int)lag-cc[jjoffset]] += (double)wAintArray[ring+spJ]*wAintArray[ring+st]
+                                                                                                                              *wAintArray[ring+st];
+                                s13aa[jjoffset+(int)lag-cc[jjoffset]] += (double)wAintArray[ring+spJ]*wAintArray[ring+st]
+                                                                                                *wAintArray[ring+spJ]
+                                                                                                *wAintArray[ring+spJ];
+                                s31aa[jjoffset+(int)lag-cc[jjoffset]] += (double)wAintArray[ring+spJ]*wAintArray[ring+st]
+                                                                                                                              *wAintArray[ring+st]
+                                                                                                                              *wAintArray[ring+st];
+                                s22aa[jjoffset+(int)lag-cc[jjoffset]] += (double)wAintArray[ring+spJ]*wAintArray[ring+st]
+                                                                                                *wAintArray[ring+spJ]*wAintArray[ring+st];
+                                st = (st-1)&ringMask;
+                                lag = tlastJ-ciatarray[ring+st];
+                            }
+                            if (st==spJ) { ringOverruns[jj]++; } // the lags reach beyond the ring
+                        }
+                    } else if ( ciatarray[ring+st]<=cc[jjoffset+ntlag[jj]-1] ) {
+                        while ( ciatarray[ring+st]<cc[jjoffset] && st!=spJ ) {
+                            st = (st-1)&ringMask;
+                            ciatarray[ring+st] += iatnewJ;
                         }
                         // while within the limits of timelag values
-                        while ( ciatarray[128+jj*256+st]<=cc[jjoffset+ntlag[jj]-1] && ciatarray[128+jj*256+st]>=cc[jjoffset] ) {
-                            s11aa[jjoffset+ciatarray[128+jj*256+st]-cc[jjoffset]] += wAintArray[128+jj*256+sp[jj]]*wAintArray[128+jj*256+st];
-                            s12aa[jjoffset+ciatarray[128+jj*256+st]-cc[jjoffset]] += wAintArray[128+jj*256+sp[jj]]*wAintArray[128+jj*256+st]
-                                                                                    *wAintArray[128+jj*256+sp[jj]];
-                            s21aa[jjoffset+ciatarray[128+jj*256+st]-cc[jjoffset]] += wAintArray[128+jj*256+sp[jj]]*wAintArray[128+jj*256+st]
-                                                                                                                  *wAintArray[128+jj*256+st];
-                            s13aa[jjoffset+ciatarray[128+jj*256+st]-cc[jjoffset]] += wAintArray[128+jj*256+sp[jj]]*wAintArray[128+jj*256+st]
-                                                                                    *wAintArray[128+jj*256+sp[jj]]
-                                                                                    *wAintArray[128+jj*256+sp[jj]];
-                            s31aa[jjoffset+ciatarray[128+jj*256+st]-cc[jjoffset]] += wAintArray[128+jj*256+sp[jj]]*wAintArray[128+jj*256+st]
-                                                                                                                  *wAintArray[128+jj*256+st]
-                                                                                                                  *wAintArray[128+jj*256+st];
-                            s22aa[jjoffset+ciatarray[128+jj*256+st]-cc[jjoffset]] += wAintArray[128+jj*256+sp[jj]]*wAintArray[128+jj*256+st]
-                                                                                    *wAintArray[128+jj*256+sp[jj]]*wAintArray[128+jj*256+st];
-                            st--;
-                            ciatarray[128+jj*256+st] += iatnew[jj];
+                        while ( ciatarray[ring+st]<=cc[jjoffset+ntlag[jj]-1] && ciatarray[ring+st]>=cc[jjoffset] && st!=spJ ) {
+                            s11aa[jjoffset+(int)ciatarray[ring+st]-cc[jjoffset]] += (long)wAintArray[ring+spJ]*wAintArray[ring+st];
+                            s12aa[jjoffset+(int)ciatarray[ring+st]-cc[jjoffset]] += (double)wAintArray[ring+spJ]*wAintArray[ring+st]
+                                                                                            *wAintArray[ring+spJ];
+                            s21aa[jjoffset+(int)ciatarray[ring+st]-cc[jjoffset]] += (double)wAintArray[ring+spJ]*wAintArray[ring+st]
+                                                                                                                          *wAintArray[ring+st];
+                            s13aa[jjoffset+(int)ciatarray[ring+st]-cc[jjoffset]] += (double)wAintArray[ring+spJ]*wAintArray[ring+st]
+                                                                                            *wAintArray[ring+spJ]
+                                                                                            *wAintArray[ring+spJ];
+                            s31aa[jjoffset+(int)ciatarray[ring+st]-cc[jjoffset]] += (double)wAintArray[ring+spJ]*wAintArray[ring+st]
+                                                                                                                          *wAintArray[ring+st]
+                                                                                                                          *wAintArray[ring+st];
+                            s22aa[jjoffset+(int)ciatarray[ring+st]-cc[jjoffset]] += (double)wAintArray[ring+spJ]*wAintArray[ring+st]
+                                                                                            *wAintArray[ring+spJ]*wAintArray[ring+st];
+                            st = (st-1)&ringMask;
+                            ciatarray[ring+st] += iatnewJ;
                         }
+                        if (st==spJ) { ringOverruns[jj]++; } // the lags reach beyond the ring
                     }
 
-                    iatnew[jj] = mta[jj]/timebase[jj]; // iat value for bin 2
-                    mta[jj] = mta[jj]-iatnew[jj]*timebase[jj]; // offset mta value for bin 2
+                    iatnewJ = mtaJ/timebase[jj]; // iat value for bin 2
+                    mtaJ = mtaJ-iatnewJ*timebase[jj]; // offset mta value for bin 2
                 } else { // processing the current time bin
-                    wAintTemp[jj] += w; // add photon weights
+                    wATempJ += w; // add photon weights
                 }
             } else { // timebase=1; no need to coarsen time
-                ciatarray[128+jj*256+sp[jj]] = iat; // iat value for bin 1
-                sp[jj]++; // array pointer for bin 1
-                wAintArray[128+jj*256+sp[jj]] = w;
+                if (!absoluteTimestamps) { ciatarray[ring+spJ] = iat; } // iat value for bin 1
+                spJ = (spJ+1)&ringMask; // array pointer for bin 1
+                wAintArray[ring+spJ] = w;
 
                 // calculation of normalization values
-                tlast[jj] += iat;
-                wAtotal[jj]  += wAintArray[128+jj*256+sp[jj]];
-                wAtotal2[jj] += wAintArray[128+jj*256+sp[jj]]
-                               *wAintArray[128+jj*256+sp[jj]];
-                wAtotal3[jj] += wAintArray[128+jj*256+sp[jj]]
-                               *wAintArray[128+jj*256+sp[jj]]
-                               *wAintArray[128+jj*256+sp[jj]];
-                if ( tlast[jj]<cc[jjoffset+ntlag[jj]-1] ) {
+                tlastJ += iat;
+                if (absoluteTimestamps) { ciatarray[ring+spJ] = tlastJ; } // time of bin 1
+                wAtotalJ  += wAintArray[ring+spJ];
+                wAtotal2J += (long)wAintArray[ring+spJ]
+                                     *wAintArray[ring+spJ];
+                wAtotal3J += (double)wAintArray[ring+spJ]
+                                       *wAintArray[ring+spJ]
+                                       *wAintArray[ring+spJ];
+                if ( tlastJ<cc[jjoffset+ntlag[jj]-1] ) {
                     for (ii=ntlag[jj]-1; ii>=0; ii--) {
-                        if (tlast[jj]<cc[jjoffset+ii]) {
-                            s01a[jjoffset+ii]+=wAintArray[128+jj*256+sp[jj]];
-                            s02a[jjoffset+ii]+=wAintArray[128+jj*256+sp[jj]]
-                                              *wAintArray[128+jj*256+sp[jj]];
-                            s03a[jjoffset+ii]+=wAintArray[128+jj*256+sp[jj]]
-                                              *wAintArray[128+jj*256+sp[jj]]
-                                              *wAintArray[128+jj*256+sp[jj]];
+                        if (tlastJ<cc[jjoffset+ii]) {
+                            s01a[jjoffset+ii]+=wAintArray[ring+spJ];
+                            s02a[jjoffset+ii]+=(long)wAintArray[ring+spJ]
+                                                    *wAintArray[ring+spJ];
+                            s03a[jjoffset+ii]+=(double)wAintArray[ring+spJ]
+                                                      *wAintArray[ring+spJ]
+                                                      *wAintArray[ring+spJ];
                         }
                     }
                 }
 
                 // correlation search and calculation
-                st = sp[jj]; // check the last entry
-                st--;
-                if ( ciatarray[128+jj*256+st]<=cc[jjoffset+ntlag[jj]-1] ) {
-                    while ( ciatarray[128+jj*256+st]<cc[jjoffset] ) {
-                        st--;
-                        ciatarray[128+jj*256+st] += iatnew[jj];
+                st = spJ; // check the last entry
+                st = (st-1)&ringMask;
+                if (absoluteTimestamps) {
+                    lag = tlastJ-ciatarray[ring+st];
+                    if ( lag<=cc[jjoffset+ntlag[jj]-1] ) {
+                        while ( lag<cc[jjoffset] && st!=spJ ) {
+                            st = (st-1)&ringMask;
+                            lag = tlastJ-ciatarray[ring+st];
+                        }
+                        // while within the limits of timelag values
+                        while ( lag>=cc[jjoffset] && lag<=cc[jjoffset+ntlag[jj]-1] && st!=spJ ) {
+                            s11aa[jjoffset+(int)lag-1] += (long)wAintArray[ring+spJ]*wAintArray[ring+st];
+                            s12aa[jjoffset+(int)lag-1] += (double)wAintArray[ring+spJ]*wAintArray[ring+st]
+                                                                                 *wAintArray[ring+spJ];
+                            s21aa[jjoffset+(int)lag-1] += (double)wAintArray[ring+spJ]*wAintArray[ring+st]
+                                                                                                               *wAintArray[ring+st];
+                            s13aa[jjoffset+(int)lag-1] += (double)wAintArray[ring+spJ]*wAintArray[ring+st]
+                                                                                 *wAintArray[ring+spJ]
+                                                                                 *wAintArray[ring+spJ];
+                            s31aa[jjoffset+(int)lag-1] += (double)wAintArray[ring+spJ]*wAintArray[ring+st]
+                                                                                                               *wAintArray[ring+st]
+                                                                                                               *wAintArray[ring+st];
+                            s22aa[jjoffset+(int)lag-1] += (double)wAintArray[ring+spJ]*wAintArray[ring+st]
+                                                                                 *wAintArray[ring+spJ]*wAintArray[ring+st];
+                            st = (st-1)&ringMask;
+                            lag = tlastJ-ciatarray[ring+st];
+                        }
+                        if (st==spJ) { ringOverruns[jj]++; } // the lags reach beyond the ring
+                    }
+                } else if ( ciatarray[ring+st]<=cc[jjoffset+ntlag[jj]-1] ) {
+                    while ( ciatarray[ring+st]<cc[jjoffset] && st!=spJ ) {
+                        st = (st-1)&ringMask;
+                        ciatarray[ring+st] += iatnewJ;
                     }
                     // while within the limits of timelag values
-                    while ( ciatarray[128+jj*256+st]>=cc[jjoffset] && ciatarray[128+jj*256+st]<=cc[jjoffset+ntlag[jj]-1] ) {
-                        s11aa[jjoffset+ciatarray[128+jj*256+st]-1] += wAintArray[128+jj*256+sp[jj]]*wAintArray[128+jj*256+st];
-                        s12aa[jjoffset+ciatarray[128+jj*256+st]-1] += wAintArray[128+jj*256+sp[jj]]*wAintArray[128+jj*256+st]
-                                                                     *wAintArray[128+jj*256+sp[jj]];
-                        s21aa[jjoffset+ciatarray[128+jj*256+st]-1] += wAintArray[128+jj*256+sp[jj]]*wAintArray[128+jj*256+st]
-                                                                                                   *wAintArray[128+jj*256+st];
-                        s13aa[jjoffset+ciatarray[128+jj*256+st]-1] += wAintArray[128+jj*256+sp[jj]]*wAintArray[128+jj*256+st]
-                                                                     *wAintArray[128+jj*256+sp[jj]]
-                                                                     *wAintArray[128+jj*256+sp[jj]];
-                        s31aa[jjoffset+ciatarray[128+jj*256+st]-1] += wAintArray[128+jj*256+sp[jj]]*wAintArray[128+jj*256+st]
-                                                                                                   *wAintArray[128+jj*256+st]
-                                                                                                   *wAintArray[128+jj*256+st];
-                        s22aa[jjoffset+ciatarray[128+jj*256+st]-1] += wAintArray[128+jj*256+sp[jj]]*wAintArray[128+jj*256+st]
-                                                                     *wAintArray[128+jj*256+sp[jj]]*wAintArray[128+jj*256+st];
-                        st--;
-                        ciatarray[128+jj*256+st] += iat;
+                    while ( ciatarray[ring+st]>=cc[jjoffset] && ciatarray[ring+st]<=cc[jjoffset+ntlag[jj]-1] && st!=spJ ) {
+                        s11aa[jjoffset+(int)ciatarray[ring+st]-1] += (long)wAintArray[ring+spJ]*wAintArray[ring+st];
+                        s12aa[jjoffset+(int)ciatarray[ring+st]-1] += (double)wAintArray[ring+spJ]*wAintArray[ring+st]
+                                                                             *wAintArray[ring+spJ];
+                        s21aa[jjoffset+(int)ciatarray[ring+st]-1] += (double)wAintArray[ring+spJ]*wAintArray[ring+st]
+                                                                                                           *wAintArray[ring+st];
+                        s13aa[jjoffset+(int)ciatarray[ring+st]-1] += (double)wAintArray[ring+spJ]*wAintArray[ring+st]
+                                                                             *wAintArray[ring+spJ]
+                                                                             *wAintArray[ring+spJ];
+                        s31aa[jjoffset+(int)ciatarray[ring+st]-1] += (double)wAintArray[ring+spJ]*wAintArray[ring+st]
+                                                                                                           *wAintArray[ring+st]
+                                                                                                           *wAintArray[ring+st];
+                        s22aa[jjoffset+(int)ciatarray[ring+st]-1] += (double)wAintArray[ring+spJ]*wAintArray[ring+st]
+                                                                             *wAintArray[ring+spJ]*wAintArray[ring+st];
+                        st = (st-1)&ringMask;
+                        ciatarray[ring+st] += iat;
                     }
+                    if (st==spJ) { ringOverruns[jj]++; } // the lags reach beyond the ring
                 }
             }
-        } // end of cycle over timebase values          
-    } // end of cycle over all events
+        } // end of cycle over all events
+        mta[jj] = mtaJ;
+        iatnew[jj] = iatnewJ;
+        wAintTemp[jj] = wATempJ;
+        sp[jj] = spJ;
+        tlast[jj] = tlastJ;
+        wAtotal[jj] = wAtotalJ;
+        wAtotal2[jj] = wAtotal2J;
+        wAtotal3[jj] = wAtotal3J;
+    } // end of cycle over timebase values
     // end of B
 
+        
+    }
+
+    private void normalizeAutoHOmltInt() {
+
+        int ii; // index that runs over all timelag values within one cascade
+        int jj; // index that runs over all timebase values (cascades)
+        int jjoffset; // helps to account for twice as many points in the first cascade
+
+        int[] ntlag = plan.ntlag;        // array with the number of points in each cascade
+        int[] cc = plan.cc;              // lagtime values in units of timebase
+        int ringSize = plan.ringSize;    // ring slots per cascade (a power of two)
+        int ringMask = plan.ringMask;    // wraps ring slot indices
+        int[] cascadeOffset = plan.cascadeOffset; // position of each cascade in cc and sXX arrays
+
+        int st;                          // ring slot of the stop event
+        double n, s10, s20, s30, s01aT, s02aT, s03aT;
+
     // C. normalize the correlation function
     for (jj=0; jj<nc; jj++) {
-        if (jj==0) {jjoffset=0;} else {jjoffset=(jj+1)*np;}
+        jjoffset = cascadeOffset[jj];
         for (ii=0; ii<ntlag[jj]; ii++) {
-            s10 = wAtotal[jj] - wAintArray[128+jj*256+sp[jj]]; // subtract last bin
-            s20 = wAtotal2[jj] - wAintArray[128+jj*256+sp[jj]]
-                                *wAintArray[128+jj*256+sp[jj]]; // subtract last bin
-            s30 = wAtotal3[jj] - wAintArray[128+jj*256+sp[jj]]
-                                *wAintArray[128+jj*256+sp[jj]]
-                                *wAintArray[128+jj*256+sp[jj]]; // subtract last bin
+            s10 = wAtotal[jj] - wAintArray[jj*ringSize+sp[jj]]; // subtract last bin
+            s20 = wAtotal2[jj] - (long)wAintArray[jj*ringSize+sp[jj]]
+                                      *wAintArray[jj*ringSize+sp[jj]]; // subtract last bin
+            s30 = wAtotal3[jj] - (double)wAintArray[jj*ringSize+sp[jj]]
+                                        *wAintArray[jj*ringSize+sp[jj]]
+                                        *wAintArray[jj*ringSize+sp[jj]]; // subtract last bin
             st = sp[jj];
-            st--;
-            while ( (ciatarray[128+jj*256+st]+1)<=cc[jjoffset+ii] ) {
-                  s10 = s10 - wAintArray[128+jj*256+st];
-                  s20 = s20 - wAintArray[128+jj*256+st]*wAintArray[128+jj*256+st];
-                  s30 = s30 - wAintArray[128+jj*256+st]*wAintArray[128+jj*256+st]*wAintArray[128+jj*256+st];
-                  st--;
+            st = (st-1)&ringMask;
+            while ( (ringLag(jj, st)+1)<=cc[jjoffset+ii] && st!=sp[jj] ) {
+                  s10 = s10 - wAintArray[jj*ringSize+st];
+                  s20 = s20 - (long)wAintArray[jj*ringSize+st]*wAintArray[jj*ringSize+st];
+                  s30 = s30 - (double)wAintArray[jj*ringSize+st]*wAintArray[jj*ringSize+st]*wAintArray[jj*ringSize+st];
+                  st = (st-1)&ringMask;
             }
             n = tlast[jj]-cc[jjoffset+ii];
             // basically, true s01 is wtotal - s01
             s01aT = wAtotal[jj]  - s01a[jjoffset+ii];
             s02aT = wAtotal2[jj] - s02a[jjoffset+ii];
             s03aT = wAtotal3[jj] - s03a[jjoffset+ii];
-            cum10 = s10/n;
-	    cum20 = s20/(n-1.0) - s10/n*s10/(n-1.0);
-	    cum30 = n/(n-1.0)*s30/(n-2.0)
-	              - 3*s20/(n-1.0)*s10/(n-2.0)
-	              + 2*s10/n*s10/(n-1.0)*s10/(n-2.0);
-            cum01 = s01aT/n;
-	    cum02 = s02aT/(n-1.0) - s01aT/n*s01aT/(n-1.0);
-	    cum03 = n/(n-1.0)*s03aT/(n-2.0)
-	              - 3*s02aT/(n-1.0)*s01aT/(n-2.0)
-	              + 2*s01aT/n*s01aT/(n-1.0)*s01aT/(n-2.0);
-            cum11 = s11aa[jjoffset+ii]/(n-1.0) - s10/n*s01aT/(n-1.0);
-            cum21 = n/(n-1.0)*s21aa[jjoffset+ii]/(n-2.0)-2*s10/(n-1.0)*s11aa[jjoffset+ii]/(n-2.0)
-                  - s20/(n-1.0)*s01aT/(n-2.0)
-                  + 2*s10/n*s10/(n-1.0)*s01aT/(n-2.0);
-            cum12 = n/(n-1.0)*s12aa[jjoffset+ii]/(n-2.0)-2*s01aT/(n-1.0)*s11aa[jjoffset+ii]/(n-2.0)
-                  - s02aT/(n-1.0)*s10/(n-2.0) + 2*s01aT/n*s01aT/(n-1.0)*s10/(n-2.0);
-            cum31 = n/(n-1.0)*(n+1.0)/(n-2.0)*s31aa[jjoffset+ii]/(n-3.0)
-                  - (n+1)/(n-1.0)*s30/(n-2.0)*s01aT/(n-3.0)
-                  - 3*s11aa[jjoffset+ii]/(n-2.0)*s20/(n-3.0)
-                  - 3*(n+1)/(n-1.0)*s21aa[jjoffset+ii]/(n-2.0)*s10/(n-3.0)
-                  + 6*s11aa[jjoffset+ii]/(n-1.0)*s10/(n-2.0)*s10/(n-3.0)
-                  + 6*s20/(n-1.0)*s10/(n-2.0)*s01aT/(n-3.0)
-                  - 6*s01aT/n*s10/(n-1.0)*s10/(n-2)*s10/(n-3.0);
-            cum13 = n/(n-1.0)*(n+1.0)/(n-2.0)*s13aa[jjoffset+ii]/(n-3.0)
-                  - (n+1)/(n-1.0)*s03aT/(n-2.0)*s10/(n-3.0)
-                  - 3*s11aa[jjoffset+ii]/(n-2.0)*s02aT/(n-3.0)
-                  - 3*(n+1)/(n-1.0)*s12aa[jjoffset+ii]/(n-2.0)*s01aT/(n-3.0)
-                  + 6*s11aa[jjoffset+ii]/(n-1.0)*s01aT/(n-2.0)*s01aT/(n-3.0)
-                  + 6*s02aT/(n-1.0)*s01aT/(n-2.0)*s10/(n-3.0)
-                  - 6*s10/n*s01aT/(n-1.0)*s01aT/(n-2)*s01aT/(n-3.0);
-            cum22 = n/(n-1.0)*(n+1)/(n-2.0)*s22aa[jjoffset+ii]/(n-3.0)
-                  - 2*(n+1)/(n-1.0)*s21aa[jjoffset+ii]/(n-2.0)*s01aT/(n-3.0)
-                  - 2*(n+1)/(n-1.0)*s12aa[jjoffset+ii]/(n-2.0)*s10/(n-3.0)
-                  - s20/(n-2.0)*s02aT/(n-3.0)
-                  - 2*s11aa[jjoffset+ii]/(n-2.0)*s11aa[jjoffset+ii]/(n-3.0)
-                  + 8*s11aa[jjoffset+ii]/(n-1.0)*s10/(n-2.0)*s01aT/(n-3.0)
-                  + 2*s02aT/(n-1.0)*s10/(n-2.0)*s10/(n-3.0)
-                  + 2*s20/(n-1.0)*s01aT/(n-2.0)*s01aT/(n-3.0)
-                  - 6*s10/n*s10/(n-1.0)*s01aT/(n-2.0)*s01aT/(n-3.0);
-
-
-            g11[jjoffset+ii] = cum11/cum10/cum01; //s11aa[jjoffset+ii]; //
-            g12[jjoffset+ii] = (cum12 - cum11)/cum10/(cum02 - cum01); //s12aa[jjoffset+ii];// 
-            g21[jjoffset+ii] = (cum21 - cum11)/cum01/(cum20 - cum10); //s21aa[jjoffset+ii];// 
-            g13[jjoffset+ii] = (cum13 - 3*cum12 + 2*cum11)/cum10/(2*cum01 - 3*cum02 + cum03);//s13aa[jjoffset+ii];//
-            g31[jjoffset+ii] = (cum31 - 3*cum21 + 2*cum11)/cum01/(2*cum10 - 3*cum20 + cum30);//s31aa[jjoffset+ii];//
-            g22[jjoffset+ii] = (cum11 - cum12 - cum21 + cum22)/(cum20-cum10)/(cum02-cum01); //s22aa[jjoffset+ii];//
+            if (deadTime>0) {
+                normalizeHOpointDeadTime(jjoffset+ii, plan.timebase[jj], cc[jjoffset+ii], n, s10, s20, s30, s01aT, s02aT, s03aT,
+                                         s11aa[jjoffset+ii], s12aa[jjoffset+ii], s21aa[jjoffset+ii],
+                                         s13aa[jjoffset+ii], s31aa[jjoffset+ii], s22aa[jjoffset+ii]);
+            } else {
+                normalizeHOpoint(jjoffset+ii, n, s10, s20, s30, s01aT, s02aT, s03aT,
+                                 s11aa[jjoffset+ii], s12aa[jjoffset+ii], s21aa[jjoffset+ii],
+                                 s13aa[jjoffset+ii], s31aa[jjoffset+ii], s22aa[jjoffset+ii]);
+            }
 
         }
     }
     // end of C
-        
+
+    }
+
+    private void normalizeHOpointDeadTime(int kk, long bin, long lag, double n,
+                                          double s10, double s20, double s30,
+                                          double s01aT, double s02aT, double s03aT,
+                                          double s11, double s12, double s21,
+                                          double s13, double s31, double s22) {
+
+        // normalizeHOpoint for photons at least deadTime apart (applyDeadTime), in bins of
+        // 'bin' time units at a lag of 'lag' bins. r such photons fit in a bin in
+        // (m)(m-1)...(m-r+1)/r! ways, m = bin-(r-1)(deadTime-1), instead of bin^r/r!, and
+        // for Poisson photons each way is equally likely: the factorial moments of order r
+        // (sums of w(w-1)...(w-r+1)) are scaled by fr = bin^r/((m)(m-1)...(m-r+1)). No
+        // correction exists where a bin cannot hold r photons (NaN) or where the photons of
+        // the two bins can be closer than the dead time (all functions NaN)
+        double f2, f3, m;
+        double s20c, s30c, s02c, s03c, s12c, s21c, s13c, s31c, s22c;
+
+        if ((lag-1)*bin+1<deadTime) {
+            if (g11!=null) { g11[kk] = Double.NaN; }
+            if (g12!=null) { g12[kk] = Double.NaN; }
+            if (g21!=null) { g21[kk] = Double.NaN; }
+            if (g13!=null) { g13[kk] = Double.NaN; }
+            if (g31!=null) { g31[kk] = Double.NaN; }
+            if (g22!=null) { g22[kk] = Double.NaN; }
+            return;
+        }
+        m = bin-(deadTime-1);
+        f2 = (bin>deadTime) ? (double)bin/m*bin/(m-1) : Double.NaN;
+        m = bin-2*(deadTime-1);
+        f3 = (bin>2*deadTime) ? (double)bin/m*bin/(m-1)*bin/(m-2) : Double.NaN;
+
+        // raw moments from the corrected factorial ones: w^2 = w(w-1) + w,
+        // w^3 = w(w-1)(w-2) + 3w(w-1) + w
+        s20c = s10 + f2*(s20-s10);
+        s30c = s10 + 3*f2*(s20-s10) + f3*(s30-3*s20+2*s10);
+        s02c = s01aT + f2*(s02aT-s01aT);
+        s03c = s01aT + 3*f2*(s02aT-s01aT) + f3*(s03aT-3*s02aT+2*s01aT);
+        s12c = s11 + f2*(s12-s11);
+        s21c = s11 + f2*(s21-s11);
+        s13c = s11 + 3*f2*(s12-s11) + f3*(s13-3*s12+2*s11);
+        s31c = s11 + 3*f2*(s21-s11) + f3*(s31-3*s21+2*s11);
+        s22c = s11 + f2*(s12-s11) + f2*(s21-s11) + f2*f2*(s22-s12-s21+s11);
+        normalizeHOpoint(kk, n, s10, s20c, s30c, s01aT, s02c, s03c, s11, s12c, s21c, s13c, s31c, s22c);
+    }
+
+    private void normalizeHOpoint(int kk, double n, double s10, double s20, double s30,
+                                  double s01aT, double s02aT, double s03aT,
+                                  double s11, double s12, double s21,
+                                  double s13, double s31, double s22) {
+
+        // high order correlation functions at one lag value (kk) are calculated
+        // from the non-normalized sums and the normalization constants
+        double cum10, cum01, cum11;
+        double cum20, cum02, cum30, cum03, cum12, cum21, cum13, cum31, cum22;
+
+        cum10 = s10/n;
+        cum20 = s20/(n-1.0) - s10/n*s10/(n-1.0);
+        cum30 = n/(n-1.0)*s30/(n-2.0)
+              - 3*s20/(n-1.0)*s10/(n-2.0)
+              + 2*s10/n*s10/(n-1.0)*s10/(n-2.0);
+        cum01 = s01aT/n;
+        cum02 = s02aT/(n-1.0) - s01aT/n*s01aT/(n-1.0);
+        cum03 = n/(n-1.0)*s03aT/(n-2.0)
+              - 3*s02aT/(n-1.0)*s01aT/(n-2.0)
+              + 2*s01aT/n*s01aT/(n-1.0)*s01aT/(n-2.0);
+        cum11 = s11/(n-1.0) - s10/n*s01aT/(n-1.0);
+        cum21 = n/(n-1.0)*s21/(n-2.0)-2*s10/(n-1.0)*s11/(n-2.0)
+              - s20/(n-1.0)*s01aT/(n-2.0)
+              + 2*s10/n*s10/(n-1.0)*s01aT/(n-2.0);
+        cum12 = n/(n-1.0)*s12/(n-2.0)-2*s01aT/(n-1.0)*s11/(n-2.0)
+              - s02aT/(n-1.0)*s10/(n-2.0) + 2*s01aT/n*s01aT/(n-1.0)*s10/(n-2.0);
+        cum31 = n/(n-1.0)*(n+1.0)/(n-2.0)*s31/(n-3.0)
+              - (n+1)/(n-1.0)*s30/(n-2.0)*s01aT/(n-3.0)
+              - 3*s11/(n-2.0)*s20/(n-3.0)
+              - 3*(n+1)/(n-1.0)*s21/(n-2.0)*s10/(n-3.0)
+              + 6*s11/(n-1.0)*s10/(n-2.0)*s10/(n-3.0)
+              + 6*s20/(n-1.0)*s10/(n-2.0)*s01aT/(n-3.0)
+              - 6*s01aT/n*s10/(n-1.0)*s10/(n-2)*s10/(n-3.0);
+        cum13 = n/(n-1.0)*(n+1.0)/(n-2.0)*s13/(n-3.0)
+              - (n+1)/(n-1.0)*s03aT/(n-2.0)*s10/(n-3.0)
+              - 3*s11/(n-2.0)*s02aT/(n-3.0)
+              - 3*(n+1)/(n-1.0)*s12/(n-2.0)*s01aT/(n-3.0)
+              + 6*s11/(n-1.0)*s01aT/(n-2.0)*s01aT/(n-3.0)
+              + 6*s02aT/(n-1.0)*s01aT/(n-2.0)*s10/(n-3.0)
+              - 6*s10/n*s01aT/(n-1.0)*s01aT/(n-2)*s01aT/(n-3.0);
+        cum22 = n/(n-1.0)*(n+1)/(n-2.0)*s22/(n-3.0)
+              - 2*(n+1)/(n-1.0)*s21/(n-2.0)*s01aT/(n-3.0)
+              - 2*(n+1)/(n-1.0)*s12/(n-2.0)*s10/(n-3.0)
+              - s20/(n-2.0)*s02aT/(n-3.0)
+              - 2*s11/(n-2.0)*s11/(n-3.0)
+              + 8*s11/(n-1.0)*s10/(n-2.0)*s01aT/(n-3.0)
+              + 2*s02aT/(n-1.0)*s10/(n-2.0)*s10/(n-3.0)
+              + 2*s20/(n-1.0)*s01aT/(n-2.0)*s01aT/(n-3.0)
+              - 6*s10/n*s10/(n-1.0)*s01aT/(n-2.0)*s01aT/(n-3.0);
+
+        if (g11!=null) { g11[kk] = cum11/cum10/cum01; }
+        if (g12!=null) { g12[kk] = (cum12 - cum11)/cum10/(cum02 - cum01); }
+        if (g21!=null) { g21[kk] = (cum21 - cum11)/cum01/(cum20 - cum10); }
+        if (g13!=null) { g13[kk] = (cum13 - 3*cum12 + 2*cum11)/cum10/(2*cum01 - 3*cum02 + cum03); }
+        if (g31!=null) { g31[kk] = (cum31 - 3*cum21 + 2*cum11)/cum01/(2*cum10 - 3*cum20 + cum30); }
+        if (g22!=null) { g22[kk] = (cum11 - cum12 - cum21 + cum22)/(cum20-cum10)/(cum02-cum01); }
     }
     
-}
 
+    private int initializeFusedProducts() {
+
+        // every requested correlation function adds the moment products it needs;
+        // the weight powers are indexed as 4*channel+power (channel A=0, B=1)
+        int kk, nProducts;
+        boolean needGAA = false; // gAA is calculated (also for the high order functions)
+        int[] early = new int[64];
+        int[] late = new int[64];
+
+        productIndex = new int[64];
+        for (kk=0; kk<64; kk++) {productIndex[kk]=-1;}
+        g11 = null; g12 = null; g21 = null; g13 = null; g31 = null; g22 = null;
+        gAA = null; gAB = null; gBA = null; gBB = null;
+
+        nProducts = 0;
+        for (String f:fusedFunctions) {
+            if (f.equals("gAA")) {
+                nProducts = addFusedProduct(1, 1, nProducts, early, late);
+                needGAA = true;
+            } else if (f.equals("gBB")) {
+                gBB = new double[np*(nc+1)];
+                nProducts = addFusedProduct(5, 5, nProducts, early, late);
+            } else if (f.equals("gAB")) {
+                gAB = new double[np*(nc+1)];
+                nProducts = addFusedProduct(1, 5, nProducts, early, late);
+            } else if (f.equals("gBA")) {
+                gBA = new double[np*(nc+1)];
+                nProducts = addFusedProduct(5, 1, nProducts, early, late);
+            } else if (f.equals("g12")) {
+                g12 = new double[np*(nc+1)];
+                nProducts = addFusedProduct(1, 2, nProducts, early, late);
+                needGAA = true;
+            } else if (f.equals("g21")) {
+                g21 = new double[np*(nc+1)];
+                nProducts = addFusedProduct(2, 1, nProducts, early, late);
+                needGAA = true;
+            } else if (f.equals("g13")) {
+                g13 = new double[np*(nc+1)];
+                nProducts = addFusedProduct(1, 2, nProducts, early, late);
+                nProducts = addFusedProduct(1, 3, nProducts, early, late);
+                needGAA = true;
+            } else if (f.equals("g31")) {
+                g31 = new double[np*(nc+1)];
+                nProducts = addFusedProduct(2, 1, nProducts, early, late);
+                nProducts = addFusedProduct(3, 1, nProducts, early, late);
+                needGAA = true;
+            } else if (f.equals("g22")) {
+                g22 = new double[np*(nc+1)];
+                nProducts = addFusedProduct(1, 2, nProducts, early, late);
+                nProducts = addFusedProduct(2, 1, nProducts, early, late);
+                nProducts = addFusedProduct(2, 2, nProducts, early, late);
+                needGAA = true;
+            }
+        }
+        // gAA (=g11) is needed by all high order functions
+        if (needGAA) {
+            nProducts = addFusedProduct(1, 1, nProducts, early, late);
+            gAA = new double[np*(nc+1)];
+            g11 = gAA;
+        }
+
+        productEarly = new int[nProducts];
+        productLate = new int[nProducts];
+        sProduct = new double[nProducts][np*(nc+1)];
+        for (kk=0; kk<nProducts; kk++) {
+            productEarly[kk] = early[kk];
+            productLate[kk] = late[kk];
+        }
+        wPowEarly = new long[nc][8];
+        wPowLate = new long[nc][8];
+        return 1;
+    }
+
+    private int addFusedProduct(int early, int late, int nProducts, int[] earlyList, int[] lateList) {
+        if (productIndex[early*8+late]<0) {
+            productIndex[early*8+late] = nProducts;
+            earlyList[nProducts] = early;
+            lateList[nProducts] = late;
+            nProducts++;
+        }
+        return nProducts;
+    }
+
+    private double getProductSum(int early, int late, int kk) {
+        // non-normalized sum of a moment product at lag index kk (0 if not accumulated)
+        if (productIndex[early*8+late]<0) { return 0; }
+        return sProduct[productIndex[early*8+late]][kk];
+    }
+
+    public void updateCorrFusedInt() {
+
+        // all requested correlation functions (auto, cross and high order) are
+        // accumulated in a single pass over the events and the cascade rings
+
+        // A. lagtime values are precomputed in the correlator plan
+
+        if (segments!=null) { // the block is correlated later as part of a time segment
+            segments.addEvents(photonsIat, wAint, wBint, nEvents);
+            return;
+        }
+
+        // B. calculate the correlation; cascades are independent and may run in parallel
+        correlateCascades("fused");
+
+        // C. normalization is deferred until the correlation function is requested
+        gUpToDate = false;
+        blocksSinceNormalization++;
+        if (normalizationInterval>0 && blocksSinceNormalization>=normalizationInterval) { normalize(); }
+        // end of C
+
+    }
+
+    private void correlateFusedInt(int jjFirst, int jjLast) {
+
+        // section B of updateCorrFusedInt for cascades jjFirst..jjLast-1
+
+        int jj; // index that runs over all timebase values (cascades)
+
+        int[] timebase = plan.timebase;  // timebase values
+        int ringSize = plan.ringSize;    // ring slots per cascade (a power of two)
+        int ringMask = plan.ringMask;    // wraps ring slot indices
+        
+        long iat;               // iat and
+        int wA, wB;             // weights for the most recent photon
+        int ev;                 // counter over all events
+        int evClose;            // event that closes the current bin
+        // state of the current cascade
+        long mtaJ, iatnewJ;
+        int wATempJ, wBTempJ;
+
+        for (jj=jjFirst; jj<jjLast; jj++) { // for all cascades in this range
+            mtaJ = mta[jj];
+            iatnewJ = iatnew[jj];
+            wATempJ = wAintTemp[jj];
+            wBTempJ = wBintTemp[jj];
+            ev = 0;
+            while (ev<nEvents) { // for all events in this block
+                if (timebase[jj]!=1) { // skip the events that only add to the current bin
+                    evClose = nextBinClose(ev, timebase[jj]-mtaJ);
+                    mtaJ += eventTime[evClose]-eventTime[ev];
+                    wATempJ += wAsum[evClose]-wAsum[ev];
+                    wBTempJ += wBsum[evClose]-wBsum[ev];
+                    ev = evClose;
+                    if (ev==nEvents) { break; }
+                }
+                iat = photonsIat[ev];
+                wA = wAint[ev];
+                wB = wBint[ev];
+                ev++;
+                if (timebase[jj]!=1) { // if time coarsening is necessary
+                    // bin 1 - the bin that has been populated and is ready for correlation
+                    // bin 2 - the bin that is being populated
+                    mtaJ += iat; // mta value of photons in bin 2
+                    if ( mtaJ>=timebase[jj] ) { // bin 2 becomes bin 1
+                        if (!absoluteTimestamps) { ciatarray[jj*ringSize+sp[jj]] = iatnewJ; }
+                        sp[jj] = (sp[jj]+1)&ringMask; // array pointer for bin 1
+                        wAintArray[jj*ringSize+sp[jj]] = wATempJ;
+                        wBintArray[jj*ringSize+sp[jj]] = wBTempJ;
+                        wATempJ = wA;
+                        wBTempJ = wB;
+
+                        correlateFusedBin(jj, iatnewJ);
+
+                        iatnewJ = mtaJ/timebase[jj]; // iat value for bin 2
+                        mtaJ = mtaJ-iatnewJ*timebase[jj]; // offset mta value for bin 2
+                    } else { // processing the current time bin
+                        wATempJ += wA; // add photon weights
+                        wBTempJ += wB; // add photon weights
+                    }
+                } else { // timebase=1; no need to coarsen time
+                    if (!absoluteTimestamps) { ciatarray[jj*ringSize+sp[jj]] = iat; } // iat value for bin 1
+                    sp[jj] = (sp[jj]+1)&ringMask; // array pointer for bin 1
+                    wAintArray[jj*ringSize+sp[jj]] = wA;
+                    wBintArray[jj*ringSize+sp[jj]] = wB;
+
+                    correlateFusedBin(jj, iat);
+                }
+            } // end of cycle over all events
+            mta[jj] = mtaJ;
+            iatnew[jj] = iatnewJ;
+            wAintTemp[jj] = wATempJ;
+            wBintTemp[jj] = wBTempJ;
+        } // end of cycle over timebase values
+        // end of B
+
+    }
+
+    private void correlateFusedBin(int jj, long iatBin) {
+
+        // the bin that has just been closed (sp[jj]) is correlated with all
+        // earlier bins of cascade jj that are within the lag range;
+        // iatBin is the time between this bin and the previous one. The ring holds
+        // cumulative iats or, with absoluteTimestamps, the time of each bin (stored here)
+
+        int ii; // index that runs over all timelag values within one cascade
+        int kk; // index that runs over all moment products
+        int jjoffset = plan.cascadeOffset[jj];
+        int[] ntlag = plan.ntlag;
+        int[] cc = plan.cc;
+        int ringSize = plan.ringSize;    // ring slots per cascade (a power of two)
+        int ringMask = plan.ringMask;    // wraps ring slot indices
+        int ring = jj*ringSize;          // first ring slot of cascade jj
+        int nProducts = productEarly.length;
+        int st;                 // ring slot of the stop event
+        int lag;                // position of the current lag in sXX arrays
+        long binLag;            // lag between the bin in slot st and this bin
+        long wA = wAintArray[ring+sp[jj]];
+        long wB = wBintArray[ring+sp[jj]];
+        long wAe, wBe;          // weights of the earlier bin
+        long[] powEarly = wPowEarly[jj]; // scratch arrays of this cascade
+        long[] powLate = wPowLate[jj];
+
+        // calculation of normalization values
+        tlast[jj] += iatBin;
+        if (absoluteTimestamps) { ciatarray[ring+sp[jj]] = tlast[jj]; } // time of this bin
+        wAtotal[jj]  += wA;
+        wAtotal2[jj] += wA*wA;
+        wAtotal3[jj] += wA*wA*wA;
+        wBtotal[jj]  += wB;
+        if ( tlast[jj]<cc[jjoffset+ntlag[jj]-1] ) {
+            for (ii=ntlag[jj]-1; ii>=0; ii--) {
+                if (tlast[jj]<cc[jjoffset+ii]) {
+                    s01a[jjoffset+ii] += wA;
+                    s02a[jjoffset+ii] += wA*wA;
+                    s03a[jjoffset+ii] += wA*wA*wA;
+                    s01b[jjoffset+ii] += wB;
+                }
+            }
+        }
+
+        // powers of the weights of the later bin
+        powLate[1] = wA;
+        powLate[2] = wA*wA;
+        powLate[3] = wA*wA*wA;
+        powLate[5] = wB;
+        powLate[6] = wB*wB;
+        powLate[7] = wB*wB*wB;
+
+        // correlation search and calculation
+        st = sp[jj]; // check the last entry
+        st = (st-1)&ringMask;
+        if (absoluteTimestamps) {
+            binLag = tlast[jj]-ciatarray[ring+st];
+            if ( binLag<=cc[jjoffset+ntlag[jj]-1] ) {
+                while ( binLag<cc[jjoffset] && st!=sp[jj] ) {
+                    st = (st-1)&ringMask;
+                    binLag = tlast[jj]-ciatarray[ring+st];
+                }
+                // while within the limits of timelag values
+                while ( binLag<=cc[jjoffset+ntlag[jj]-1] && binLag>=cc[jjoffset] && st!=sp[jj] ) {
+                    wAe = wAintArray[ring+st];
+                    wBe = wBintArray[ring+st];
+                    if ( (wAe!=0 || wBe!=0) && (wA!=0 || wB!=0) ) {
+                        lag = jjoffset+(int)binLag-cc[jjoffset];
+                        powEarly[1] = wAe;
+                        powEarly[2] = wAe*wAe;
+                        powEarly[3] = wAe*wAe*wAe;
+                        powEarly[5] = wBe;
+                        powEarly[6] = wBe*wBe;
+                        powEarly[7] = wBe*wBe*wBe;
+                        for (kk=0; kk<nProducts; kk++) {
+                            sProduct[kk][lag] += (double)powEarly[productEarly[kk]]*powLate[productLate[kk]];
+                        }
+                    }
+                    st = (st-1)&ringMask;
+                    binLag = tlast[jj]-ciatarray[ring+st];
+                }
+                if (st==sp[jj]) { ringOverruns[jj]++; } // the lags reach beyond the ring
+            }
+        } else if ( ciatarray[ring+st]<=cc[jjoffset+ntlag[jj]-1] ) {
+            while ( ciatarray[ring+st]<cc[jjoffset] && st!=sp[jj] ) {
+                st = (st-1)&ringMask;
+                ciatarray[ring+st] += iatBin;
+            }
+            // while within the limits of timelag values
+            while ( ciatarray[ring+st]<=cc[jjoffset+ntlag[jj]-1] && ciatarray[ring+st]>=cc[jjoffset] && st!=sp[jj] ) {
+                wAe = wAintArray[ring+st];
+                wBe = wBintArray[ring+st];
+                if ( (wAe!=0 || wBe!=0) && (wA!=0 || wB!=0) ) {
+                    lag = jjoffset+(int)ciatarray[ring+st]-cc[jjoffset];
+                    powEarly[1] = wAe;
+                    powEarly[2] = wAe*wAe;
+                    powEarly[3] = wAe*wAe*wAe;
+                    powEarly[5] = wBe;
+                    powEarly[6] = wBe*wBe;
+                    powEarly[7] = wBe*wBe*wBe;
+                    for (kk=0; kk<nProducts; kk++) {
+                        sProduct[kk][lag] += (double)powEarly[productEarly[kk]]*powLate[productLate[kk]];
+                    }
+                }
+                st = (st-1)&ringMask;
+                ciatarray[ring+st] += iatBin;
+            }
+            if (st==sp[jj]) { ringOverruns[jj]++; } // the lags reach beyond the ring
+        }
+    }
+
+    private void normalizeFusedInt() {
+
+        int ii; // index that runs over all timelag values within one cascade
+        int jj; // index that runs over all timebase values (cascades)
+        int jjoffset; // helps to account for twice as many points in the first cascade
+
+        int[] ntlag = plan.ntlag;        // array with the number of points in each cascade
+        int[] cc = plan.cc;              // lagtime values in units of timebase
+        int ringSize = plan.ringSize;    // ring slots per cascade (a power of two)
+        int ringMask = plan.ringMask;    // wraps ring slot indices
+        int[] cascadeOffset = plan.cascadeOffset; // position of each cascade in cc and sXX arrays
+
+        int st;                          // ring slot of the stop event
+        double n, s10a, s20a, s30a, s10b, s01aT, s01bT;
+        double cum10a, cum01a, cum10b, cum01b, cum11;
+        boolean needHO = (g12!=null || g21!=null || g13!=null || g31!=null || g22!=null);
+
+        for (jj=0; jj<nc; jj++) {
+            jjoffset = cascadeOffset[jj];
+            for (ii=0; ii<ntlag[jj]; ii++) {
+                s10a = wAtotal[jj] - wAintArray[jj*ringSize+sp[jj]]; // subtract last bin
+                s20a = wAtotal2[jj] - (long)wAintArray[jj*ringSize+sp[jj]]
+                                           *wAintArray[jj*ringSize+sp[jj]]; // subtract last bin
+                s30a = wAtotal3[jj] - (double)wAintArray[jj*ringSize+sp[jj]]
+                                             *wAintArray[jj*ringSize+sp[jj]]
+                                             *wAintArray[jj*ringSize+sp[jj]]; // subtract last bin
+                s10b = wBtotal[jj] - wBintArray[jj*ringSize+sp[jj]]; // subtract last bin
+                st = sp[jj];
+                st = (st-1)&ringMask;
+                while ( (ringLag(jj, st)+1)<=cc[jjoffset+ii] && st!=sp[jj] ) {
+                      s10a = s10a - wAintArray[jj*ringSize+st];
+                      s20a = s20a - (long)wAintArray[jj*ringSize+st]*wAintArray[jj*ringSize+st];
+                      s30a = s30a - (double)wAintArray[jj*ringSize+st]*wAintArray[jj*ringSize+st]*wAintArray[jj*ringSize+st];
+                      s10b = s10b - wBintArray[jj*ringSize+st];
+                      st = (st-1)&ringMask;
+                }
+                n = tlast[jj]-cc[jjoffset+ii];
+                // basically, true s01 is wtotal - s01
+                s01aT = wAtotal[jj] - s01a[jjoffset+ii];
+                s01bT = wBtotal[jj] - s01b[jjoffset+ii];
+                cum10a = s10a/n;
+                cum01a = s01aT/n;
+                cum10b = s10b/n;
+                cum01b = s01bT/n;
+                if (gAA!=null) {
+                    cum11 = getProductSum(1, 1, jjoffset+ii)/(n-1.0) - s10a/n*s01aT/(n-1.0);
+                    gAA[jjoffset+ii] = cum11/cum10a/cum01a;
+                }
+                if (gBB!=null) {
+                    cum11 = getProductSum(5, 5, jjoffset+ii)/(n-1.0) - s10b/n*s01bT/(n-1.0);
+                    gBB[jjoffset+ii] = cum11/cum10b/cum01b;
+                }
+                if (gAB!=null) {
+                    cum11 = getProductSum(1, 5, jjoffset+ii)/(n-1.0) - s10a/n*s01bT/(n-1.0);
+                    gAB[jjoffset+ii] = cum11/cum10a/cum01b;
+                }
+                if (gBA!=null) {
+                    cum11 = getProductSum(5, 1, jjoffset+ii)/(n-1.0) - s10b/n*s01aT/(n-1.0);
+                    gBA[jjoffset+ii] = cum11/cum10b/cum01a;
+                }
+                if (needHO) {
+                    normalizeHOpoint(jjoffset+ii, n, s10a, s20a, s30a,
+                                     s01aT, wAtotal2[jj] - s02a[jjoffset+ii], wAtotal3[jj] - s03a[jjoffset+ii],
+                                     getProductSum(1, 1, jjoffset+ii), getProductSum(1, 2, jjoffset+ii),
+                                     getProductSum(2, 1, jjoffset+ii), getProductSum(1, 3, jjoffset+ii),
+                                     getProductSum(3, 1, jjoffset+ii), getProductSum(2, 2, jjoffset+ii));
+                }
+            }
+        }
+    }
+
+    private void initializeChannelPairs() {
+
+        // the used channels, the pair list in their indices and the rings and sums;
+        // channels outside all pairs are neither binned nor stored
+        int kk, cc, nUsed, nPairs;
+        int[] early = pairEarly, late = pairLate;
+        int[] usedIndex = new int[64];
+
+        if (early==null) { // all pairs
+            early = new int[nMultiChannels*nMultiChannels];
+            late = new int[nMultiChannels*nMultiChannels];
+            for (kk=0; kk<early.length; kk++) {
+                early[kk] = kk/nMultiChannels;
+                late[kk] = kk%nMultiChannels;
+            }
+        }
+        nPairs = early.length;
+        for (cc=0; cc<64; cc++) {usedIndex[cc]=-1;}
+        for (kk=0; kk<nPairs; kk++) { // in range (setChannelPairs)
+            usedIndex[early[kk]] = 0;
+            usedIndex[late[kk]] = 0;
+        }
+        nUsed = 0;
+        for (cc=0; cc<nMultiChannels; cc++) {
+            if (usedIndex[cc]==0) {usedIndex[cc] = nUsed++;}
+        }
+        usedChannels = new int[nUsed];
+        for (cc=0; cc<nMultiChannels; cc++) {
+            if (usedIndex[cc]>=0) {usedChannels[usedIndex[cc]] = cc;}
+        }
+        pairEarlyIndex = new int[nPairs];
+        pairLateIndex = new int[nPairs];
+        for (kk=0; kk<nPairs; kk++) {
+            pairEarlyIndex[kk] = usedIndex[early[kk]];
+            pairLateIndex[kk] = usedIndex[late[kk]];
+        }
+
+        if (correlationMode=="flcs") {
+            wFlcsArray = new double[plan.ringLength*nUsed];
+            wFlcsTemp = new double[nc*nUsed];
+            wFlcsTotal = new double[nc*nUsed];
+            s01flcs = new double[nUsed*np*(nc+1)];
+            s11flcs = new double[np*(nc+1)*nPairs];
+        } else {
+            wMultiArray = new int[plan.ringLength*nUsed];
+            wMultiTemp = new int[nc*nUsed];
+            wMultiTotal = new long[nc*nUsed];
+            s01multi = new long[nUsed*np*(nc+1)];
+            s11multi = new long[np*(nc+1)*nPairs];
+        }
+        gMulti = new double[nPairs][np*(nc+1)];
+        activePairs = new int[nc][nPairs];
+    }
+
+    public void updateCorrMultiInt() {
+
+        // the selected channel pairs of tagged events are accumulated in a single pass
+        // over the events and the cascade rings; a closed bin is only correlated for
+        // the pairs whose later channel has photons in it
+
+        // A. lagtime values are precomputed in the correlator plan
+
+        if (eventTags==null) {
+            throw new IllegalStateException("The events have no channel tags (a PhotonMerge or microtime gate source is needed)");
+        }
+        if (segments!=null) { // the block is correlated later as part of a time segment
+            segments.addEvents(photonsIat, wAint, wBint, eventTags, nEvents);
+            return;
+        }
+
+        // B. calculate the correlation; cascades are independent and may run in parallel
+        correlateCascades("multi");
+
+        // C. normalization is deferred until the correlation function is requested
+        gUpToDate = false;
+        blocksSinceNormalization++;
+        if (normalizationInterval>0 && blocksSinceNormalization>=normalizationInterval) { normalize(); }
+        // end of C
+
+    }
+
+    private void correlateMultiInt(int jjFirst, int jjLast) {
+
+        // section B of updateCorrMultiInt for cascades jjFirst..jjLast-1 (both ring engines)
+
+        int jj; // index that runs over all timebase values (cascades)
+        int uu; // index that runs over the used channels
+
+        int[] timebase = plan.timebase;  // timebase values
+        int ringSize = plan.ringSize;    // ring slots per cascade (a power of two)
+        int ringMask = plan.ringMask;    // wraps ring slot indices
+        int nUsed = usedChannels.length;
+        int stride = photonsIat.length+1; // of wMultiSum
+
+        long iat;               // iat and
+        long tags;              // channels of the most recent event
+        int ev;                 // counter over all events
+        int evClose;            // event that closes the current bin
+        int temp;               // position of the cascade in wMultiTemp
+        int bin;                // position of the closed bin in wMultiArray
+        // state of the current cascade
+        long mtaJ, iatnewJ;
+
+        for (jj=jjFirst; jj<jjLast; jj++) { // for all cascades in this range
+            mtaJ = mta[jj];
+            iatnewJ = iatnew[jj];
+            temp = jj*nUsed;
+            ev = 0;
+            while (ev<nEvents) { // for all events in this block
+                if (timebase[jj]!=1) { // skip the events that only add to the current bin
+                    evClose = nextBinClose(ev, timebase[jj]-mtaJ);
+                    if (evClose>ev) {
+                        mtaJ += eventTime[evClose]-eventTime[ev];
+                        for (uu=0; uu<nUsed; uu++) {
+                            wMultiTemp[temp+uu] += wMultiSum[uu*stride+evClose]-wMultiSum[uu*stride+ev];
+                        }
+                        ev = evClose;
+                    }
+                    if (ev==nEvents) { break; }
+                }
+                iat = photonsIat[ev];
+                tags = eventTags[ev];
+                ev++;
+                if (timebase[jj]!=1) { // if time coarsening is necessary
+                    // bin 1 - the bin that has been populated and is ready for correlation
+                    // bin 2 - the bin that is being populated
+                    mtaJ += iat; // mta value of photons in bin 2
+                    if ( mtaJ>=timebase[jj] ) { // bin 2 becomes bin 1
+                        if (!absoluteTimestamps) { ciatarray[jj*ringSize+sp[jj]] = iatnewJ; }
+                        sp[jj] = (sp[jj]+1)&ringMask; // array pointer for bin 1
+                        bin = (jj*ringSize+sp[jj])*nUsed;
+                        for (uu=0; uu<nUsed; uu++) {
+                            wMultiArray[bin+uu] = wMultiTemp[temp+uu];
+                            wMultiTemp[temp+uu] = (int)(tags >>> usedChannels[uu]) & 1;
+                        }
+
+                        correlateMultiBin(jj, iatnewJ);
+
+                        iatnewJ = mtaJ/timebase[jj]; // iat value for bin 2
+                        mtaJ = mtaJ-iatnewJ*timebase[jj]; // offset mta value for bin 2
+                    } else { // processing the current time bin
+                        for (uu=0; uu<nUsed; uu++) {
+                            wMultiTemp[temp+uu] += (int)(tags >>> usedChannels[uu]) & 1; // add photon weights
+                        }
+                    }
+                } else { // timebase=1; no need to coarsen time
+                    if (!absoluteTimestamps) { ciatarray[jj*ringSize+sp[jj]] = iat; } // iat value for bin 1
+                    sp[jj] = (sp[jj]+1)&ringMask; // array pointer for bin 1
+                    bin = (jj*ringSize+sp[jj])*nUsed;
+                    for (uu=0; uu<nUsed; uu++) {
+                        wMultiArray[bin+uu] = (int)(tags >>> usedChannels[uu]) & 1;
+                    }
+
+                    correlateMultiBin(jj, iat);
+                }
+            } // end of cycle over all events
+            mta[jj] = mtaJ;
+            iatnew[jj] = iatnewJ;
+        } // end of cycle over timebase values
+        // end of B
+
+    }
+
+    private void correlateMultiBin(int jj, long iatBin) {
+
+        // the bin that has just been closed (sp[jj]) is correlated with all earlier
+        // bins of cascade jj that are within the lag range, for each pair whose later
+        // channel has photons in this bin; iatBin is the time between this bin and
+        // the previous one. The ring holds cumulative iats or, with absoluteTimestamps,
+        // the time of each bin (stored here)
+
+        int ii; // index that runs over all timelag values within one cascade
+        int uu; // index that runs over the used channels
+        int kk; // index that runs over the pairs with photons in this bin
+        int jjoffset = plan.cascadeOffset[jj];
+        int[] ntlag = plan.ntlag;
+        int[] cc = plan.cc;
+        int ringSize = plan.ringSize;    // ring slots per cascade (a power of two)
+        int ringMask = plan.ringMask;    // wraps ring slot indices
+        int ring = jj*ringSize;          // first ring slot of cascade jj
+        int nUsed = usedChannels.length;
+        int nPairs = pairEarlyIndex.length;
+        int lags = np*(nc+1);            // of s01multi
+        int late = (ring+sp[jj])*nUsed;  // weights of this bin in wMultiArray
+        int early;                       // weights of the earlier bin
+        int[] active = activePairs[jj];  // scratch array of this cascade
+        int nActive;
+        int st;                 // ring slot of the stop event
+        int lag;                // position of the current lag in sXX arrays
+        long binLag;            // lag between the bin in slot st and this bin
+        int w;
+
+        // calculation of normalization values
+        tlast[jj] += iatBin;
+        if (absoluteTimestamps) { ciatarray[ring+sp[jj]] = tlast[jj]; } // time of this bin
+        for (uu=0; uu<nUsed; uu++) { wMultiTotal[jj*nUsed+uu] += wMultiArray[late+uu]; }
+        if ( tlast[jj]<cc[jjoffset+ntlag[jj]-1] ) {
+            for (ii=ntlag[jj]-1; ii>=0; ii--) {
+                if (tlast[jj]<cc[jjoffset+ii]) {
+                    for (uu=0; uu<nUsed; uu++) { s01multi[uu*lags+jjoffset+ii] += wMultiArray[late+uu]; }
+                }
+            }
+        }
+
+        // pairs with photons in this bin
+        nActive = 0;
+        for (kk=0; kk<nPairs; kk++) {
+            if (wMultiArray[late+pairLateIndex[kk]]!=0) { active[nActive++] = kk; }
+        }
+
+        // correlation search and calculation
+        st = sp[jj]; // check the last entry
+        st = (st-1)&ringMask;
+        if (absoluteTimestamps) {
+            if (nActive==0) { return; } // the search only reads the ring
+            binLag = tlast[jj]-ciatarray[ring+st];
+            if ( binLag<=cc[jjoffset+ntlag[jj]-1] ) {
+                while ( binLag<cc[jjoffset] && st!=sp[jj] ) {
+                    st = (st-1)&ringMask;
+                    binLag = tlast[jj]-ciatarray[ring+st];
+                }
+                // while within the limits of timelag values
+                while ( binLag<=cc[jjoffset+ntlag[jj]-1] && binLag>=cc[jjoffset] && st!=sp[jj] ) {
+                    early = (ring+st)*nUsed;
+                    lag = (jjoffset+(int)binLag-cc[jjoffset])*nPairs;
+                    for (kk=0; kk<nActive; kk++) {
+                        w = wMultiArray[early+pairEarlyIndex[active[kk]]];
+                        if (w!=0) { s11multi[lag+active[kk]] += (long)w*wMultiArray[late+pairLateIndex[active[kk]]]; }
+                    }
+                    st = (st-1)&ringMask;
+                    binLag = tlast[jj]-ciatarray[ring+st];
+                }
+                if (st==sp[jj]) { ringOverruns[jj]++; } // the lags reach beyond the ring
+            }
+        } else if ( ciatarray[ring+st]<=cc[jjoffset+ntlag[jj]-1] ) {
+            while ( ciatarray[ring+st]<cc[jjoffset] && st!=sp[jj] ) {
+                st = (st-1)&ringMask;
+                ciatarray[ring+st] += iatBin;
+            }
+            // while within the limits of timelag values
+            while ( ciatarray[ring+st]<=cc[jjoffset+ntlag[jj]-1] && ciatarray[ring+st]>=cc[jjoffset] && st!=sp[jj] ) {
+                early = (ring+st)*nUsed;
+                lag = (jjoffset+(int)ciatarray[ring+st]-cc[jjoffset])*nPairs;
+                for (kk=0; kk<nActive; kk++) {
+                    w = wMultiArray[early+pairEarlyIndex[active[kk]]];
+                    if (w!=0) { s11multi[lag+active[kk]] += (long)w*wMultiArray[late+pairLateIndex[active[kk]]]; }
+                }
+                st = (st-1)&ringMask;
+                ciatarray[ring+st] += iatBin;
+            }
+            if (st==sp[jj]) { ringOverruns[jj]++; } // the lags reach beyond the ring
+        }
+    }
+
+    private void normalizeMultiInt() {
+
+        int ii; // index that runs over all timelag values within one cascade
+        int jj; // index that runs over all timebase values (cascades)
+        int uu; // index that runs over the used channels
+        int kk; // index that runs over the pairs
+        int jjoffset; // helps to account for twice as many points in the first cascade
+
+        int[] ntlag = plan.ntlag;        // array with the number of points in each cascade
+        int[] cc = plan.cc;              // lagtime values in units of timebase
+        int ringSize = plan.ringSize;    // ring slots per cascade (a power of two)
+        int ringMask = plan.ringMask;    // wraps ring slot indices
+        int[] cascadeOffset = plan.cascadeOffset; // position of each cascade in cc and sXX arrays
+        int nUsed = usedChannels.length;
+        int nPairs = pairEarlyIndex.length;
+        int lags = np*(nc+1);            // of s01multi
+
+        int st;                          // ring slot of the stop event
+        double n, s10, s01T, cum10, cum01, cum11;
+        double[] s10multi = new double[nUsed]; // s10 of each used channel
+
+        for (jj=0; jj<nc; jj++) {
+            jjoffset = cascadeOffset[jj];
+            for (ii=0; ii<ntlag[jj]; ii++) {
+                for (uu=0; uu<nUsed; uu++) { // subtract last bin
+                    s10multi[uu] = wMultiTotal[jj*nUsed+uu] - wMultiArray[(jj*ringSize+sp[jj])*nUsed+uu];
+                }
+                st = sp[jj];
+                st = (st-1)&ringMask;
+                while ( (ringLag(jj, st)+1)<=cc[jjoffset+ii] && st!=sp[jj] ) {
+                    for (uu=0; uu<nUsed; uu++) { s10multi[uu] -= wMultiArray[(jj*ringSize+st)*nUsed+uu]; }
+                    st = (st-1)&ringMask;
+                }
+                n = tlast[jj]-cc[jjoffset+ii];
+                for (kk=0; kk<nPairs; kk++) {
+                    // basically, true s01 is wtotal - s01
+                    s10 = s10multi[pairEarlyIndex[kk]];
+                    s01T = wMultiTotal[jj*nUsed+pairLateIndex[kk]] - s01multi[pairLateIndex[kk]*lags+jjoffset+ii];
+                    cum10 = s10/n;
+                    cum01 = s01T/n;
+                    cum11 = s11multi[(jjoffset+ii)*nPairs+kk]/(n-1.0) - s10/n*s01T/(n-1.0);
+                    gMulti[kk][jjoffset+ii] = cum11/cum10/cum01;
+                }
+            }
+        }
+    }
+
+    public void updateCorrFlcs() {
+
+        // the selected pairs of lifetime filters are accumulated in a single pass over
+        // the events and the cascade rings, as in updateCorrMultiInt; the weights of the
+        // filters are doubles, looked up in scheduleBlock from the dtime of each photon
+
+        // A. lagtime values are precomputed in the correlator plan
+
+        if (eventTags==null) {
+            throw new IllegalStateException("The events have no microtimes (a PicoHarp T3 microtime source is needed)");
+        }
+        if (segments!=null) { // the block is correlated later as part of a time segment
+            segments.addEvents(photonsIat, wAint, wBint, eventTags, nEvents);
+            return;
+        }
+
+        // B. calculate the correlation; cascades are independent and may run in parallel
+        correlateCascades("flcs");
+
+        // C. normalization is deferred until the correlation function is requested
+        gUpToDate = false;
+        blocksSinceNormalization++;
+        if (normalizationInterval>0 && blocksSinceNormalization>=normalizationInterval) { normalize(); }
+        // end of C
+
+    }
+
+    private void correlateFlcs(int jjFirst, int jjLast) {
+
+        // section B of updateCorrFlcs for cascades jjFirst..jjLast-1 (both ring engines)
+
+        int jj; // index that runs over all timebase values (cascades)
+        int uu; // index that runs over the used filters
+
+        int[] timebase = plan.timebase;  // timebase values
+        int ringSize = plan.ringSize;    // ring slots per cascade (a power of two)
+        int ringMask = plan.ringMask;    // wraps ring slot indices
+        int nUsed = usedChannels.length;
+        int capacity = photonsIat.length; // of wFlcsEvent
+        int stride = capacity+1;          // of wFlcsSum
+
+        long iat;               // iat and
+        int evW;                // position of the most recent event in wFlcsEvent
+        int ev;                 // counter over all events
+        int evClose;            // event that closes the current bin
+        int temp;               // position of the cascade in wFlcsTemp
+        int bin;                // position of the closed bin in wFlcsArray
+        // state of the current cascade
+        long mtaJ, iatnewJ;
+
+        for (jj=jjFirst; jj<jjLast; jj++) { // for all cascades in this range
+            mtaJ = mta[jj];
+            iatnewJ = iatnew[jj];
+            temp = jj*nUsed;
+            ev = 0;
+            while (ev<nEvents) { // for all events in this block
+                if (timebase[jj]!=1) { // skip the events that only add to the current bin
+                    evClose = nextBinClose(ev, timebase[jj]-mtaJ);
+                    if (evClose>ev) {
+                        mtaJ += eventTime[evClose]-eventTime[ev];
+                        for (uu=0; uu<nUsed; uu++) {
+                            wFlcsTemp[temp+uu] += wFlcsSum[uu*stride+evClose]-wFlcsSum[uu*stride+ev];
+                        }
+                        ev = evClose;
+                    }
+                    if (ev==nEvents) { break; }
+                }
+                iat = photonsIat[ev];
+                evW = ev;
+                ev++;
+                if (timebase[jj]!=1) { // if time coarsening is necessary
+                    // bin 1 - the bin that has been populated and is ready for correlation
+                    // bin 2 - the bin that is being populated
+                    mtaJ += iat; // mta value of photons in bin 2
+                    if ( mtaJ>=timebase[jj] ) { // bin 2 becomes bin 1
+                        if (!absoluteTimestamps) { ciatarray[jj*ringSize+sp[jj]] = iatnewJ; }
+                        sp[jj] = (sp[jj]+1)&ringMask; // array pointer for bin 1
+                        bin = (jj*ringSize+sp[jj])*nUsed;
+                        for (uu=0; uu<nUsed; uu++) {
+                            wFlcsArray[bin+uu] = wFlcsTemp[temp+uu];
+                            wFlcsTemp[temp+uu] = wFlcsEvent[uu*capacity+evW];
+                        }
+
+                        correlateFlcsBin(jj, iatnewJ);
+
+                        iatnewJ = mtaJ/timebase[jj]; // iat value for bin 2
+                        mtaJ = mtaJ-iatnewJ*timebase[jj]; // offset mta value for bin 2
+                    } else { // processing the current time bin
+                        for (uu=0; uu<nUsed; uu++) {
+                            wFlcsTemp[temp+uu] += wFlcsEvent[uu*capacity+evW]; // add photon weights
+                        }
+                    }
+                } else { // timebase=1; no need to coarsen time
+                    if (!absoluteTimestamps) { ciatarray[jj*ringSize+sp[jj]] = iat; } // iat value for bin 1
+                    sp[jj] = (sp[jj]+1)&ringMask; // array pointer for bin 1
+                    bin = (jj*ringSize+sp[jj])*nUsed;
+                    for (uu=0; uu<nUsed; uu++) {
+                        wFlcsArray[bin+uu] = wFlcsEvent[uu*capacity+evW];
+                    }
+
+                    correlateFlcsBin(jj, iat);
+                }
+            } // end of cycle over all events
+            mta[jj] = mtaJ;
+            iatnew[jj] = iatnewJ;
+        } // end of cycle over timebase values
+        // end of B
+
+    }
+
+    private void correlateFlcsBin(int jj, long iatBin) {
+
+        // the bin that has just been closed (sp[jj]) is correlated with all earlier
+        // bins of cascade jj that are within the lag range, for each pair whose later
+        // filter has a weight in this bin; iatBin is the time between this bin and
+        // the previous one. The ring holds cumulative iats or, with absoluteTimestamps,
+        // the time of each bin (stored here)
+
+        int ii; // index that runs over all timelag values within one cascade
+        int uu; // index that runs over the used filters
+        int kk; // index that runs over the pairs with a weight in this bin
+        int jjoffset = plan.cascadeOffset[jj];
+        int[] ntlag = plan.ntlag;
+        int[] cc = plan.cc;
+        int ringSize = plan.ringSize;    // ring slots per cascade (a power of two)
+        int ringMask = plan.ringMask;    // wraps ring slot indices
+        int ring = jj*ringSize;          // first ring slot of cascade jj
+        int nUsed = usedChannels.length;
+        int nPairs = pairEarlyIndex.length;
+        int lags = np*(nc+1);            // of s01flcs
+        int late = (ring+sp[jj])*nUsed;  // weights of this bin in wFlcsArray
+        int early;                       // weights of the earlier bin
+        int[] active = activePairs[jj];  // scratch array of this cascade
+        int nActive;
+        int st;                 // ring slot of the stop event
+        int lag;                // position of the current lag in sXX arrays
+        long binLag;            // lag between the bin in slot st and this bin
+        double w;
+
+        // calculation of normalization values
+        tlast[jj] += iatBin;
+        if (absoluteTimestamps) { ciatarray[ring+sp[jj]] = tlast[jj]; } // time of this bin
+        for (uu=0; uu<nUsed; uu++) { wFlcsTotal[jj*nUsed+uu] += wFlcsArray[late+uu]; }
+        if ( tlast[jj]<cc[jjoffset+ntlag[jj]-1] ) {
+            for (ii=ntlag[jj]-1; ii>=0; ii--) {
+                if (tlast[jj]<cc[jjoffset+ii]) {
+                    for (uu=0; uu<nUsed; uu++) { s01flcs[uu*lags+jjoffset+ii] += wFlcsArray[late+uu]; }
+                }
+            }
+        }
+
+        // pairs with a weight in this bin
+        nActive = 0;
+        for (kk=0; kk<nPairs; kk++) {
+            if (wFlcsArray[late+pairLateIndex[kk]]!=0) { active[nActive++] = kk; }
+        }
+
+        // correlation search and calculation
+        st = sp[jj]; // check the last entry
+        st = (st-1)&ringMask;
+        if (absoluteTimestamps) {
+            if (nActive==0) { return; } // the search only reads the ring
+            binLag = tlast[jj]-ciatarray[ring+st];
+            if ( binLag<=cc[jjoffset+ntlag[jj]-1] ) {
+                while ( binLag<cc[jjoffset] && st!=sp[jj] ) {
+                    st = (st-1)&ringMask;
+                    binLag = tlast[jj]-ciatarray[ring+st];
+                }
+                // while within the limits of timelag values
+                while ( binLag<=cc[jjoffset+ntlag[jj]-1] && binLag>=cc[jjoffset] && st!=sp[jj] ) {
+                    early = (ring+st)*nUsed;
+                    lag = (jjoffset+(int)binLag-cc[jjoffset])*nPairs;
+                    for (kk=0; kk<nActive; kk++) {
+                        w = wFlcsArray[early+pairEarlyIndex[active[kk]]];
+                        if (w!=0) { s11flcs[lag+active[kk]] += w*wFlcsArray[late+pairLateIndex[active[kk]]]; }
+                    }
+                    st = (st-1)&ringMask;
+                    binLag = tlast[jj]-ciatarray[ring+st];
+                }
+                if (st==sp[jj]) { ringOverruns[jj]++; } // the lags reach beyond the ring
+            }
+        } else if ( ciatarray[ring+st]<=cc[jjoffset+ntlag[jj]-1] ) {
+            while ( ciatarray[ring+st]<cc[jjoffset] && st!=sp[jj] ) {
+                st = (st-1)&ringMask;
+                ciatarray[ring+st] += iatBin;
+            }
+            // while within the limits of timelag values
+            while ( ciatarray[ring+st]<=cc[jjoffset+ntlag[jj]-1] && ciatarray[ring+st]>=cc[jjoffset] && st!=sp[jj] ) {
+                early = (ring+st)*nUsed;
+                lag = (jjoffset+(int)ciatarray[ring+st]-cc[jjoffset])*nPairs;
+                for (kk=0; kk<nActive; kk++) {
+                    w = wFlcsArray[early+pairEarlyIndex[active[kk]]];
+                    if (w!=0) { s11flcs[lag+active[kk]] += w*wFlcsArray[late+pairLateIndex[active[kk]]]; }
+                }
+                st = (st-1)&ringMask;
+                ciatarray[ring+st] += iatBin;
+            }
+            if (st==sp[jj]) { ringOverruns[jj]++; } // the lags reach beyond the ring
+        }
+    }
+
+    private void normalizeFlcs() {
+
+        int ii; // index that runs over all timelag values within one cascade
+        int jj; // index that runs over all timebase values (cascades)
+        int uu; // index that runs over the used filters
+        int kk; // index that runs over the pairs
+        int jjoffset; // helps to account for twice as many points in the first cascade
+
+        int[] ntlag = plan.ntlag;        // array with the number of points in each cascade
+        int[] cc = plan.cc;              // lagtime values in units of timebase
+        int ringSize = plan.ringSize;    // ring slots per cascade (a power of two)
+        int ringMask = plan.ringMask;    // wraps ring slot indices
+        int[] cascadeOffset = plan.cascadeOffset; // position of each cascade in cc and sXX arrays
+        int nUsed = usedChannels.length;
+        int nPairs = pairEarlyIndex.length;
+        int lags = np*(nc+1);            // of s01flcs
+
+        int st;                          // ring slot of the stop event
+        double n, s10, s01T, cum10, cum01, cum11;
+        double[] s10flcs = new double[nUsed]; // s10 of each used filter
+
+        for (jj=0; jj<nc; jj++) {
+            jjoffset = cascadeOffset[jj];
+            for (ii=0; ii<ntlag[jj]; ii++) {
+                for (uu=0; uu<nUsed; uu++) { // subtract last bin
+                    s10flcs[uu] = wFlcsTotal[jj*nUsed+uu] - wFlcsArray[(jj*ringSize+sp[jj])*nUsed+uu];
+                }
+                st = sp[jj];
+                st = (st-1)&ringMask;
+                while ( (ringLag(jj, st)+1)<=cc[jjoffset+ii] && st!=sp[jj] ) {
+                    for (uu=0; uu<nUsed; uu++) { s10flcs[uu] -= wFlcsArray[(jj*ringSize+st)*nUsed+uu]; }
+                    st = (st-1)&ringMask;
+                }
+                n = tlast[jj]-cc[jjoffset+ii];
+                for (kk=0; kk<nPairs; kk++) {
+                    // basically, true s01 is wtotal - s01
+                    s10 = s10flcs[pairEarlyIndex[kk]];
+                    s01T = wFlcsTotal[jj*nUsed+pairLateIndex[kk]] - s01flcs[pairLateIndex[kk]*lags+jjoffset+ii];
+                    cum10 = s10/n;
+                    cum01 = s01T/n;
+                    cum11 = s11flcs[(jjoffset+ii)*nPairs+kk]/(n-1.0) - s10/n*s01T/(n-1.0);
+                    gMulti[kk][jjoffset+ii] = cum11/cum10/cum01;
+                }
+            }
+        }
+    }
+
+}
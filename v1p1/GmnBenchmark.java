@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016-2017 Artem Melnykov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Random;
+
+// Throughput of the correlation kernels on synthetic photon streams.
+// Usage: java GmnBenchmark [nEvents] [meanIat] [t0] [nc] [np] [modes, e.g. auto,cross]
+//        [rings, e.g. cumulative,absolute]
+// Inter-arrival times are exponentially distributed with mean meanIat (in units
+// of the time resolution); channel B gets every second photon on average. The
+// "multi" and "flcs" modes correlate all 16 pairs of 4 channels, two for each channel
+// (detector): "multi" counts a photon in both channels of its detector, "flcs" weighs
+// it by two lifetime filters of its detector, so the two differ only in the weights.
+public class GmnBenchmark {
+
+    public static void main(String[] args) {
+
+        int nEvents = args.length>0 ? Integer.parseInt(args[0]) : 10000000;
+        double meanIat = args.length>1 ? Double.parseDouble(args[1]) : 50;
+        int t0 = args.length>2 ? Integer.parseInt(args[2]) : 1;
+        int nc = args.length>3 ? Integer.parseInt(args[3]) : 20;
+        int np = args.length>4 ? Integer.parseInt(args[4]) : 16;
+        String[] modes = args.length>5 ? args[5].split(",") : new String[] {"auto", "cross", "autoHOmlt", "fused", "multi", "flcs"};
+        String[] rings = args.length>6 ? args[6].split(",") : new String[] {"cumulative", "absolute"};
+        int repeats = 3;
+
+        // synthetic data
+        long[] iat = new long[nEvents];
+        int[] wA = new int[nEvents];
+        int[] wB = new int[nEvents];
+        long[] tags = new long[nEvents];
+        long[] microtimes = new long[nEvents];
+        double[][] filters = new double[4][4096];
+        Random rnd = new Random(1);
+        for (int ev=0; ev<nEvents; ev++) {
+            iat[ev] = (long)(-Math.log(1-rnd.nextDouble())*meanIat);
+            wB[ev] = rnd.nextInt(2);
+            wA[ev] = 1-wB[ev];
+            tags[ev] = 3L << (2*wB[ev]);
+            microtimes[ev] = ((1+wB[ev]) << 12) | Math.min(4095, (int)(-Math.log(1-rnd.nextDouble())*400)); // detector, dtime
+        }
+        for (int ii=0; ii<4096; ii++) { // a fast and a slow decay pattern, for each detector
+            filters[0][ii] = filters[2][ii] = 2*Math.exp(-ii/200.0)-Math.exp(-ii/800.0);
+            filters[1][ii] = filters[3][ii] = Math.exp(-ii/800.0)-0.5*Math.exp(-ii/200.0);
+        }
+
+        System.out.println("events: "+nEvents+", mean iat: "+meanIat+", t0="+t0+", nc="+nc+", np="+np);
+        for (String modeName:modes) {
+            String mode = modeName.intern(); // modes are compared by reference in Gmn
+            int[] weightsA = (mode=="auto" || mode=="autoHOmlt") ? ones(nEvents) : wA;
+            for (String ring:rings) {
+                double best = Double.MAX_VALUE;
+                for (int rr=0; rr<repeats; rr++) {
+                    Gmn cr = new Gmn();
+                    cr.setParams(t0, nc, np);
+                    cr.setAbsoluteTimestamps(ring.equals("absolute"));
+                    if (mode=="multi") { cr.setChannelPairs(4, null); }
+                    if (mode=="flcs") { cr.setLifetimeFilters(new int[] {1, 1, 2, 2}, filters, null); }
+                    cr.initializeGmn(mode);
+                    long start = System.nanoTime();
+                    cr.correlateEvents(iat, weightsA, wB, (mode=="multi") ? tags : ((mode=="flcs") ? microtimes : null), 0, nEvents);
+                    cr.normalize();
+                    best = Math.min(best, (System.nanoTime()-start)*1e-9);
+                }
+                System.out.printf("%-10s %-10s %8.3f s %8.2f Mevents/s%n", mode, ring, best, nEvents/best*1e-6);
+            }
+        }
+    }
+
+    private static int[] ones(int n) {
+        int[] v = new int[n];
+        for (int ii=0; ii<n; ii++) { v[ii] = 1; }
+        return v;
+    }
+
+}
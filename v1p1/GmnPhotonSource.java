@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016-2017 Artem Melnykov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+// PhotonSource that decodes with the updateData* methods of a Gmn of its own.
+// A subclass calls one of them in decode(); the decoded events are handed over
+// by exchanging arrays with the EventBlock (Gmn.exchangeEvents), without copying.
+// Sources of files can save and restore the position of the decoder (PhotonIndex).
+public abstract class GmnPhotonSource implements PhotonSource {
+
+    protected final Gmn decoder;    // holds the decoding state (buffers, carried iat)
+    protected final FileInputStream inputA; // input file (ch. A or both); null - not a file
+    protected final FileInputStream inputB; // input file of ch. B; null - none
+    private final String format;
+    private final int nChannels;
+    private final double dt;
+    protected boolean tagged;       // decode() tags the events (e.g. Gmn.updateDataPicoHarpPT3gates)
+
+    public GmnPhotonSource(String format, int nChannels, double dt) {
+        // data that is not read from a file (e.g. a hardware buffer converted by decode())
+        this(format, nChannels, dt, null, null);
+    }
+
+    public GmnPhotonSource(String format, int nChannels, double dt, FileInputStream inputA, FileInputStream inputB) {
+        // inputA, inputB - the files decoded by decode(); closed by close()
+        this.format = format;
+        this.inputA = inputA;
+        this.inputB = inputB;
+        this.nChannels = nChannels;
+        this.dt = dt;
+        decoder = new Gmn();
+        decoder.initializeDecoder(nChannels);
+    }
+
+    protected abstract void decode(Gmn decoder); // next block with one of the updateData* methods;
+                                                 // a call that decodes no events ends the stream
+                                                 // (readBlock returns 0, e.g. EventPipeline.run returns)
+
+    public int readBlock(EventBlock block) {
+        int n;
+        decode(decoder);
+        n = decoder.getNofEvents();
+        decoder.exchangeEvents(block);
+        if (!tagged) { block.tags = null; } // the other decoders do not tag their events
+        return n;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public int getNofChannels() {
+        return nChannels;
+    }
+
+    public double getTimeResolution() {
+        // as stated in the file header if it was read, otherwise the format's default
+        PhotonHeader header = decoder.getHeader();
+        return (header!=null && header.timeResolution>0) ? header.timeResolution : dt;
+    }
+
+    public PhotonHeader getHeader() {
+        // as read by the decoder; for data without a header one with the format's defaults
+        PhotonHeader header = decoder.getHeader();
+        if (header==null) {
+            header = new PhotonHeader(format);
+            header.timeResolution = dt;
+        }
+        return header;
+    }
+
+    public long getDecodedBytes() {
+        return decoder.getDecodedBytes();
+    }
+
+    public double getDecodeRate() {
+        return decoder.getDecodeRate();
+    }
+
+    long[] getDecoderState() throws IOException {
+        // where the next readBlock continues (Gmn.getDecoderState)
+        return decoder.getDecoderState(inputA, inputB);
+    }
+
+    void setDecoderState(long[] state) throws IOException {
+        // continue at a state of getDecoderState of a source of the same file(s)
+        decoder.setDecoderState(inputA, inputB, state);
+    }
+
+    public void close() throws IOException {
+        if (inputA!=null) { inputA.close(); }
+        if (inputB!=null) { inputB.close(); }
+    }
+
+}
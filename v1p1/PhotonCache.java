@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2016-2017 Artem Melnykov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Sidecar cache of a decoded photon stream, so that repeated runs on the same file
+// (e.g. with other correlator parameters) do not decode it again.
+// The first run records the blocks of the source next to the data file
+// (<data file>.<channel>.gmncache); later runs read them back, block by block, as
+// they were decoded. An event is a varint of its zigzag inter-arrival time shifted
+// left by one (A) or two (A, B) channel bits: weight 1 in A (1), in B (2), in both (3),
+// or other weights (0) given by varints that follow. The cache ends with an index of
+// its blocks (offset, size, number of events, time of the first event).
+//
+// File layout: "GMNCACHE", version, format, channel, size and modification time of
+// the data file(s), the PhotonHeader, the offset of the index; blocks; index.
+public class PhotonCache {
+
+    private static final String MAGIC = "GMNCACHE";
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".gmncache";
+    private static final int MAX_EVENT_BYTES = 20; // varint of the time and two weights
+
+    public static File getCacheFile(File fileA, String channel) {
+        return new File(fileA.getPath()+"."+channel+SUFFIX);
+    }
+
+    public static PhotonSource open(String format, File fileA, File fileB, String channel) throws IOException {
+        // the stream of a format (PhotonSources) from its cache if the cache was recorded
+        // from the same file(s), otherwise decoded from the file(s) and recorded on the way
+        File cacheFile = getCacheFile(fileA, channel);
+        PhotonSource source;
+        if (cacheFile.isFile()) {
+            try {
+                return new CachedSource(cacheFile, format, fileA, fileB, channel);
+            } catch (IOException e) {
+                // stale or incomplete; recorded again below
+            }
+        }
+        source = PhotonSources.open(format, fileA, fileB, channel);
+        try {
+            return new RecordingSource(source, cacheFile, fileA, fileB, channel);
+        } catch (IOException e) {
+            return source; // e.g. a read-only directory: no cache
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out, String format, File fileA, File fileB, String channel,
+            int nChannels, double timeResolution, PhotonHeader header, long indexOffset) throws IOException {
+        int ii;
+        out.writeBytes(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(format);
+        out.writeUTF(channel);
+        out.writeLong(fileA.length());
+        out.writeLong(fileA.lastModified());
+        out.writeLong((fileB!=null) ? fileB.length() : -1);
+        out.writeLong((fileB!=null) ? fileB.lastModified() : -1);
+        out.writeInt(nChannels);
+        out.writeDouble(timeResolution); // as used by the source, also if the header does not state it
+        out.writeDouble(header.microtimeResolution);
+        out.writeDouble(header.syncRate);
+        out.writeLong(header.nRecords);
+        out.writeLong(header.headerSize);
+        out.writeInt(header.channels.length);
+        for (ii=0; ii<header.channels.length; ii++) { out.writeInt(header.channels[ii]); }
+        out.writeLong(indexOffset);
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    // passes the blocks of a source on and writes them to a temporary file, which
+    // becomes the cache once the end of the stream has been reached
+    private static class RecordingSource implements PhotonSource {
+
+        private final PhotonSource source;
+        private final File cacheFile;
+        private final File tempFile;
+        private final int nChannels;
+        private RandomAccessFile out;   // null - not recording (finished or abandoned)
+        private byte[] bytes = new byte[32768*MAX_EVENT_BYTES]; // encoded block
+        private ByteArrayOutputStream index = new ByteArrayOutputStream();
+        private DataOutputStream indexOut = new DataOutputStream(index);
+        private int nBlocks;
+        private long time;              // time of the next event from the start of the stream
+        private long headerSize;        // bytes before the first block
+
+        RecordingSource(PhotonSource source, File cacheFile, File fileA, File fileB, String channel) throws IOException {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            this.source = source;
+            this.cacheFile = cacheFile;
+            tempFile = new File(cacheFile.getPath()+".tmp");
+            nChannels = source.getNofChannels();
+            writeHeader(new DataOutputStream(header), source.getFormat(), fileA, fileB, channel, nChannels,
+                    source.getTimeResolution(), source.getHeader(), 0);
+            headerSize = header.size();
+            out = new RandomAccessFile(tempFile, "rw");
+            out.setLength(0);
+            out.write(header.toByteArray());
+        }
+
+        public int readBlock(EventBlock block) {
+            int n = source.readBlock(block);
+            if (out==null) { return n; }
+            try {
+                if (n!=0) { write(block, n); } else { finish(); }
+            } catch (IOException e) {
+                abandon(); // the correlation goes on without the cache
+            }
+            return n;
+        }
+
+        private void write(EventBlock block, int n) throws IOException {
+            int ev, pos = 0, code, wA, wB;
+            long start = time+block.iat[0]; // time of the first event
+            if (bytes.length<n*MAX_EVENT_BYTES) { bytes = new byte[n*MAX_EVENT_BYTES]; }
+            for (ev=0; ev<n; ev++) {
+                wA = block.wA[ev];
+                wB = (nChannels==2) ? block.wB[ev] : 0;
+                time += block.iat[ev];
+                if (nChannels==1) {
+                    code = (wA==1) ? 1 : 0;
+                } else {
+                    code = (wA<=1 && wB<=1) ? wA+2*wB : 0; // 0 - also for wA=wB=0
+                }
+                pos = putVarint(bytes, pos, (zigzag(block.iat[ev]) << nChannels) | code);
+                if (code==0) {
+                    pos = putVarint(bytes, pos, wA);
+                    if (nChannels==2) { pos = putVarint(bytes, pos, wB); }
+                }
+            }
+            indexOut.writeLong(out.getFilePointer());
+            indexOut.writeInt(pos);
+            indexOut.writeInt(n);
+            indexOut.writeLong(start);
+            out.write(bytes, 0, pos);
+            nBlocks++;
+        }
+
+        private void finish() throws IOException {
+            // append the index, point the header to it and replace the cache
+            long indexOffset = out.getFilePointer();
+            out.writeInt(nBlocks);
+            out.write(index.toByteArray());
+            out.seek(headerSize-8);
+            out.writeLong(indexOffset);
+            out.close();
+            out = null;
+            if ((cacheFile.exists() && !cacheFile.delete()) || !tempFile.renameTo(cacheFile)) {
+                tempFile.delete();
+            }
+        }
+
+        private void abandon() {
+            try { out.close(); } catch (IOException e) { }
+            out = null;
+            tempFile.delete();
+        }
+
+        private static int putVarint(byte[] b, int pos, long v) {
+            while ((v & ~0x7FL)!=0) {
+                b[pos++] = (byte)((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            b[pos++] = (byte)v;
+            return pos;
+        }
+
+        public String getFormat() { return source.getFormat(); }
+        public int getNofChannels() { return nChannels; }
+        public double getTimeResolution() { return source.getTimeResolution(); }
+        public PhotonHeader getHeader() { return source.getHeader(); }
+        public long getDecodedBytes() { return source.getDecodedBytes(); }
+        public double getDecodeRate() { return source.getDecodeRate(); }
+
+        public void close() throws IOException {
+            if (out!=null) { abandon(); } // closed before the end of the stream
+            source.close();
+        }
+    }
+
+    // the blocks of a cache file, checked against the data file(s) it was recorded from
+    private static class CachedSource implements PhotonSource {
+
+        private static final int[] WEIGHT_A = {0, 1, 0, 1}; // by the channel bits (two channels)
+        private static final int[] WEIGHT_B = {0, 0, 1, 1};
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final String format;
+        private final int nChannels;
+        private final PhotonHeader header;
+        private final long[] blockOffset;
+        private final int[] blockBytes;
+        private final int[] blockEvents;
+        private int nextBlock;
+        private ByteBuffer bytes = ByteBuffer.allocate(0);
+        private long bytesRead;
+        private long readTime;          // time spent in readBlock (ns)
+
+        CachedSource(File cacheFile, String format, File fileA, File fileB, String channelName) throws IOException {
+            int ii, nBlocks;
+            long indexOffset;
+            byte[] magic = new byte[MAGIC.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(cacheFile));
+            try {
+                in.readFully(magic);
+                if (!new String(magic, "US-ASCII").equals(MAGIC) || in.readInt()!=VERSION
+                        || !in.readUTF().equals(format) || !in.readUTF().equals(channelName)
+                        || in.readLong()!=fileA.length() || in.readLong()!=fileA.lastModified()
+                        || in.readLong()!=((fileB!=null) ? fileB.length() : -1)
+                        || in.readLong()!=((fileB!=null) ? fileB.lastModified() : -1)) {
+                    throw new IOException(cacheFile.getName()+": recorded from other data");
+                }
+                this.format = format;
+                nChannels = in.readInt();
+                header = new PhotonHeader(format);
+                header.timeResolution = in.readDouble();
+                header.microtimeResolution = in.readDouble();
+                header.syncRate = in.readDouble();
+                header.nRecords = in.readLong();
+                header.headerSize = in.readLong();
+                header.channels = new int[in.readInt()];
+                for (ii=0; ii<header.channels.length; ii++) { header.channels[ii] = in.readInt(); }
+                indexOffset = in.readLong();
+            } finally {
+                in.close();
+            }
+            if (indexOffset==0) { throw new IOException(cacheFile.getName()+": incomplete"); }
+
+            file = new RandomAccessFile(cacheFile, "r");
+            channel = file.getChannel();
+            try {
+                file.seek(indexOffset);
+                nBlocks = file.readInt();
+                blockOffset = new long[nBlocks];
+                blockBytes = new int[nBlocks];
+                blockEvents = new int[nBlocks];
+                ByteBuffer index = ByteBuffer.allocate(nBlocks*24);
+                while (index.hasRemaining() && channel.read(index, indexOffset+4+index.position())>0) { }
+                if (index.hasRemaining()) { throw new IOException(cacheFile.getName()+": truncated index"); }
+                index.flip();
+                for (ii=0; ii<nBlocks; ii++) {
+                    blockOffset[ii] = index.getLong();
+                    blockBytes[ii] = index.getInt();
+                    blockEvents[ii] = index.getInt();
+                    index.getLong(); // time of the first event
+                }
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        public int readBlock(EventBlock block) {
+            long start = System.nanoTime();
+            int ev, n, code;
+            long v;
+            if (nextBlock==blockOffset.length) { return block.nEvents = 0; }
+            if (bytes.capacity()<blockBytes[nextBlock]) { bytes = ByteBuffer.allocate(blockBytes[nextBlock]); }
+            bytes.clear();
+            bytes.limit(blockBytes[nextBlock]);
+            try {
+                while (bytes.hasRemaining() && channel.read(bytes, blockOffset[nextBlock]+bytes.position())>0) { }
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to read the photon cache", e);
+            }
+            bytes.flip();
+            n = blockEvents[nextBlock];
+            for (ev=0; ev<n; ev++) {
+                v = getVarint(bytes);
+                code = (int)v & ((1 << nChannels)-1);
+                block.iat[ev] = unzigzag(v >>> nChannels);
+                if (code!=0) {
+                    block.wA[ev] = (nChannels==1) ? 1 : WEIGHT_A[code];
+                    if (nChannels==2) { block.wB[ev] = WEIGHT_B[code]; }
+                } else {
+                    block.wA[ev] = (int)getVarint(bytes);
+                    if (nChannels==2) { block.wB[ev] = (int)getVarint(bytes); }
+                }
+            }
+            block.nEvents = n;
+            block.tags = null; // no channel tags are cached
+            bytesRead += blockBytes[nextBlock];
+            nextBlock++;
+            readTime += System.nanoTime()-start;
+            return n;
+        }
+
+        private static long getVarint(ByteBuffer b) {
+            long v = 0;
+            int shift = 0;
+            byte bb;
+            do {
+                bb = b.get();
+                v |= (long)(bb & 0x7F) << shift;
+                shift += 7;
+            } while (bb<0);
+            return v;
+        }
+
+        public String getFormat() { return format; }
+        public int getNofChannels() { return nChannels; }
+        public PhotonHeader getHeader() { return header; }
+        public long getDecodedBytes() { return bytesRead; }
+        public double getDecodeRate() { return (readTime>0) ? bytesRead/(readTime*1e-9) : 0; }
+
+        public double getTimeResolution() {
+            return header.timeResolution;
+        }
+
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2016-2017 Artem Melnykov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// The parts of a data file header that decoding and correlation depend on.
+// The Gmn readHeader* methods read a header in one piece and fill these fields
+// (Gmn.getHeader); values a format does not state keep their defaults.
+public class PhotonHeader {
+
+    String format;              // data format (as in PhotonSources)
+    double timeResolution;      // duration of one time unit of the records (s); 0 - not stated
+    double microtimeResolution; // duration of one microtime (dtime) bin of T3 records (s); 0 - none
+    double syncRate;            // rate of the sync input (Hz); 0 - not stated
+    int[] channels;             // detector channels the records can hold (0 - sync input in T2 mode)
+    long nRecords;              // records in the file; -1 - unknown
+    long headerSize;            // bytes before the first record
+
+    public PhotonHeader(String format) {
+        this.format = format;
+        timeResolution = 0;
+        microtimeResolution = 0;
+        syncRate = 0;
+        channels = new int[0];
+        nRecords = -1;
+        headerSize = 0;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public double getTimeResolution() {
+        return timeResolution;
+    }
+
+    public double getMicrotimeResolution() {
+        return microtimeResolution;
+    }
+
+    public double getSyncRate() {
+        return syncRate;
+    }
+
+    public int[] getChannels() {
+        return channels.clone();
+    }
+
+    public long getNofRecords() {
+        return nRecords;
+    }
+
+    public long getHeaderSize() {
+        return headerSize;
+    }
+
+}
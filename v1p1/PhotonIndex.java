@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2016-2017 Artem Melnykov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Positions in a data file from which decoding can start without decoding what is
+// before them. An entry holds the file offsets of the next records, the values the
+// decoder carries over to them (iatA/iatB, PT3 and PTU overflows; Gmn.getDecoderState)
+// and the time and number of the events before them. Entries are taken at the end of
+// the decoder block in which at least eventsPerEntry events have passed since the
+// previous one; the first entry is the start of the data, the last one its end.
+// The events between two entries (openEntries) can be correlated independently, and
+// openWindow gives the events of a time window, e.g. a region of the intensity trace.
+// An index is built by one pass over the file and kept next to it (<data file>.<channel>.gmnindex).
+public class PhotonIndex {
+
+    private static final String MAGIC = "GMNINDEX";
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".gmnindex";
+    private static final int STATE_LENGTH = 5;      // values of Gmn.getDecoderState
+
+    private final String format;
+    private final File fileA;
+    private final File fileB;
+    private final String channel;
+    private final long eventsPerEntry;
+    private double dt;          // time resolution (s)
+    private int nEntries;
+    private long[] time;        // time of the last event before each entry (units of dt)
+    private long[] events;      // number of events before each entry
+    private long[][] state;     // decoder state at each entry
+
+    private PhotonIndex(String format, File fileA, File fileB, String channel, long eventsPerEntry) {
+        this.format = format;
+        this.fileA = fileA;
+        this.fileB = fileB;
+        this.channel = channel;
+        this.eventsPerEntry = eventsPerEntry;
+        nEntries = 0;
+        time = new long[16];
+        events = new long[16];
+        state = new long[16][];
+    }
+
+    public static File getIndexFile(File fileA, String channel) {
+        return new File(fileA.getPath()+"."+channel+SUFFIX);
+    }
+
+    public static PhotonIndex open(String format, File fileA, File fileB, String channel, long eventsPerEntry) throws IOException {
+        // the index kept next to the data file if it was built from the same file(s)
+        // with the same spacing, otherwise a new one (saved if the directory allows it)
+        File indexFile = getIndexFile(fileA, channel);
+        PhotonIndex index;
+        if (indexFile.isFile()) {
+            try {
+                return load(indexFile, format, fileA, fileB, channel, eventsPerEntry);
+            } catch (IOException e) {
+                // stale; built again below
+            }
+        }
+        index = build(format, fileA, fileB, channel, eventsPerEntry);
+        try {
+            index.save(indexFile);
+        } catch (IOException e) {
+            indexFile.delete(); // e.g. a read-only directory: the index is not kept
+        }
+        return index;
+    }
+
+    public static PhotonIndex build(String format, File fileA, File fileB, String channel, long eventsPerEntry) throws IOException {
+        // one pass over the file(s) with the decoder of the format
+        PhotonIndex index = new PhotonIndex(format, fileA, fileB, channel, eventsPerEntry);
+        GmnPhotonSource source = openSource(format, fileA, fileB, channel);
+        EventBlock block = new EventBlock(32768, source.getNofChannels()==2);
+        long t = 0, n = 0;
+        int ev, nBlock;
+        try {
+            index.dt = source.getTimeResolution();
+            index.add(0, 0, source.getDecoderState());
+            while ((nBlock = source.readBlock(block))!=0) {
+                for (ev=0; ev<nBlock; ev++) { t += block.iat[ev]; }
+                n += nBlock;
+                if (n-index.events[index.nEntries-1]>=eventsPerEntry) { index.add(t, n, source.getDecoderState()); }
+            }
+            if (n!=index.events[index.nEntries-1]) { index.add(t, n, source.getDecoderState()); } // end of the data
+        } finally {
+            source.close();
+        }
+        return index;
+    }
+
+    private static GmnPhotonSource openSource(String format, File fileA, File fileB, String channel) throws IOException {
+        PhotonSource source = PhotonSources.open(format, fileA, fileB, channel);
+        if (!(source instanceof GmnPhotonSource)) {
+            source.close();
+            throw new IllegalArgumentException(format+": files of this format cannot be indexed");
+        }
+        return (GmnPhotonSource)source;
+    }
+
+    private void add(long t, long n, long[] s) {
+        if (nEntries==time.length) {
+            time = Arrays.copyOf(time, 2*nEntries);
+            events = Arrays.copyOf(events, 2*nEntries);
+            state = Arrays.copyOf(state, 2*nEntries);
+        }
+        time[nEntries] = t;
+        events[nEntries] = n;
+        state[nEntries] = s;
+        nEntries++;
+    }
+
+    public int getNofEntries() {
+        return nEntries;
+    }
+
+    public double getTimeResolution() {
+        return dt;
+    }
+
+    public double getTime(int entry) {
+        // time of the last event before the entry (s)
+        return time[entry]*dt;
+    }
+
+    public long getNofEvents(int entry) {
+        // events before the entry
+        return events[entry];
+    }
+
+    public long getOffset(int entry) {
+        // offset of the next record in the file (of channel A)
+        return state[entry][0];
+    }
+
+    public int findEntry(double seconds) {
+        // last entry before which all events are earlier than seconds (entry 0 if none)
+        int lo = 0, hi = nEntries-1, mid;
+        while (lo<hi) {
+            mid = (lo+hi+1)>>>1;
+            if (time[mid]*dt<seconds) { lo = mid; } else { hi = mid-1; }
+        }
+        return lo;
+    }
+
+    public PhotonSource openEntries(int from, int to) throws IOException {
+        // the events between entries from and to (to>from); their times continue from
+        // the last event before entry from
+        return open(from, Long.MIN_VALUE, Long.MAX_VALUE, events[to]-events[from]);
+    }
+
+    public PhotonSource openWindow(double fromSeconds, double toSeconds) throws IOException {
+        // the events at times from fromSeconds to (not including) toSeconds; the first
+        // one arrives after fromSeconds. The window ends at the first event at or after
+        // toSeconds (event times increase)
+        long from = (long)Math.ceil(fromSeconds/dt);
+        long to = (toSeconds/dt>=Long.MAX_VALUE) ? Long.MAX_VALUE : (long)Math.ceil(toSeconds/dt);
+        int entry = findEntry(fromSeconds);
+        return open(entry, Math.max(from, time[entry]), to, Long.MAX_VALUE);
+    }
+
+    private PhotonSource open(int entry, long from, long to, long maxEvents) throws IOException {
+        GmnPhotonSource source = openSource(format, fileA, fileB, channel);
+        boolean opened = false;
+        try {
+            source.setDecoderState(state[entry]);
+            opened = true;
+        } finally {
+            if (!opened) { source.close(); }
+        }
+        return new WindowSource(source, time[entry], from, to, maxEvents);
+    }
+
+    public void save(File indexFile) throws IOException {
+        int ii, jj;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+        try {
+            out.writeBytes(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(format);
+            out.writeUTF(channel);
+            out.writeLong(fileA.length());
+            out.writeLong(fileA.lastModified());
+            out.writeLong((fileB!=null) ? fileB.length() : -1);
+            out.writeLong((fileB!=null) ? fileB.lastModified() : -1);
+            out.writeLong(eventsPerEntry);
+            out.writeDouble(dt);
+            out.writeInt(nEntries);
+            for (ii=0; ii<nEntries; ii++) {
+                out.writeLong(time[ii]);
+                out.writeLong(events[ii]);
+                for (jj=0; jj<STATE_LENGTH; jj++) { out.writeLong(state[ii][jj]); }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static PhotonIndex load(File indexFile, String format, File fileA, File fileB, String channel, long eventsPerEntry) throws IOException {
+        int ii, jj, n;
+        byte[] magic = new byte[MAGIC.length()];
+        PhotonIndex index = new PhotonIndex(format, fileA, fileB, channel, eventsPerEntry);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            in.readFully(magic);
+            if (!new String(magic, "US-ASCII").equals(MAGIC) || in.readInt()!=VERSION
+                    || !in.readUTF().equals(format) || !in.readUTF().equals(channel)
+                    || in.readLong()!=fileA.length() || in.readLong()!=fileA.lastModified()
+                    || in.readLong()!=((fileB!=null) ? fileB.length() : -1)
+                    || in.readLong()!=((fileB!=null) ? fileB.lastModified() : -1)
+                    || in.readLong()!=eventsPerEntry) {
+                throw new IOException(indexFile.getName()+": built from other data");
+            }
+            index.dt = in.readDouble();
+            n = in.readInt();
+            for (ii=0; ii<n; ii++) {
+                long t = in.readLong();
+                long events = in.readLong();
+                long[] s = new long[STATE_LENGTH];
+                for (jj=0; jj<STATE_LENGTH; jj++) { s[jj] = in.readLong(); }
+                index.add(t, events, s);
+            }
+        } finally {
+            in.close();
+        }
+        return index;
+    }
+
+    // the events of a source that continues at an entry, from a time on and up to
+    // a time or number of events
+    private static class WindowSource implements PhotonSource {
+
+        private final GmnPhotonSource source;
+        private final long from;        // first time of the window (MIN_VALUE - all events)
+        private final long to;          // end of the window (excluded)
+        private long remaining;         // events still to be delivered
+        private long time;              // time of the last event read from the source
+        private boolean started;        // the window has been reached
+
+        WindowSource(GmnPhotonSource source, long entryTime, long from, long to, long maxEvents) {
+            this.source = source;
+            this.from = from;
+            this.to = to;
+            remaining = maxEvents;
+            time = entryTime;
+            started = (from==Long.MIN_VALUE);
+        }
+
+        public int readBlock(EventBlock block) {
+            int ev, first, n;
+            long t;
+            while (remaining>0) {
+                n = source.readBlock(block);
+                if (n==0) { break; }
+                first = 0;
+                t = time;
+                if (!started) { // skip the events before the window
+                    while (first<n && t+block.iat[first]<from) { t += block.iat[first]; first++; }
+                    if (first==n) { time = t; continue; }
+                    block.iat[first] = t+block.iat[first]-from; // from the start of the window
+                    t = from;
+                    started = true;
+                }
+                for (ev=first; ev<n && (ev-first)<remaining; ev++) {
+                    if (t+block.iat[ev]>=to) { remaining = 0; break; }
+                    t += block.iat[ev];
+                }
+                time = t;
+                n = ev-first;
+                remaining -= n;
+                if (first>0) {
+                    System.arraycopy(block.iat, first, block.iat, 0, n);
+                    System.arraycopy(block.wA, first, block.wA, 0, n);
+                    if (block.wB!=null) { System.arraycopy(block.wB, first, block.wB, 0, n); }
+                    if (block.tags!=null) { System.arraycopy(block.tags, first, block.tags, 0, n); }
+                }
+                block.nEvents = n;
+                if (n>0) { return n; }
+            }
+            return block.nEvents = 0;
+        }
+
+        public String getFormat() { return source.getFormat(); }
+        public int getNofChannels() { return source.getNofChannels(); }
+        public double getTimeResolution() { return source.getTimeResolution(); }
+        public PhotonHeader getHeader() { return source.getHeader(); }
+        public long getDecodedBytes() { return source.getDecodedBytes(); }
+        public double getDecodeRate() { return source.getDecodeRate(); }
+
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2016-2017 Artem Melnykov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+
+// Merges the photon streams of 2 to 16 detectors (one source each, e.g. one file per
+// detector) into one stream in the order of their arrival times. The sources are
+// kept in a binary min-heap ordered by the time of their next event; photons of
+// several detectors at the same time become one event. Each event is tagged with
+// the detectors it holds (bit i - source i, EventBlock.getTags), and channels A and B
+// count the photons of two groups of detectors (e.g. two colors). The blocks of the
+// sources and the heap are allocated once, merging allocates nothing.
+public class PhotonMerge implements PhotonSource {
+
+    public static final int MAX_SOURCES = 16;
+
+    private final PhotonSource[] sources;
+    private final int groupA;           // detectors of channel A (bit i - source i)
+    private final int groupB;           // detectors of channel B; 0 - single channel
+    private final PhotonHeader header;
+    private final EventBlock[] blocks;  // current block of each source
+    private final int[] position;       // next event in the block of each source
+    private final long[] nextTime;      // time of the next event of each source
+    private final int[] heap;           // sources with events left, earliest first
+    private int heapSize;
+    private long time;                  // time of the last merged event
+
+    public PhotonMerge(PhotonSource[] sources, int groupA, int groupB) {
+        // sources - single-channel sources with a common time resolution;
+        // groupA, groupB - bit masks of the sources counted in channels A and B
+        int ii;
+        if (sources.length<2 || sources.length>MAX_SOURCES) {
+            throw new IllegalArgumentException("2 to "+MAX_SOURCES+" detectors can be merged");
+        }
+        for (ii=0; ii<sources.length; ii++) {
+            if (sources[ii].getNofChannels()!=1) { throw new IllegalArgumentException("A detector must have a single channel"); }
+            if (sources[ii].getTimeResolution()!=sources[0].getTimeResolution()) {
+                throw new IllegalArgumentException("Detectors of different time resolution cannot be merged");
+            }
+        }
+        if (groupA==0 || ((groupA | groupB) >>> sources.length)!=0) {
+            throw new IllegalArgumentException("Channel groups do not match the detectors");
+        }
+        this.sources = sources.clone();
+        this.groupA = groupA;
+        this.groupB = groupB;
+        blocks = new EventBlock[sources.length];
+        position = new int[sources.length];
+        nextTime = new long[sources.length];
+        heap = new int[sources.length];
+        header = new PhotonHeader(sources[0].getFormat());
+        header.timeResolution = sources[0].getTimeResolution();
+        header.channels = new int[sources.length];
+        header.nRecords = 0;
+        heapSize = 0;
+        for (ii=0; ii<sources.length; ii++) {
+            blocks[ii] = new EventBlock(32768, false);
+            header.channels[ii] = ii+1;
+            header.headerSize = Math.max(header.headerSize, sources[ii].getHeader().getHeaderSize());
+            if (header.nRecords>=0 && sources[ii].getHeader().getNofRecords()>=0) {
+                header.nRecords += sources[ii].getHeader().getNofRecords();
+            } else {
+                header.nRecords = -1;
+            }
+            if (sources[ii].readBlock(blocks[ii])>0) {
+                position[ii] = 0;
+                nextTime[ii] = blocks[ii].iat[0];
+                push(ii);
+            }
+        }
+        time = 0;
+    }
+
+    public int readBlock(EventBlock block) {
+        int nEvents = 0, capacity = block.iat.length, src;
+        long[] iatOut = block.iat, tagsOut = block.tags;
+        int[] wAOut = block.wA, wBOut = block.wB;
+        long t, tags;
+        while (nEvents<capacity && heapSize>0) {
+            src = heap[0];
+            t = nextTime[src];
+            tags = 1L << src;
+            if (!advance(src)) { heap[0] = heap[--heapSize]; } // no events left in this source
+            siftDown(0);
+            // other detectors with a photon at the same time (a second photon of
+            // the same detector at that time is the next event)
+            while (heapSize>0 && nextTime[src = heap[0]]==t && (tags & (1L << src))==0) {
+                tags |= 1L << src;
+                if (!advance(src)) { heap[0] = heap[--heapSize]; }
+                siftDown(0);
+            }
+            iatOut[nEvents] = t-time;
+            wAOut[nEvents] = Long.bitCount(tags & groupA);
+            if (wBOut!=null) { wBOut[nEvents] = Long.bitCount(tags & groupB); }
+            if (tagsOut!=null) { tagsOut[nEvents] = tags; }
+            time = t;
+            nEvents++;
+        }
+        return block.nEvents = nEvents;
+    }
+
+    private boolean advance(int src) {
+        // move source src to its next event; false at the end of its data
+        EventBlock b = blocks[src];
+        if (++position[src]>=b.nEvents) {
+            if (sources[src].readBlock(b)==0) { return false; }
+            position[src] = 0;
+        }
+        nextTime[src] += b.iat[position[src]];
+        return true;
+    }
+
+    private void push(int src) {
+        int ii = heapSize++, parent;
+        while (ii>0 && nextTime[heap[parent = (ii-1) >>> 1]]>nextTime[src]) {
+            heap[ii] = heap[parent];
+            ii = parent;
+        }
+        heap[ii] = src;
+    }
+
+    private void siftDown(int ii) {
+        int src = heap[ii], child;
+        long t = nextTime[src];
+        while ((child = 2*ii+1)<heapSize) {
+            if (child+1<heapSize && nextTime[heap[child+1]]<nextTime[heap[child]]) { child++; }
+            if (nextTime[heap[child]]>=t) { break; }
+            heap[ii] = heap[child];
+            ii = child;
+        }
+        heap[ii] = src;
+    }
+
+    public String getFormat() {
+        return sources[0].getFormat();
+    }
+
+    public int getNofChannels() {
+        return (groupB!=0) ? 2 : 1;
+    }
+
+    public int getNofDetectors() {
+        return sources.length;
+    }
+
+    public double getTimeResolution() {
+        return sources[0].getTimeResolution();
+    }
+
+    public PhotonHeader getHeader() {
+        return header;
+    }
+
+    public long getDecodedBytes() {
+        long bytes = 0;
+        for (PhotonSource source:sources) { bytes += source.getDecodedBytes(); }
+        return bytes;
+    }
+
+    public double getDecodeRate() {
+        // bytes over the decoding time of all sources
+        double seconds = 0;
+        for (PhotonSource source:sources) {
+            if (source.getDecodeRate()>0) { seconds += source.getDecodedBytes()/source.getDecodeRate(); }
+        }
+        return (seconds>0) ? getDecodedBytes()/seconds : 0;
+    }
+
+    public void close() throws IOException {
+        IOException error = null;
+        for (PhotonSource source:sources) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                if (error==null) { error = e; }
+            }
+        }
+        if (error!=null) { throw error; }
+    }
+
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2016-2017 Artem Melnykov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.Closeable;
+
+// A stream of photon events delivered in blocks: inter-arrival times in units of
+// the time resolution and the weights of one (A) or two (A and B) channels.
+// Sources are opened through the PhotonSources registry and correlated with
+// EventPipeline; the correlation kernels do not depend on the data format.
+public interface PhotonSource extends Closeable {
+
+    String getFormat();             // name of the data format (as in PhotonSources)
+
+    int getNofChannels();           // 1 - weights A, 2 - weights A and B
+
+    double getTimeResolution();     // duration of one inter-arrival time unit (s)
+
+    PhotonHeader getHeader();       // header of the data (time resolution, sync rate,
+                                    // channels, record count)
+
+    int readBlock(EventBlock block); // replace the events of block with the next block of
+                                     // the stream; returns their number (0 - end of data);
+                                     // sources that do not tag their events set block.tags to null
+
+    long getDecodedBytes();         // bytes of input decoded so far
+
+    double getDecodeRate();         // decoding throughput (bytes per second)
+
+}
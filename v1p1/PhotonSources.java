@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2016-2017 Artem Melnykov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Registry of the supported data formats, keyed by the format name shown to the user.
+// A format opens a PhotonSource for one file (or one file per channel) and may
+// recognize its files by their first bytes (detect). New formats are added with
+// register() and are then available to FCS_calc without changes to Gmn.
+public class PhotonSources {
+
+    public interface Format {
+        double getTimeResolution();     // duration of one time unit (s)
+        int getChannelsPerFile();       // 1 - one detector per file (a second file holds channel B),
+                                        // 2 - both detectors in one file
+        boolean matches(byte[] header); // true if a file starting with header has this format
+        PhotonSource open(File fileA, File fileB, String channel) throws IOException;
+                                        // channel: "A", "B" or "AB" (both); fileB - second
+                                        // file for one detector per file, otherwise null
+    }
+
+    private static final int HEADER_PROBE = 512; // bytes read to detect the format of a file
+    private static final Map<String, Format> formats = new LinkedHashMap<String, Format>();
+
+    static {
+        register("Flex (8-bit)", new FlexFormat());
+        register("Confocor2", new Confocor2Format());
+        register("Confocor3", new Confocor3Format());
+        register("PicoHarp pt3", new PicoHarpPT3Format());
+        register("PicoHarp pt2", new PicoHarpPT2Format());
+        register("PicoQuant ptu", new PicoQuantPTUFormat());
+    }
+
+    public static synchronized void register(String name, Format format) {
+        formats.put(name, format);
+    }
+
+    public static synchronized String[] getFormats() {
+        return formats.keySet().toArray(new String[formats.size()]);
+    }
+
+    public static synchronized Format getFormat(String name) {
+        Format format = formats.get(name);
+        if (format==null) { throw new IllegalArgumentException("Unknown data format: "+name); }
+        return format;
+    }
+
+    public static PhotonSource open(String name, File fileA, File fileB, String channel) throws IOException {
+        return getFormat(name).open(fileA, fileB, channel);
+    }
+
+    public static PhotonSource openPTU(File file, int[] channelsA, int[] channelsB) throws IOException {
+        // PicoQuant unified TTTR file (PicoHarp, HydraHarp, TimeHarp 260, MultiHarp;
+        // T2 or T3) with the photons of the detector channels channelsA in channel A
+        // and of channelsB (null - single channel) in channel B; see Gmn.setPTUChannels
+        final FileInputStream in = new FileInputStream(file);
+        GmnPhotonSource source = new GmnPhotonSource("PicoQuant ptu", (channelsB!=null) ? 2 : 1, 1e-12, in, null) {
+            protected void decode(Gmn d) { d.updateDataPTU(in); }
+        };
+        boolean opened = false;
+        try {
+            if (source.decoder.readHeaderPTU(in)==0) {
+                throw new IOException(file.getName()+": not a .ptu file or unsupported record type");
+            }
+            source.decoder.setPTUChannels(channelsA, channelsB);
+            opened = true;
+        } finally {
+            if (!opened) { in.close(); }
+        }
+        return source;
+    }
+
+    public static PhotonSource openPT3(File file, String channel, int[][] gates) throws IOException {
+        // PicoHarp T3 file with microtime gates {detector, first bin, last bin} (see
+        // Gmn.setMicrotimeGates); channel "A", "B" or "AB" - detectors 1 and 2 with only
+        // the photons of their gates, "gates" - events tagged with their gates (bit g -
+        // gates[g]) for the "multi" mode of Gmn, "microtimes" - events tagged with the
+        // detector and dtime of their photon for the "flcs" mode (gates may be null);
+        // with "gates" and "microtimes" detectors 1 and 2 are in channels A and B
+        final FileInputStream in = new FileInputStream(file);
+        final String decoded = "gates".equals(channel) ? "gates" : ("microtimes".equals(channel) ? "microtimes"
+                : ("AB".equals(channel) ? "AB" : ("B".equals(channel) ? "B" : "A")));
+        GmnPhotonSource source = new GmnPhotonSource("PicoHarp pt3", "A".equals(decoded) || "B".equals(decoded) ? 1 : 2, 50e-9, in, null) {
+            protected void decode(Gmn d) {
+                if (decoded=="gates") { d.updateDataPicoHarpPT3gates(in); }
+                else if (decoded=="microtimes") { d.updateDataPicoHarpPT3microtimes(in); }
+                else if (decoded=="AB") { d.updateDataPicoHarpPT3chAB(in); }
+                else if (decoded=="B") { d.updateDataPicoHarpPT3chB(in); }
+                else { d.updateDataPicoHarpPT3chA(in); }
+            }
+        };
+        boolean opened = false;
+        try {
+            if (source.decoder.readHeaderPicoHarpPT3(in)==0) {
+                throw new IOException(file.getName()+": not a PicoHarp T3 file");
+            }
+            source.decoder.setMicrotimeGates(gates);
+            source.tagged = (decoded=="gates" || decoded=="microtimes");
+            opened = true;
+        } finally {
+            if (!opened) { in.close(); }
+        }
+        return source;
+    }
+
+    public static PhotonSource openPIE(File file, int[][] routes, int[] channelsA, int[] channelsB) throws IOException {
+        // PicoHarp T3 file with its photons routed to virtual channels by routes {detector,
+        // first bin, last bin, channel} (e.g. PieRouting.routes; see Gmn.setMicrotimeRoutes):
+        // the virtual channels channelsA in channel A and channelsB (null - single channel)
+        // in B, or with channelsA null events tagged with their virtual channels (bit c -
+        // channel c) for the "multi" mode of Gmn, detectors 1 and 2 in channels A and B
+        final FileInputStream in = new FileInputStream(file);
+        final boolean tagged = (channelsA==null);
+        GmnPhotonSource source = new GmnPhotonSource("PicoHarp pt3", (tagged || channelsB!=null) ? 2 : 1, 50e-9, in, null) {
+            protected void decode(Gmn d) {
+                if (tagged) { d.updateDataPicoHarpPT3gates(in); } else { d.updateDataPicoHarpPT3routed(in); }
+            }
+        };
+        boolean opened = false;
+        try {
+            if (source.decoder.readHeaderPicoHarpPT3(in)==0) {
+                throw new IOException(file.getName()+": not a PicoHarp T3 file");
+            }
+            source.decoder.setMicrotimeRoutes(routes, channelsA, channelsB);
+            source.tagged = tagged;
+            opened = true;
+        } finally {
+            if (!opened) { in.close(); }
+        }
+        return source;
+    }
+
+    public static PhotonSource openMerged(String name, File[] files, int groupA, int groupB) throws IOException {
+        // the detectors of 2 to 16 files of a format (channel A of each file) merged into
+        // one stream; channel A counts the photons of the files in groupA (bit i - files[i]),
+        // channel B those in groupB (0 - single channel); see PhotonMerge
+        PhotonSource[] sources = new PhotonSource[files.length];
+        PhotonSource merged = null;
+        int ii;
+        try {
+            for (ii=0; ii<files.length; ii++) { sources[ii] = open(name, files[ii], null, "A"); }
+            merged = new PhotonMerge(sources, groupA, groupB);
+        } finally {
+            if (merged==null) {
+                for (PhotonSource source:sources) { if (source!=null) { source.close(); } }
+            }
+        }
+        return merged;
+    }
+
+    public static synchronized String detect(File file) throws IOException {
+        // name of the first format that recognizes the header of file; null for
+        // formats without a header signature (Flex, Confocor2)
+        byte[] header = new byte[HEADER_PROBE];
+        int n, total = 0;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            while (total<header.length && (n = in.read(header, total, header.length-total))>0) { total += n; }
+        } finally {
+            in.close();
+        }
+        if (total<header.length) { header = Arrays.copyOf(header, total); }
+        for (Map.Entry<String, Format> entry:formats.entrySet()) {
+            if (entry.getValue().matches(header)) { return entry.getKey(); }
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] header, int offset, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        if (header.length<offset+bytes.length) { return false; }
+        for (int ii=0; ii<bytes.length; ii++) {
+            if (header[offset+ii]!=bytes[ii]) { return false; }
+        }
+        return true;
+    }
+
+    private static void checkHeader(int headerRead, FileInputStream in, File file, String message) throws IOException {
+        // fails (and closes the file) if readHeader* returned 0
+        if (headerRead==0) {
+            in.close();
+            throw new IOException(file.getName()+": "+message);
+        }
+    }
+
+    private static int intAt(byte[] header, int offset) {
+        // little-endian 32-bit value
+        return (header[offset] & 0xFF) | (header[offset+1] & 0xFF) << 8 | (header[offset+2] & 0xFF) << 16 | header[offset+3] << 24;
+    }
+
+    private static class FlexFormat implements Format {
+        // one byte per clock tick, one detector per file, no header
+        public double getTimeResolution() { return 12.5e-9; }
+        public int getChannelsPerFile() { return 1; }
+        public boolean matches(byte[] header) { return false; }
+        public PhotonSource open(File fileA, File fileB, String channel) throws IOException {
+            final FileInputStream inA = new FileInputStream(fileA);
+            if (fileB==null) {
+                return new GmnPhotonSource("Flex (8-bit)", 1, getTimeResolution(), inA, null) {
+                    protected void decode(Gmn d) { d.updateDataFlexOneCh(inA); }
+                };
+            }
+            final FileInputStream inB = new FileInputStream(fileB);
+            return new GmnPhotonSource("Flex (8-bit)", 2, getTimeResolution(), inA, inB) {
+                protected void decode(Gmn d) { d.updateDataFlexTwoCh(inA, inB); }
+            };
+        }
+    }
+
+    private static class Confocor2Format implements Format {
+        // 2-byte records with the photons of both detectors after a 30-byte header
+        public double getTimeResolution() { return 50e-9; }
+        public int getChannelsPerFile() { return 2; }
+        public boolean matches(byte[] header) { return false; }
+        public PhotonSource open(final File fileA, File fileB, String channel) throws IOException {
+            final FileInputStream inA = new FileInputStream(fileA);
+            if ("AB".equals(channel)) {
+                return new GmnPhotonSource("Confocor2", 2, getTimeResolution(), inA, null) {
+                    { checkHeader(decoder.readHeaderConfocor2(inA), inA, fileA, "the Confocor2 header could not be read"); }
+                    protected void decode(Gmn d) { d.updateDataConfocor2chAB(inA); }
+                };
+            } else if ("B".equals(channel)) {
+                return new GmnPhotonSource("Confocor2", 1, getTimeResolution(), inA, null) {
+                    { checkHeader(decoder.readHeaderConfocor2(inA), inA, fileA, "the Confocor2 header could not be read"); }
+                    protected void decode(Gmn d) { d.updateDataConfocor2chB(inA); }
+                };
+            }
+            return new GmnPhotonSource("Confocor2", 1, getTimeResolution(), inA, null) {
+                { checkHeader(decoder.readHeaderConfocor2(inA), inA, fileA, "the Confocor2 header could not be read"); }
+                protected void decode(Gmn d) { d.updateDataConfocor2chA(inA); }
+            };
+        }
+    }
+
+    private static class Confocor3Format implements Format {
+        // 4-byte inter-arrival times of one detector after a 128-byte header
+        public double getTimeResolution() { return 50e-9; }
+        public int getChannelsPerFile() { return 1; }
+        public boolean matches(byte[] header) {
+            return new String(header, 0, Math.min(header.length, 128), StandardCharsets.US_ASCII).contains("ConfoCor3");
+        }
+        public PhotonSource open(final File fileA, File fileB, String channel) throws IOException {
+            if (fileB!=null) { throw new IllegalArgumentException("Confocor3: correlation of two files is not supported"); }
+            final FileInputStream inA = new FileInputStream(fileA);
+            return new GmnPhotonSource("Confocor3", 1, getTimeResolution(), inA, null) {
+                { checkHeader(decoder.readHeaderConfocor3(inA), inA, fileA, "the Confocor3 header could not be read"); }
+                protected void decode(Gmn d) { d.updateDataConfocor3OneCh(inA); }
+            };
+        }
+    }
+
+    private static class PicoHarpPT3Format implements Format {
+        // PicoHarp 300 T3 records; the header starts with "PicoHarp 300" and the
+        // measurement mode (3 - T3) follows the 328-byte text part and five integers
+        public double getTimeResolution() { return 50e-9; }
+        public int getChannelsPerFile() { return 2; }
+        public boolean matches(byte[] header) {
+            return startsWith(header, 0, "PicoHarp 300") && header.length>=352 && intAt(header, 348)==3;
+        }
+        public PhotonSource open(final File fileA, File fileB, String channel) throws IOException {
+            final FileInputStream inA = new FileInputStream(fileA);
+            if ("AB".equals(channel)) {
+                return new GmnPhotonSource("PicoHarp pt3", 2, getTimeResolution(), inA, null) {
+                    { checkHeader(decoder.readHeaderPicoHarpPT3(inA), inA, fileA, "not a PicoHarp T3 file"); }
+                    protected void decode(Gmn d) { d.updateDataPicoHarpPT3chAB(inA); }
+                };
+            } else if ("B".equals(channel)) {
+                return new GmnPhotonSource("PicoHarp pt3", 1, getTimeResolution(), inA, null) {
+                    { checkHeader(decoder.readHeaderPicoHarpPT3(inA), inA, fileA, "not a PicoHarp T3 file"); }
+                    protected void decode(Gmn d) { d.updateDataPicoHarpPT3chB(inA); }
+                };
+            }
+            return new GmnPhotonSource("PicoHarp pt3", 1, getTimeResolution(), inA, null) {
+                { checkHeader(decoder.readHeaderPicoHarpPT3(inA), inA, fileA, "not a PicoHarp T3 file"); }
+                protected void decode(Gmn d) { d.updateDataPicoHarpPT3chA(inA); }
+            };
+        }
+    }
+
+    private static class PicoHarpPT2Format implements Format {
+        // PicoHarp 300 T2 records (measurement mode 2) with picosecond time tags;
+        // channel A is input 1, channel B the sync input
+        public double getTimeResolution() { return 4e-12; }
+        public int getChannelsPerFile() { return 2; }
+        public boolean matches(byte[] header) {
+            return startsWith(header, 0, "PicoHarp 300") && header.length>=352 && intAt(header, 348)==2;
+        }
+        public PhotonSource open(final File fileA, File fileB, String channel) throws IOException {
+            final FileInputStream inA = new FileInputStream(fileA);
+            if ("AB".equals(channel)) {
+                return new GmnPhotonSource("PicoHarp pt2", 2, getTimeResolution(), inA, null) {
+                    { checkHeader(decoder.readHeaderPicoHarpPT2(inA), inA, fileA, "not a PicoHarp T2 file"); }
+                    protected void decode(Gmn d) { d.updateDataPicoHarpPT2chAB(inA); }
+                };
+            } else if ("B".equals(channel)) {
+                return new GmnPhotonSource("PicoHarp pt2", 1, getTimeResolution(), inA, null) {
+                    { checkHeader(decoder.readHeaderPicoHarpPT2(inA), inA, fileA, "not a PicoHarp T2 file"); }
+                    protected void decode(Gmn d) { d.updateDataPicoHarpPT2chB(inA); }
+                };
+            }
+            return new GmnPhotonSource("PicoHarp pt2", 1, getTimeResolution(), inA, null) {
+                { checkHeader(decoder.readHeaderPicoHarpPT2(inA), inA, fileA, "not a PicoHarp T2 file"); }
+                protected void decode(Gmn d) { d.updateDataPicoHarpPT2chA(inA); }
+            };
+        }
+    }
+
+    private static class PicoQuantPTUFormat implements Format {
+        // tagged header that starts with "PQTTTR" and states the record type and the
+        // time resolution (1 ps until the header is read); channel A is detector 1
+        // and channel B detector 2 (openPTU for other detectors)
+        public double getTimeResolution() { return 1e-12; }
+        public int getChannelsPerFile() { return 2; }
+        public boolean matches(byte[] header) { return startsWith(header, 0, "PQTTTR"); }
+        public PhotonSource open(File fileA, File fileB, String channel) throws IOException {
+            if ("AB".equals(channel)) { return openPTU(fileA, new int[] {1}, new int[] {2}); }
+            return openPTU(fileA, new int[] {"B".equals(channel) ? 2 : 1}, null);
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016-2017 Artem Melnykov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Microtime windows of pulsed interleaved excitation (PIE) found in the microtime
+// histogram of a PicoHarp T3 file. The lasers fire one after the other within each
+// sync period, so the histogram of the detectors has one peak per pulse; the window
+// of a pulse starts at the lowest point before its peak and ends where the window of
+// the next pulse starts (the last one wraps around the period). routes() turns the
+// windows into routes of Gmn.setMicrotimeRoutes: the photons of detector i after
+// pulse p go to virtual channel i*nPulses+p.
+public class PieRouting {
+
+    private PieRouting() {
+    }
+
+    public static long[] histogram(File file, long maxRecords) throws IOException {
+        // microtime histogram of the first maxRecords records of file, indexed by
+        // detector<<12 | dtime (Gmn.updateHistogramPicoHarpPT3)
+        long[] histogram = new long[16 << 12];
+        long nRecords = 0;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            Gmn decoder = new Gmn();
+            decoder.initializeDecoder(1);
+            if (decoder.readHeaderPicoHarpPT3(in)==0) { throw new IOException(file.getName()+": not a PicoHarp T3 file"); }
+            while (nRecords<maxRecords && decoder.updateHistogramPicoHarpPT3(in, histogram)!=-1) {
+                nRecords += 32768;
+            }
+        } finally {
+            in.close();
+        }
+        return histogram;
+    }
+
+    public static int[] windowStarts(long[] histogram, int[] detectors, int nPulses) {
+        // first dtime bin of the window of each pulse, in the order of the pulses within
+        // the sync period, from the summed histogram of detectors
+        long[] sum = summed(histogram, detectors);
+        int period = period(sum);
+        int[] peaks = new int[nPulses];
+        int[] starts = new int[nPulses];
+        boolean[] excluded = new boolean[4096];
+        int ii, pp, best, halfWidth, from, to;
+        if (nPulses<1 || nPulses>64) { throw new IllegalArgumentException("1 to 64 pulses expected"); }
+        // the pulses: the highest bins at least half a window apart
+        halfWidth = Math.max(1, period/(2*nPulses));
+        for (pp=0; pp<nPulses; pp++) {
+            best = -1;
+            for (ii=0; ii<period; ii++) {
+                if (!excluded[ii] && sum[ii]>0 && (best<0 || sum[ii]>sum[best])) { best = ii; }
+            }
+            if (best<0) { throw new IllegalArgumentException("Fewer than "+nPulses+" pulses in the microtime histogram"); }
+            peaks[pp] = best;
+            for (ii=best-halfWidth; ii<=best+halfWidth; ii++) { excluded[(ii+period)%period] = true; }
+        }
+        Arrays.sort(peaks);
+        // a window starts at the lowest bin between the previous peak and its own
+        // (the one nearest to its peak if several are equally low)
+        for (pp=0; pp<nPulses; pp++) {
+            from = peaks[(pp+nPulses-1)%nPulses]+1;
+            to = peaks[pp];
+            if (to<from) { to += period; }
+            best = to % period;
+            for (ii=from; ii<=to; ii++) {
+                if (sum[ii%period]<=sum[best]) { best = ii%period; }
+            }
+            starts[pp] = best;
+        }
+        return starts;
+    }
+
+    public static int[][] routes(long[] histogram, int[] detectors, int nPulses) {
+        // routes {detector, first, last, channel} of each detector and pulse window
+        // (channel i*nPulses+p for detectors[i] and pulse p); the window that ends the
+        // sync period also takes any later bins
+        int[] starts = windowStarts(histogram, detectors, nPulses);
+        int period = period(summed(histogram, detectors));
+        int[][] routes = new int[2*detectors.length*nPulses][];
+        int ii, pp, nRoutes = 0, first, length, channel;
+        for (ii=0; ii<detectors.length; ii++) {
+            for (pp=0; pp<nPulses; pp++) {
+                first = starts[pp];
+                length = (starts[(pp+1)%nPulses]-first+period)%period;
+                if (length==0) { length = period; } // a single pulse
+                channel = ii*nPulses+pp;
+                if (first+length<period) {
+                    routes[nRoutes++] = new int[] {detectors[ii], first, first+length-1, channel};
+                } else { // to the end of the sync period and on from its start
+                    routes[nRoutes++] = new int[] {detectors[ii], first, 4095, channel};
+                    if (first+length>period) { routes[nRoutes++] = new int[] {detectors[ii], 0, first+length-period-1, channel}; }
+                }
+            }
+        }
+        return Arrays.copyOf(routes, nRoutes);
+    }
+
+    private static long[] summed(long[] histogram, int[] detectors) {
+        long[] sum = new long[4096];
+        for (int detector:detectors) {
+            if (detector<1 || detector>14) { throw new IllegalArgumentException("Detector "+detector+": 1-14 expected"); }
+            for (int ii=0; ii<4096; ii++) { sum[ii] += histogram[(detector << 12)+ii]; }
+        }
+        return sum;
+    }
+
+    private static int period(long[] sum) {
+        // bins up to the last photon
+        int period = 4096;
+        while (period>0 && sum[period-1]==0) { period--; }
+        if (period==0) { throw new IllegalArgumentException("No photons of the selected detectors"); }
+        return period;
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016-2017 Artem Melnykov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Correlation of a long photon stream in macrotime segments on separate threads.
+// Events are collected into segments of at least eventsPerSegment events. Each
+// segment is correlated by its own Gmn (master.newSegment()) and the sums are
+// merged into the master in the order of the segments.
+// Pairs of bins that straddle a segment boundary are handled with a warm-up: a
+// segment starts with a copy of the preceding events that lie within the longest
+// lag of the plan (aligned to the largest timebase). These events only fill the
+// ring buffers; their sums are cleared before the segment's own events are
+// correlated. Every bin pair is therefore counted exactly once, and the merged
+// correlation functions are identical to a single pass over all events.
+public class SegmentCorrelator {
+
+    private final Gmn master;           // receives the merged sums and the final state
+    private final ForkJoinPool pool;    // worker threads
+    private final int eventsPerSegment; // minimum number of own events in a segment
+    private final int maxPending;       // segments held in memory before merging
+    private final long historyLength;   // time span needed for the longest lag of any cascade
+    private final long alignment;       // largest timebase; segments start on its multiples
+    private boolean tagged;             // events carry channel tags ("multi", "flcs"); set by the first tagged block
+
+    // events of the current segment: warm-up events followed by own events
+    private long[] iat;
+    private int[] wA;
+    private int[] wB;
+    private long[] tags;                // channel tags of each event; null if not tagged
+    private long[] time;                // macrotime of each event
+    private int nBuffered;              // number of events in the buffers
+    private int nWarmup;                // number of warm-up events at the start of the buffers
+    private long segmentStart;          // macrotime at which the segment starts (-1: start of data)
+    private long macroTime;             // macrotime of the last event added
+
+    private final ArrayDeque<Future<Gmn>> pending = new ArrayDeque<Future<Gmn>>();
+
+    public SegmentCorrelator(Gmn master, ForkJoinPool pool, int eventsPerSegment) {
+        // master must be initialized (initializeGmn) in the mode to be used for all segments
+        CorrelatorPlan plan = master.getPlan();
+        int jj;
+        long span;
+
+        this.master = master;
+        this.pool = pool;
+        this.eventsPerSegment = eventsPerSegment;
+        this.maxPending = pool.getParallelism()+1;
+
+        span = 0;
+        for (jj=0; jj<plan.getNofCascades(); jj++) {
+            span = Math.max(span, (long)(plan.cc[plan.cascadeOffset[jj]+plan.ntlag[jj]-1]+1)*plan.timebase[jj]);
+        }
+        historyLength = span;
+        alignment = plan.timebase[plan.getNofCascades()-1];
+        tagged = false;
+
+        allocate(eventsPerSegment);
+        nBuffered = 0;
+        nWarmup = 0;
+        segmentStart = -1;
+        macroTime = 0;
+    }
+
+    public void addEvents(long[] iatIn, int[] wAIn, int[] wBIn, int n) {
+        addEvents(iatIn, wAIn, wBIn, null, n);
+    }
+
+    public void addEvents(long[] iatIn, int[] wAIn, int[] wBIn, long[] tagsIn, int n) {
+        // append n events (inter-arrival times, weights and channel tags, e.g. from a Gmn decoder)
+        int ev;
+        if (tagsIn!=null && !tagged) { // events buffered so far have no channels
+            tagged = true;
+            tags = new long[iat.length];
+        }
+        if (nBuffered+n>iat.length) { grow(nBuffered+n); }
+        for (ev=0; ev<n; ev++) {
+            macroTime += iatIn[ev];
+            iat[nBuffered] = iatIn[ev];
+            wA[nBuffered] = wAIn[ev];
+            wB[nBuffered] = (wBIn!=null) ? wBIn[ev] : 0;
+            if (tagged) { tags[nBuffered] = (tagsIn!=null) ? tagsIn[ev] : 0; }
+            time[nBuffered] = macroTime;
+            nBuffered++;
+        }
+        // a segment must also be long enough to hold the warm-up of the next one
+        if (nBuffered-nWarmup>=eventsPerSegment && time[nBuffered-1]-time[nWarmup]>=2*historyLength) {
+            submitSegment();
+        }
+    }
+
+    public void finish() {
+        // correlate the remaining events and merge all segments into the master;
+        // the master then holds the state after the last event and can go on by itself
+        if (nBuffered>nWarmup || segmentStart<0) { submitSegment(); }
+        while (!pending.isEmpty()) { mergeNext(); }
+    }
+
+    private void mergeNext() {
+        try {
+            master.mergeSegment(pending.removeFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Segment correlation interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Segment correlation failed", e.getCause());
+        }
+    }
+
+    private void submitSegment() {
+        final long[] segIat = iat;
+        final int[] segWA = wA;
+        final int[] segWB = wB;
+        final long[] segTags = tags;
+        final int segEvents = nBuffered;
+        final int segWarmup = nWarmup;
+        final long segStart = segmentStart;
+        long tPrevious, warmupStart;
+        int first, ev;
+
+        pending.addLast(pool.submit(new Callable<Gmn>() {
+            public Gmn call() {
+                Gmn segment = master.newSegment();
+                if (segStart>=0) { segment.startSegment(segStart); }
+                segment.correlateEvents(segIat, segWA, segWB, segTags, 0, segWarmup); // history only
+                segment.clearSums();
+                segment.correlateEvents(segIat, segWA, segWB, segTags, segWarmup, segEvents-segWarmup);
+                return segment;
+            }
+        }));
+        while (pending.size()>maxPending) { mergeNext(); }
+
+        // the bin closed by the first event of the next segment contains the last
+        // event of this one; all bins it pairs with start after warmupStart
+        tPrevious = time[nBuffered-1];
+        warmupStart = Math.max(0, tPrevious-historyLength)/alignment*alignment;
+        first = nBuffered-1;
+        while (first>0 && time[first-1]>=warmupStart) { first--; }
+
+        long[] oldIat = iat;
+        int[] oldWA = wA, oldWB = wB;
+        long[] oldTags = tags;
+        long[] oldTime = time;
+        allocate(Math.max(eventsPerSegment, nBuffered-first));
+        for (ev=first; ev<nBuffered; ev++) {
+            iat[ev-first] = oldIat[ev];
+            wA[ev-first] = oldWA[ev];
+            wB[ev-first] = oldWB[ev];
+            if (tagged) { tags[ev-first] = oldTags[ev]; }
+            time[ev-first] = oldTime[ev];
+        }
+        iat[0] = time[0]-warmupStart; // counted from the start of the segment
+        nBuffered = nBuffered-first;
+        nWarmup = nBuffered;
+        segmentStart = warmupStart;
+    }
+
+    private void allocate(int n) {
+        iat = new long[n];
+        wA = new int[n];
+        wB = new int[n];
+        tags = tagged ? new long[n] : null;
+        time = new long[n];
+    }
+
+    private void grow(int n) {
+        int size = Math.max(n, 2*iat.length);
+        long[] oldIat = iat;
+        int[] oldWA = wA, oldWB = wB;
+        long[] oldTags = tags;
+        long[] oldTime = time;
+        allocate(size);
+        System.arraycopy(oldIat, 0, iat, 0, nBuffered);
+        System.arraycopy(oldWA, 0, wA, 0, nBuffered);
+        System.arraycopy(oldWB, 0, wB, 0, nBuffered);
+        if (tagged) { System.arraycopy(oldTags, 0, tags, 0, nBuffered); }
+        System.arraycopy(oldTime, 0, time, 0, nBuffered);
+    }
+
+}
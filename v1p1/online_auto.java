@@ -27,19 +27,10 @@ public class online_auto extends PlugInFrame {
 		// *********************************
 
 		// populate the array of time values
-		int ii, jj, jjoffset, tt, timebase, ntlag;
+		int ii;
 		double[] timeArray;
-		timeArray = new double[(nc+1)*np];
-		tt = 0;
-		timebase = t0;
-		for (jj=0; jj<nc; jj++) {
-			if (jj==0) { jjoffset=0; ntlag=2*np; } else { jjoffset=(jj+1)*np; ntlag=np; }
-			for (ii=0; ii<ntlag; ii++) {
-				tt += timebase;
-				timeArray[jjoffset+ii] = tt*dt;
-			}
-			timebase = timebase * 2;
- 		}
+		CorrelatorPlan plan = new CorrelatorPlan(t0, nc, np, dt);
+		timeArray = plan.getLagTimes();
 
 		// prepare the plot
 		Plot plotG11 = new Plot("Auto","Time","Correlation");
@@ -52,7 +43,7 @@ public class online_auto extends PlugInFrame {
 		// create the correlator and set the calculation parameters
 		Gmn cr;
 		cr = new Gmn();
-		cr.setParams(t0, nc,np);
+		cr.setPlan(plan);
 		cr.initializeGmn("auto");
 
 